@@ -7,10 +7,10 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-# javac -d $DIR/../classes $DIR/../src/Retail.java
-javac -d java/classes java/src/Retail.java
+# javac -d $DIR/../classes $DIR/../src/*.java
+javac -d java/classes java/src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER $1
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER "$@"
 
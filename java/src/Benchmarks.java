@@ -0,0 +1,180 @@
+/*
+ * Micro-benchmarks for the Retail application
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Times the hot paths every screen of the application goes through,
+ * without a database:
+ *
+ *   distance     Retail.calculateDistance
+ *   readAll      Retail.readAll, the materialization behind
+ *                executeQueryAndReturnResult
+ *   toArray      the List<List<String>> to String[][] conversion of the
+ *                view...Rows methods behind the GUI tables
+ *   print.*      TablePrinter in each of its modes, the formatter behind
+ *                executeQueryAndPrintResult
+ *
+ * The database is stood in for by a ResultSet proxy over rows shaped like
+ * Product (char(30) names padded with blanks), so the numbers include the
+ * cost of the proxy's reflective dispatch but no network or driver time.
+ * Use them to compare one build against another, not as absolute figures.
+ *
+ * Each benchmark is warmed up, then run for several timed iterations; the
+ * mean and spread of the iterations are reported.  Results are fed into a
+ * sink so the JIT cannot drop the work.
+ *
+ * Usage: java Benchmarks [rows] [iterations] [filter]
+ *   e.g. java Benchmarks 10000 5 print
+ */
+public class Benchmarks {
+   private static final long WARMUP_MS = Long.getLong("retail.bench.warmupMs", 1000);
+   private static final long ITERATION_MS = Long.getLong("retail.bench.iterationMs", 1000);
+
+   private interface Op {
+      Object run() throws Exception;
+   }
+
+   // everything a benchmark produces ends up here
+   private static volatile int sink;
+
+   public static void main(String[] args) throws Exception {
+      int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+      int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+      String filter = args.length > 2 ? args[2] : "";
+
+      final String[] columns = { "storeid", "productname", "numberofunits", "priceperunit" };
+      final int[] widths = { 11, 30, 11, 17 };
+      final String[][] data = products(rows, new Random(42));
+      final List<List<String>> materialized = Retail.readAll(resultSet(columns, widths, data));
+      final double[] coords = new double[4096];
+      Random random = new Random(7);
+      for (int i = 0; i < coords.length; i++) coords[i] = random.nextDouble() * 100;
+      final PrintStream devNull = new PrintStream(new OutputStream() {
+         public void write(int b) {
+            sink += b;
+         }
+         public void write(byte[] b, int off, int len) {
+            sink += len;
+         }
+      });
+
+      System.out.println(String.format("%d rows, %d iterations of %d ms after %d ms warm-up",
+         rows, iterations, ITERATION_MS, WARMUP_MS));
+      System.out.println(String.format("%-22s %14s %10s %14s", "benchmark", "ns/op", "+-%", "rows/s"));
+
+      run("distance", filter, iterations, 1, () -> {
+         double sum = 0;
+         for (int i = 0; i + 3 < coords.length; i += 4) {
+            sum += Retail.calculateDistance(coords[i], coords[i + 1], coords[i + 2], coords[i + 3]);
+         }
+         return sum;
+      }, coords.length / 4);
+      run("readAll", filter, iterations, rows,
+          () -> Retail.readAll(resultSet(columns, widths, data)), 1);
+      run("toArray", filter, iterations, rows,
+          () -> materialized.stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new), 1);
+      run("print.TWO_PASS", filter, iterations, rows,
+          () -> new TablePrinter(devNull, TablePrinter.Mode.TWO_PASS).print(resultSet(columns, widths, data)), 1);
+      run("print.STREAM_SAMPLED", filter, iterations, rows,
+          () -> new TablePrinter(devNull, TablePrinter.Mode.STREAM_SAMPLED).print(resultSet(columns, widths, data)), 1);
+      run("print.STREAM_FIXED", filter, iterations, rows,
+          () -> new TablePrinter(devNull, TablePrinter.Mode.STREAM_FIXED).print(resultSet(columns, widths, data)), 1);
+   }//end main
+
+   /*
+    * Warms op up, then runs it for iterations timed slices and prints the
+    * mean time per operation.  ops is how many operations one call of op
+    * performs; rows is how many rows one operation handles.
+    */
+   private static void run(String name, String filter, int iterations, int rows, Op op, int ops) throws Exception {
+      if (!name.contains(filter)) return;
+      long end = System.nanoTime() + WARMUP_MS * 1000000L;
+      while (System.nanoTime() < end) consume(op.run());
+
+      double[] nsPerOp = new double[iterations];
+      for (int it = 0; it < iterations; it++) {
+         long calls = 0;
+         long t0 = System.nanoTime();
+         end = t0 + ITERATION_MS * 1000000L;
+         long now;
+         do {
+            consume(op.run());
+            calls++;
+            now = System.nanoTime();
+         } while (now < end);
+         nsPerOp[it] = (now - t0) / (double) (calls * ops);
+      }
+
+      double mean = 0;
+      for (double v : nsPerOp) mean += v;
+      mean /= iterations;
+      double variance = 0;
+      for (double v : nsPerOp) variance += (v - mean) * (v - mean);
+      double spread = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) / mean * 100 : 0;
+      System.out.println(String.format("%-22s %14.1f %10.1f %14.0f", name, mean, spread, rows * 1e9 / mean));
+   }//end run
+
+   private static void consume(Object result) {
+      sink += result == null ? 0 : System.identityHashCode(result);
+   }
+
+   private static String[][] products(int rows, Random random) {
+      String[][] data = new String[rows][];
+      for (int r = 0; r < rows; r++) {
+         StringBuilder name = new StringBuilder("product-" + random.nextInt(1000));
+         while (name.length() < 30) name.append(' ');
+         data[r] = new String[] {
+            Integer.toString(1 + r / 50), name.toString(),
+            Integer.toString(random.nextInt(1000)), Double.toString(1 + random.nextInt(2000) / 100.0)
+         };
+      }
+      return data;
+   }
+
+   /*
+    * A forward-only ResultSet over data that answers the calls readAll and
+    * TablePrinter make; anything else throws UnsupportedOperationException.
+    */
+   static ResultSet resultSet(final String[] columns, final int[] widths, final String[][] data) {
+      final ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(
+         Benchmarks.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+         (InvocationHandler) (proxy, method, args) -> {
+            switch (method.getName()) {
+               case "getColumnCount": return columns.length;
+               case "getColumnName":
+               case "getColumnLabel": return columns[(Integer) args[0] - 1];
+               case "getColumnDisplaySize": return widths[(Integer) args[0] - 1];
+               default: throw new UnsupportedOperationException(method.getName());
+            }
+         });
+      final int[] cursor = { -1 };
+      return (ResultSet) Proxy.newProxyInstance(
+         Benchmarks.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+         (InvocationHandler) (proxy, method, args) -> {
+            switch (method.getName()) {
+               case "next": return ++cursor[0] < data.length;
+               case "getString": return data[cursor[0]][(Integer) args[0] - 1];
+               case "getMetaData": return meta;
+               case "wasNull": return Boolean.FALSE;
+               case "close": return null;
+               default: throw new UnsupportedOperationException(method.getName());
+            }
+         });
+   }//end resultSet
+}//end Benchmarks
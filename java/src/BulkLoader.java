@@ -0,0 +1,571 @@
+/*
+ * Bulk data loader for the Retail application
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Loads the CSV files of a data directory (data/ by default) into an empty
+ * schema from the client side, so the files do not have to be on the
+ * database host the way load_data.sql's COPY ... FROM '<path>' needs them.
+ * Started with the --load flag.
+ *
+ * Each file is named after its table (users.csv, stores.csv, ...) and its
+ * header row names the columns.  Tables are loaded level by level in
+ * foreign key order; the tables of one level do not reference each other
+ * and are loaded in parallel, one connection and one transaction each.
+ * When the driver has the CopyManager API (8.4+ drivers), rows are streamed
+ * with COPY ... FROM STDIN.  Older drivers such as pg73jdbc3 do not, and
+ * rows are sent as multi-row INSERTs of retail.load.insertRows rows
+ * instead.
+ *
+ * User triggers on the loaded tables are disabled while loading, so loaded
+ * supply requests do not add to Product a second time.  Afterwards the
+ * serial sequences are moved past the loaded keys, the loaded orders are
+ * moved into monthly partitions when partitions.sql has been run, and the
+ * popularity counters are rebuilt when triggers.sql has been run.
+ *
+ * With several shards (see ShardRouter) every shard is loaded in turn,
+ * shard 0 first.  A shard only gets the rows of its own stores, filtered
+ * out of the files as they are read, and shards other than 0 get Users and
+ * Warehouse through their subscription to shard 0 rather than from the
+ * files, so loading waits for those to arrive before filling the shard.
+ */
+public class BulkLoader {
+   public static final int DEFAULT_INSERT_ROWS = Integer.getInteger("retail.load.insertRows", 500);
+
+   /**
+    * A table, the file it is loaded from, its serial column, if any, and
+    * the column its rows are sharded by, null for the tables shard 0
+    * shares with the others.
+    */
+   private static class Table {
+      final String name;
+      final String file;
+      final String serialColumn;
+      final String storeColumn;
+
+      Table(String name, String file, String serialColumn, String storeColumn) {
+         this.name = name;
+         this.file = file;
+         this.serialColumn = serialColumn;
+         this.storeColumn = storeColumn;
+      }
+   }//end Table
+
+   // each level only references tables of earlier levels
+   private static final Table[][] LEVELS = {
+      { new Table("Users", "users.csv", "userID", null), new Table("Warehouse", "warehouse.csv", null, null) },
+      { new Table("Store", "stores.csv", null, "storeID") },
+      { new Table("Product", "products.csv", null, "storeID") },
+      { new Table("Orders", "orders.csv", "orderNumber", "storeID"),
+        new Table("ProductSupplyRequests", "productSupplyRequests.csv", "requestNumber", "storeID"),
+        new Table("ProductUpdates", "productUpdates.csv", "updateNumber", "storeID") },
+   };
+
+   // how long a shard may take to receive Users and Warehouse from shard 0
+   private static final long REFERENCE_WAIT_MS = 5 * 60 * 1000;
+
+   /**
+    * Rows loaded into one table and how long it took.
+    */
+   public static class Result {
+      public final String table;
+      public final long rows;
+      public final long millis;
+
+      Result(String table, long rows, long millis) {
+         this.table = table;
+         this.rows = rows;
+         this.millis = millis;
+      }
+
+      public double rowsPerSecond() {
+         return millis == 0 ? rows * 1000.0 : rows * 1000.0 / millis;
+      }
+   }//end Result
+
+   private final ConnectionPool pool;
+   private final int insertRows;
+   private final int shard;
+   private final int shards;
+
+   public BulkLoader(ConnectionPool pool) {
+      this(pool, DEFAULT_INSERT_ROWS);
+   }
+
+   public BulkLoader(ConnectionPool pool, int insertRows) {
+      this(pool, insertRows, 0, 1);
+   }
+
+   /**
+    * A loader for shard of shards, keeping only the rows of the stores that
+    * ShardRouter.shardOf places there.
+    */
+   public BulkLoader(ConnectionPool pool, int insertRows, int shard, int shards) {
+      this.pool = pool;
+      this.insertRows = Math.max(1, insertRows);
+      this.shard = shard;
+      this.shards = Math.max(1, shards);
+   }
+
+   /**
+    * Loads every file of the data directory and prints rows per second for
+    * each table and overall.
+    */
+   public static void load(Retail esql, String dir) throws Exception {
+      System.out.println(String.format("Loading %s (%s)", dir,
+         COPY_IN != null ? "COPY FROM STDIN" : "multi-row INSERT"));
+      long t0 = System.currentTimeMillis();
+      ShardRouter shards = esql.getShards();
+      List<Result> results = new ArrayList<Result>();
+      for (int shard = 0; shard < shards.size(); shard++) {
+         if (shard > 0) awaitReferenceTables(shards.pool(0), shards.pool(shard), shard);
+         results.addAll(new BulkLoader(shards.pool(shard), DEFAULT_INSERT_ROWS, shard, shards.size()).load(new File(dir)));
+      }
+      long elapsed = System.currentTimeMillis() - t0;
+
+      long total = 0;
+      for (Result r : results) {
+         System.out.println(String.format("%-24s %10d rows %9.2f s %12.0f rows/s",
+            r.table, r.rows, r.millis / 1000.0, r.rowsPerSecond()));
+         total += r.rows;
+      }
+      Result overall = new Result("total", total, elapsed);
+      System.out.println(String.format("%-24s %10d rows %9.2f s %12.0f rows/s",
+         overall.table, overall.rows, overall.millis / 1000.0, overall.rowsPerSecond()));
+   }//end load
+
+   /**
+    * Loads the tables whose files exist in dir; the others are skipped.
+    *
+    * @return one result per loaded table, in load order
+    */
+   public List<Result> load(File dir) throws Exception {
+      if (!dir.isDirectory()) {
+         throw new IOException(String.format("'%s' is not a directory", dir));
+      }
+      List<Table> tables = new ArrayList<Table>();
+      for (Table[] level : LEVELS) {
+         for (Table table : level) {
+            if (loads(table) && new File(dir, table.file).isFile()) tables.add(table);
+         }
+      }
+
+      List<Result> results = new ArrayList<Result>();
+      setTriggers(tables, false);
+      try {
+         for (Table[] level : LEVELS) {
+            results.addAll(loadLevel(dir, level));
+         }
+      } finally {
+         setTriggers(tables, true);
+      }
+      resetSequences(tables);
+      // history lands in orders_default; give each month its own partition
+      callIfExists("partition_orders", "SELECT partition_orders()");
+      callIfExists("rebuild_popularity", "SELECT rebuild_popularity()");
+      return results;
+   }//end load
+
+   private List<Result> loadLevel(final File dir, Table[] level) throws Exception {
+      List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+      for (final Table table : level) {
+         final File file = new File(dir, table.file);
+         if (!loads(table) || !file.isFile()) continue;
+         tasks.add(() -> loadTable(table, file));
+      }
+      if (tasks.isEmpty()) return new ArrayList<Result>();
+
+      ExecutorService workers = Executors.newFixedThreadPool(tasks.size());
+      try {
+         List<Result> results = new ArrayList<Result>();
+         for (Future<Result> f : workers.invokeAll(tasks)) {
+            try {
+               results.add(f.get());
+            } catch (ExecutionException e) {
+               throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+         }
+         return results;
+      } finally {
+         workers.shutdownNow();
+      }
+   }//end loadLevel
+
+   // shards other than 0 get the shared tables through their subscription
+   private boolean loads(Table table) {
+      return table.storeColumn != null || shard == 0;
+   }
+
+   private String label(Table table) {
+      return shards == 1 ? table.name : table.name + " @" + shard;
+   }
+
+   private Result loadTable(Table table, File file) throws IOException, SQLException {
+      long t0 = System.currentTimeMillis();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         List<String> header = readRecord(in);
+         if (header == null) return new Result(label(table), 0, System.currentTimeMillis() - t0);
+         String columns = String.join(", ", header);
+         // the column whose store decides the shard, or -1 to keep every row
+         int storeIndex = -1;
+         if (shards > 1 && table.storeColumn != null) {
+            for (int i = 0; i < header.size(); i++) {
+               if (table.storeColumn.equalsIgnoreCase(header.get(i))) storeIndex = i;
+            }
+            if (storeIndex < 0) {
+               throw new IOException(String.format("%s has no %s column to shard by", table.file, table.storeColumn));
+            }
+         }
+
+         Connection conn = pc.connection();
+         conn.setAutoCommit(false);
+         Object copyApi = copyApi(conn);
+         long rows;
+         if (copyApi != null) {
+            // the header was consumed above, so the rest of the file is data
+            Reader data = storeIndex < 0 ? in : new ShardCsv(in, storeIndex);
+            rows = ((Number) COPY_IN.invoke(copyApi,
+               String.format("COPY %s (%s) FROM STDIN WITH CSV", table.name, columns), data)).longValue();
+         } else {
+            rows = insert(pc, table, columns, header.size(), in, storeIndex);
+         }
+         conn.commit();
+         return new Result(label(table), rows, System.currentTimeMillis() - t0);
+      } catch (ReflectiveOperationException e) {
+         Throwable cause = e.getCause() != null ? e.getCause() : e;
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         if (cause instanceof IOException) throw (IOException) cause;
+         throw new SQLException("COPY into " + table.name + " failed: " + cause.getMessage());
+      } finally {
+         pool.release(pc);
+         in.close();
+      }
+   }//end loadTable
+
+   /*
+    * Sends the rows as INSERT ... VALUES (...), (...) with insertRows rows
+    * per statement.  Values are bound as text and cast to the column's type
+    * on the server, the same conversion COPY does.
+    */
+   private long insert(ConnectionPool.PooledConnection pc, Table table, String columns, int width,
+                       BufferedReader in, int storeIndex) throws IOException, SQLException {
+      String[] casts = new String[width];
+      Statement probe = pc.connection().createStatement();
+      try {
+         ResultSetMetaData rsmd = probe.executeQuery(
+            String.format("SELECT %s FROM %s WHERE false", columns, table.name)).getMetaData();
+         for (int i = 0; i < width; i++) casts[i] = "CAST(? AS " + rsmd.getColumnTypeName(i + 1) + ")";
+      } finally {
+         probe.close();
+      }
+
+      long rows = 0;
+      List<List<String>> pending = new ArrayList<List<String>>(insertRows);
+      List<String> record;
+      while ((record = readRecord(in)) != null) {
+         if (record.size() == 1 && record.get(0) == null) continue; // blank line
+         if (!onThisShard(record, storeIndex)) continue;
+         if (record.size() != width) {
+            throw new IOException(String.format("%s: row %d has %d values, expected %d",
+               table.file, rows + pending.size() + 1, record.size(), width));
+         }
+         pending.add(record);
+         if (pending.size() == insertRows) {
+            // full-size statements are reused through the statement cache
+            PreparedStatement stmt = pc.statements().prepare(insertSql(table, columns, casts, insertRows));
+            rows += insertPending(stmt, pending);
+         }
+      }
+      if (!pending.isEmpty()) {
+         PreparedStatement stmt = pc.connection().prepareStatement(insertSql(table, columns, casts, pending.size()));
+         try {
+            rows += insertPending(stmt, pending);
+         } finally {
+            stmt.close();
+         }
+      }
+      return rows;
+   }//end insert
+
+   private static String insertSql(Table table, String columns, String[] casts, int rows) {
+      String row = "(" + String.join(", ", casts) + ")";
+      StringBuilder sql = new StringBuilder();
+      sql.append("INSERT INTO ").append(table.name).append(" (").append(columns).append(") VALUES ");
+      for (int r = 0; r < rows; r++) {
+         if (r > 0) sql.append(", ");
+         sql.append(row);
+      }
+      return sql.toString();
+   }
+
+   private static int insertPending(PreparedStatement stmt, List<List<String>> pending) throws SQLException {
+      int p = 1;
+      for (List<String> record : pending) {
+         for (String value : record) {
+            if (value == null) stmt.setNull(p++, Types.VARCHAR);
+            else stmt.setString(p++, value);
+         }
+      }
+      int rows = pending.size();
+      stmt.executeUpdate();
+      pending.clear();
+      return rows;
+   }
+
+   private void setTriggers(List<Table> tables, boolean enabled) throws SQLException {
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         Statement stmt = pc.connection().createStatement();
+         try {
+            for (Table table : tables) {
+               stmt.executeUpdate(String.format("ALTER TABLE %s %s TRIGGER USER",
+                  table.name, enabled ? "ENABLE" : "DISABLE"));
+            }
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         pool.release(pc);
+      }
+   }//end setTriggers
+
+   // moves each serial sequence past the largest loaded key; a sharded
+   // table's sequence goes to the next key of this shard's residue, the
+   // keys configure_shard() in shards.sql interleaves the shards on
+   private void resetSequences(List<Table> tables) throws SQLException {
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         for (Table table : tables) {
+            if (table.serialColumn == null) continue;
+            int residue = table.storeColumn == null ? 1 : shard + 1;
+            int modulus = table.storeColumn == null ? 1 : shards;
+            Statement stmt = pc.connection().createStatement();
+            try {
+               stmt.executeQuery(String.format(
+                  "SELECT setval(pg_get_serial_sequence('%s', '%s'), n + ((%d - n) %% %d + %d) %% %d, false) " +
+                  "FROM (SELECT COALESCE(MAX(%s), 0) + 1 AS n FROM %s) t",
+                  table.name.toLowerCase(), table.serialColumn.toLowerCase(), residue, modulus, modulus, modulus,
+                  table.serialColumn, table.name)).close();
+            } finally {
+               stmt.close();
+            }
+         }
+      } finally {
+         pool.release(pc);
+      }
+   }//end resetSequences
+
+   // the functions are only there once their .sql file has been run
+   private void callIfExists(String function, String call) throws SQLException {
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         Statement stmt = pc.connection().createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery("SELECT 1 FROM pg_proc WHERE proname = '" + function + "'");
+            boolean exists = rs.next();
+            rs.close();
+            if (exists) stmt.executeQuery(call).close();
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         pool.release(pc);
+      }
+   }//end callIfExists
+
+   /*
+    * Reads one CSV record: fields are separated by commas, may be quoted
+    * with '"' (a doubled quote inside stands for one) and quoted fields may
+    * span lines.  An empty unquoted field is NULL, as with COPY.
+    *
+    * @return the record, or null at the end of the input
+    */
+   static List<String> readRecord(BufferedReader in) throws IOException {
+      int c = in.read();
+      if (c == -1) return null;
+      List<String> record = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      boolean wasQuoted = false;
+      while (true) {
+         if (quoted) {
+            if (c == -1) throw new IOException("Unterminated quoted field");
+            if (c == '"') {
+               in.mark(1);
+               int next = in.read();
+               if (next == '"') {
+                  field.append('"');
+               } else {
+                  quoted = false;
+                  in.reset();
+               }
+            } else {
+               field.append((char) c);
+            }
+         } else if (c == '"') {
+            quoted = true;
+            wasQuoted = true;
+         } else if (c == ',' || c == '\n' || c == -1) {
+            record.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+            field.setLength(0);
+            wasQuoted = false;
+            if (c != ',') return record;
+         } else if (c != '\r') {
+            field.append((char) c);
+         }
+         c = in.read();
+      }
+   }//end readRecord
+
+   // whether the record's store is on this shard; short rows are kept so
+   // the width check reports them
+   private boolean onThisShard(List<String> record, int storeIndex) throws IOException {
+      if (storeIndex < 0 || storeIndex >= record.size()) return true;
+      String store = record.get(storeIndex);
+      try {
+         return store != null && Math.floorMod(Integer.parseInt(store.trim()), shards) == shard;
+      } catch (NumberFormatException e) {
+         throw new IOException(String.format("'%s' is not a store ID", store));
+      }
+   }
+
+   /*
+    * The data records of a CSV file that belong on this shard, written
+    * back out as CSV for COPY.  Every value is quoted, and NULL is an empty
+    * unquoted field, so COPY reads back exactly what readRecord read.
+    **/
+   private class ShardCsv extends Reader {
+      private final BufferedReader in;
+      private final int storeIndex;
+      private final StringBuilder buffer = new StringBuilder();
+      private int position = 0;
+
+      ShardCsv(BufferedReader in, int storeIndex) {
+         this.in = in;
+         this.storeIndex = storeIndex;
+      }
+
+      @Override
+      public int read(char[] chars, int offset, int length) throws IOException {
+         while (position == buffer.length()) {
+            List<String> record = readRecord(in);
+            if (record == null) return -1;
+            if (record.size() == 1 && record.get(0) == null) continue; // blank line
+            if (!onThisShard(record, storeIndex)) continue;
+            buffer.setLength(0);
+            position = 0;
+            for (int i = 0; i < record.size(); i++) {
+               if (i > 0) buffer.append(',');
+               String value = record.get(i);
+               if (value != null) buffer.append('"').append(value.replace("\"", "\"\"")).append('"');
+            }
+            buffer.append('\n');
+         }
+         int n = Math.min(length, buffer.length() - position);
+         buffer.getChars(position, position + n, chars, offset);
+         position += n;
+         return n;
+      }
+
+      @Override
+      public void close() throws IOException {
+         in.close();
+      }
+   }//end ShardCsv
+
+   /*
+    * Waits until shard has received every Users and Warehouse row shard 0
+    * has, so the foreign keys of the store tables find them.
+    **/
+   private static void awaitReferenceTables(ConnectionPool home, ConnectionPool pool, int shard) throws Exception {
+      long deadline = System.currentTimeMillis() + REFERENCE_WAIT_MS;
+      for (String table : new String[] { "Users", "Warehouse" }) {
+         long expected = count(home, table);
+         while (count(pool, table) < expected) {
+            if (System.currentTimeMillis() > deadline) {
+               throw new IOException(String.format(
+                  "Shard %d has not received %s from shard 0; was it set up with create_shard.sh?", shard, table));
+            }
+            Thread.sleep(200);
+         }
+      }
+   }//end awaitReferenceTables
+
+   private static long count(ConnectionPool pool, String table) throws SQLException {
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         Statement stmt = pc.connection().createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery("SELECT count(*) FROM " + table);
+            rs.next();
+            return rs.getLong(1);
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         pool.release(pc);
+      }
+   }//end count
+
+   /*
+    * org.postgresql.PGConnection.getCopyAPI() and CopyManager.copyIn() only
+    * exist in 8.4+ drivers, so they are looked up reflectively, like
+    * StatementCache does for server-side prepare.
+    */
+   private static final Class<?> PG_CONNECTION;
+   private static final Method GET_COPY_API;
+   private static final Method COPY_IN;
+   static {
+      Class<?> type = null;
+      Method getCopyApi = null;
+      Method copyIn = null;
+      try {
+         type = Class.forName("org.postgresql.PGConnection");
+         getCopyApi = type.getMethod("getCopyAPI");
+         copyIn = Class.forName("org.postgresql.copy.CopyManager").getMethod("copyIn", String.class, Reader.class);
+      } catch (Exception e) {
+         // driver without COPY support.
+         getCopyApi = null;
+         copyIn = null;
+      }
+      PG_CONNECTION = type;
+      GET_COPY_API = getCopyApi;
+      COPY_IN = copyIn;
+   }
+
+   private static Object copyApi(Connection conn) throws ReflectiveOperationException {
+      if (COPY_IN == null || !PG_CONNECTION.isInstance(conn)) return null;
+      return GET_COPY_API.invoke(conn);
+   }
+}//end BulkLoader
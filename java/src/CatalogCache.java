@@ -0,0 +1,182 @@
+/*
+ * Product catalog cache for the Retail application
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Caches each store's products so the product views run one query per
+ * store instead of three.  A store's entry holds its rows in database
+ * order, plus the same rows sorted by price ascending and descending.
+ *
+ * Entries expire after ttlMs.  At most maxStores stores are kept, and the
+ * least recently used store is dropped first.  Writes that change a store's
+ * products (updates, orders, supply requests) call invalidate().  A load
+ * that was running when an invalidation happened is not cached, so a
+ * snapshot read before the write cannot overwrite the invalidation.
+ */
+public class CatalogCache {
+   public static final int DEFAULT_MAX_STORES = Integer.getInteger("retail.catalogCache.maxStores", 256);
+   public static final long DEFAULT_TTL_MS = Long.getLong("retail.catalogCache.ttlMs", 30 * 1000);
+
+   /**
+    * One store's products at one point in time.  Rows are the columns of
+    * Retail.STORE_PRODUCTS_QUERY as strings and must not be modified.
+    */
+   public static class Snapshot {
+      public final String[] columns;
+      public final List<String[]> all;
+      public final List<String[]> byPrice;
+      public final List<String[]> byPriceDesc;
+      private final long loadedAt;
+
+      Snapshot(String[] columns, List<String[]> all, final int priceColumn) {
+         this.columns = columns;
+         this.all = Collections.unmodifiableList(all);
+         // parse each price once rather than on every comparison
+         final Map<String[], Double> prices = new IdentityHashMap<String[], Double>();
+         for (String[] row : all) {
+            prices.put(row, row[priceColumn] == null ? Double.NaN : Double.parseDouble(row[priceColumn]));
+         }
+         List<String[]> sorted = new ArrayList<String[]>(all);
+         // stable, so equal prices keep the database order
+         Collections.sort(sorted, new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+               return Double.compare(prices.get(a), prices.get(b));
+            }
+         });
+         this.byPrice = Collections.unmodifiableList(sorted);
+         List<String[]> reversed = new ArrayList<String[]>(sorted);
+         Collections.reverse(reversed);
+         this.byPriceDesc = Collections.unmodifiableList(reversed);
+         this.loadedAt = System.currentTimeMillis();
+      }
+   }//end Snapshot
+
+   private final Retail esql;
+   private final int maxStores;
+   private final long ttlMs;
+   private final LinkedHashMap<Integer, Snapshot> stores;
+   // bumped by every invalidation; loads that overlap one are not cached
+   private long generation = 0;
+   private long hits = 0;
+   private long misses = 0;
+
+   public CatalogCache(Retail esql) {
+      this(esql, DEFAULT_MAX_STORES, DEFAULT_TTL_MS);
+   }
+
+   public CatalogCache(Retail esql, int maxStores, long ttlMs) {
+      this.esql = esql;
+      this.maxStores = Math.max(1, maxStores);
+      this.ttlMs = ttlMs;
+      // access-ordered, so iteration starts at the least recently used store
+      this.stores = new LinkedHashMap<Integer, Snapshot>(16, 0.75f, true);
+   }
+
+   /**
+    * @return the store's products, loading them on a miss or after the
+    *         cached copy expired
+    * @throws java.sql.SQLException when loading failed
+    */
+   public Snapshot get(int storeID) throws SQLException {
+      long loadGeneration;
+      synchronized (this) {
+         Snapshot cached = stores.get(storeID);
+         if (cached != null && System.currentTimeMillis() - cached.loadedAt < ttlMs) {
+            hits++;
+            return cached;
+         }
+         misses++;
+         loadGeneration = generation;
+      }
+
+      // query outside the lock so other stores stay available
+      Snapshot loaded = load(storeID);
+      synchronized (this) {
+         if (generation == loadGeneration) {
+            stores.put(storeID, loaded);
+            Iterator<Integer> it = stores.keySet().iterator();
+            while (stores.size() > maxStores && it.hasNext()) {
+               it.next();
+               it.remove();
+            }
+         }
+      }
+      return loaded;
+   }//end get
+
+   /**
+    * Drops a store's cached products after they changed.
+    */
+   public synchronized void invalidate(int storeID) {
+      generation++;
+      stores.remove(storeID);
+   }
+
+   /**
+    * Drops every cached store.
+    */
+   public synchronized void clear() {
+      generation++;
+      stores.clear();
+   }
+
+   public synchronized int size() {
+      return stores.size();
+   }
+
+   public synchronized long getHits() {
+      return hits;
+   }
+
+   public synchronized long getMisses() {
+      return misses;
+   }
+
+   private Snapshot load(int storeID) throws SQLException {
+      final List<String[]> rows = new ArrayList<String[]>();
+      final String[][] columns = new String[1][];
+      // every miss runs this, and orders invalidate stores all the time: a
+      // store's catalog is small, so read it buffered in one round trip
+      // (fetch size 0) rather than through a cursor transaction
+      esql.onStore(storeID, shard -> esql.executeQueryAndStream(Retail.STORE_PRODUCTS_QUERY, 0, rs -> {
+         if (columns[0] == null) columns[0] = columnNames(rs.getMetaData());
+         String[] row = new String[columns[0].length];
+         for (int i = 0; i < row.length; i++) row[i] = rs.getString(i + 1);
+         rows.add(row);
+      }, storeID));
+      if (columns[0] == null) {
+         columns[0] = new String[] { "storeid", "productname", "numberofunits", "priceperunit" };
+      }
+      return new Snapshot(columns[0], rows, indexOf(columns[0], "priceperunit"));
+   }//end load
+
+   private static String[] columnNames(ResultSetMetaData rsmd) throws SQLException {
+      String[] names = new String[rsmd.getColumnCount()];
+      for (int i = 0; i < names.length; i++) names[i] = rsmd.getColumnName(i + 1);
+      return names;
+   }
+
+   private static int indexOf(String[] columns, String name) throws SQLException {
+      for (int i = 0; i < columns.length; i++) {
+         if (columns[i].equalsIgnoreCase(name)) return i;
+      }
+      throw new SQLException("Product has no column " + name);
+   }
+}//end CatalogCache
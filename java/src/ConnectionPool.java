@@ -0,0 +1,460 @@
+/*
+ * Connection pool for the Retail application
+ * ==========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A bounded pool of physical PostgreSQL connections.  Callers borrow a
+ * connection with acquire() and must hand it back with release() (or
+ * invalidate() when the connection is known to be broken).
+ *
+ * Idle connections are validated before they are handed out, evicted after
+ * sitting unused for too long, and connections held longer than the leak
+ * threshold are reported with the thread that borrowed them (and, with
+ * leakTraces, the stack).
+ */
+public class ConnectionPool {
+
+   /**
+    * Pool sizing and timing knobs.  Every field can be overridden with a
+    * -Dretail.pool.<name>=<value> system property.
+    */
+   public static class Config {
+      public int minSize = 1;
+      public int maxSize = 8;
+      public long acquireTimeoutMs = 5000;
+      public long idleTimeoutMs = 5 * 60 * 1000;
+      public long leakThresholdMs = 30 * 1000;
+      // capture a stack trace on every acquire, for finding a leak's caller
+      public boolean leakTraces = false;
+      public long validationIntervalMs = 30 * 1000;
+      public String validationQuery = "SELECT 1";
+
+      public static Config fromSystemProperties() {
+         Config config = new Config();
+         config.minSize = Integer.getInteger("retail.pool.minSize", config.minSize);
+         config.maxSize = Integer.getInteger("retail.pool.maxSize", config.maxSize);
+         config.acquireTimeoutMs = Long.getLong("retail.pool.acquireTimeoutMs", config.acquireTimeoutMs);
+         config.idleTimeoutMs = Long.getLong("retail.pool.idleTimeoutMs", config.idleTimeoutMs);
+         config.leakThresholdMs = Long.getLong("retail.pool.leakThresholdMs", config.leakThresholdMs);
+         config.leakTraces = Boolean.parseBoolean(System.getProperty("retail.pool.leakTraces", String.valueOf(config.leakTraces)));
+         config.validationIntervalMs = Long.getLong("retail.pool.validationIntervalMs", config.validationIntervalMs);
+         config.validationQuery = System.getProperty("retail.pool.validationQuery", config.validationQuery);
+         if (config.maxSize < 1) config.maxSize = 1;
+         if (config.minSize > config.maxSize) config.minSize = config.maxSize;
+         return config;
+      }
+   }//end Config
+
+   /**
+    * A physical connection plus the bookkeeping the pool keeps about it.
+    */
+   public static class PooledConnection {
+      private final Connection connection;
+      private StatementCache statements;
+      private long lastUsed;
+      private long lastValidated;
+      private long borrowedAt;
+      private String borrowThread;
+      private Throwable borrowSite;
+      private boolean leakReported;
+
+      PooledConnection(Connection connection) {
+         this.connection = connection;
+         this.lastUsed = System.currentTimeMillis();
+         this.lastValidated = this.lastUsed;
+      }
+
+      public Connection connection() {
+         return this.connection;
+      }
+
+      /**
+       * @return the prepared statements cached on this connection
+       */
+      public StatementCache statements() {
+         if (this.statements == null) {
+            this.statements = new StatementCache(this.connection);
+         }
+         return this.statements;
+      }
+   }//end PooledConnection
+
+   /**
+    * Point-in-time snapshot of the pool counters.
+    */
+   public static class Stats {
+      public final int active;
+      public final int idle;
+      public final int waiters;
+      public final long acquires;
+      public final long timeouts;
+      public final long leaks;
+      public final double avgAcquireMillis;
+      public final double maxAcquireMillis;
+
+      Stats(int active, int idle, int waiters, long acquires, long timeouts, long leaks,
+            double avgAcquireMillis, double maxAcquireMillis) {
+         this.active = active;
+         this.idle = idle;
+         this.waiters = waiters;
+         this.acquires = acquires;
+         this.timeouts = timeouts;
+         this.leaks = leaks;
+         this.avgAcquireMillis = avgAcquireMillis;
+         this.maxAcquireMillis = maxAcquireMillis;
+      }
+
+      @Override
+      public String toString() {
+         return String.format(
+            "active=%d idle=%d waiters=%d acquires=%d timeouts=%d leaks=%d avgAcquire=%.3fms maxAcquire=%.3fms",
+            active, idle, waiters, acquires, timeouts, leaks, avgAcquireMillis, maxAcquireMillis);
+      }
+   }//end Stats
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+   private final Config config;
+
+   // most recently returned connection first, so eviction takes from the tail
+   private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+   private final Set<PooledConnection> active =
+      Collections.newSetFromMap(new IdentityHashMap<PooledConnection, Boolean>());
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition available = lock.newCondition();
+   private final ScheduledExecutorService housekeeper;
+
+   // guarded by lock
+   private int total = 0;
+   private int waiters = 0;
+   private boolean closed = false;
+   private long acquires = 0;
+   private long timeouts = 0;
+   private long leaks = 0;
+   private long acquireNanosTotal = 0;
+   private long acquireNanosMax = 0;
+
+   /**
+    * Creates the pool and opens minSize connections up front so that a bad
+    * URL or a stopped server is reported immediately.
+    *
+    * @throws java.sql.SQLException when the initial connections fail
+    */
+   public ConnectionPool(String url, String user, String passwd, Config config) throws SQLException {
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.config = config;
+
+      for (int i = 0; i < config.minSize; i++) {
+         idle.addLast(new PooledConnection(DriverManager.getConnection(url, user, passwd)));
+         total++;
+      }
+
+      this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "retail-pool-housekeeper");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1000, Math.min(config.idleTimeoutMs, config.leakThresholdMs) / 2);
+      this.housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, waiting up to acquireTimeoutMs for one to free up.
+    *
+    * @return a validated connection in autocommit mode
+    * @throws java.sql.SQLException on timeout, when the pool is closed or a
+    *         new connection cannot be opened
+    */
+   public PooledConnection acquire() throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos(config.acquireTimeoutMs);
+      while (true) {
+         PooledConnection pc = null;
+         boolean create = false;
+
+         lock.lock();
+         try {
+            while (pc == null && !create) {
+               if (closed) {
+                  throw new SQLException("Connection pool is closed");
+               }
+               pc = idle.pollFirst();
+               if (pc == null && total < config.maxSize) {
+                  total++;
+                  create = true;
+               } else if (pc == null) {
+                  long remaining = deadline - System.nanoTime();
+                  if (remaining <= 0) {
+                     timeouts++;
+                     throw new SQLException(String.format(
+                        "Timed out after %d ms waiting for a database connection", config.acquireTimeoutMs));
+                  }
+                  waiters++;
+                  try {
+                     available.awaitNanos(remaining);
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                     throw new SQLException("Interrupted while waiting for a database connection");
+                  } finally {
+                     waiters--;
+                  }
+               }
+            }
+         } finally {
+            lock.unlock();
+         }
+
+         // connect and validate outside the lock so other callers are not blocked
+         if (create) {
+            try {
+               pc = new PooledConnection(DriverManager.getConnection(url, user, passwd));
+            } catch (SQLException e) {
+               discard(null);
+               throw e;
+            }
+         } else if (!validate(pc)) {
+            discard(pc);
+            continue;
+         }
+
+         long waited = System.nanoTime() - start;
+         pc.borrowedAt = System.currentTimeMillis();
+         pc.borrowThread = Thread.currentThread().getName();
+         // a stack trace per acquire is too dear to take by default
+         pc.borrowSite = config.leakTraces && config.leakThresholdMs > 0 ? new Throwable("Connection borrowed here") : null;
+         pc.leakReported = false;
+
+         lock.lock();
+         try {
+            active.add(pc);
+            acquires++;
+            acquireNanosTotal += waited;
+            acquireNanosMax = Math.max(acquireNanosMax, waited);
+         } finally {
+            lock.unlock();
+         }
+         return pc;
+      }
+   }//end acquire
+
+   /**
+    * Returns a borrowed connection to the pool.  Any open transaction is
+    * rolled back and autocommit is restored before the connection is reused.
+    */
+   public void release(PooledConnection pc) {
+      if (pc == null) return;
+      boolean healthy;
+      try {
+         if (!pc.connection.getAutoCommit()) {
+            pc.connection.rollback();
+            pc.connection.setAutoCommit(true);
+         }
+         healthy = !pc.connection.isClosed();
+      } catch (SQLException e) {
+         healthy = false;
+      }
+      if (!healthy) {
+         invalidate(pc);
+         return;
+      }
+
+      pc.lastUsed = System.currentTimeMillis();
+      pc.borrowSite = null;
+      lock.lock();
+      try {
+         if (!active.remove(pc)) return;
+         if (closed) {
+            total--;
+            closeQuietly(pc);
+            return;
+         }
+         idle.addFirst(pc);
+         available.signal();
+      } finally {
+         lock.unlock();
+      }
+   }//end release
+
+   /**
+    * Drops a borrowed connection that the caller found to be broken.
+    */
+   public void invalidate(PooledConnection pc) {
+      if (pc == null) return;
+      lock.lock();
+      try {
+         if (!active.remove(pc)) return;
+      } finally {
+         lock.unlock();
+      }
+      discard(pc);
+   }//end invalidate
+
+   /**
+    * @return a snapshot of the pool counters
+    */
+   public Stats getStats() {
+      lock.lock();
+      try {
+         double avg = acquires == 0 ? 0.0 : acquireNanosTotal / (double) acquires / 1e6;
+         return new Stats(active.size(), idle.size(), waiters, acquires, timeouts, leaks,
+                          avg, acquireNanosMax / 1e6);
+      } finally {
+         lock.unlock();
+      }
+   }//end getStats
+
+   /**
+    * Closes every idle connection and refuses further acquires.  Borrowed
+    * connections are closed as they are released.
+    */
+   public void close() {
+      List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+      lock.lock();
+      try {
+         closed = true;
+         toClose.addAll(idle);
+         total -= idle.size();
+         idle.clear();
+         available.signalAll();
+      } finally {
+         lock.unlock();
+      }
+      housekeeper.shutdownNow();
+      for (PooledConnection pc : toClose) {
+         closeQuietly(pc);
+      }
+   }//end close
+
+   private boolean validate(PooledConnection pc) {
+      long now = System.currentTimeMillis();
+      try {
+         if (pc.connection.isClosed()) return false;
+         if (now - pc.lastValidated < config.validationIntervalMs) return true;
+         Statement stmt = pc.connection.createStatement();
+         try {
+            stmt.executeQuery(config.validationQuery).close();
+         } finally {
+            stmt.close();
+         }
+         pc.lastValidated = now;
+         return true;
+      } catch (SQLException e) {
+         return false;
+      }
+   }//end validate
+
+   // forgets a slot (pc may be null when the connection was never opened)
+   private void discard(PooledConnection pc) {
+      lock.lock();
+      try {
+         total--;
+         available.signal();
+      } finally {
+         lock.unlock();
+      }
+      if (pc != null) closeQuietly(pc);
+   }//end discard
+
+   private static void closeQuietly(PooledConnection pc) {
+      try {
+         pc.connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }//end closeQuietly
+
+   /*
+    * Periodic maintenance: evict idle connections past idleTimeoutMs (never
+    * going below minSize), top the pool back up to minSize and report
+    * connections that have been borrowed for longer than leakThresholdMs.
+    */
+   private void housekeep() {
+      long now = System.currentTimeMillis();
+      List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+      List<PooledConnection> leaked = new ArrayList<PooledConnection>();
+      int missing;
+
+      lock.lock();
+      try {
+         if (closed) return;
+         Iterator<PooledConnection> it = idle.descendingIterator();
+         while (it.hasNext() && total > config.minSize) {
+            PooledConnection pc = it.next();
+            if (now - pc.lastUsed < config.idleTimeoutMs) break;
+            it.remove();
+            total--;
+            evicted.add(pc);
+         }
+         if (config.leakThresholdMs > 0) {
+            for (PooledConnection pc : active) {
+               if (!pc.leakReported && now - pc.borrowedAt > config.leakThresholdMs) {
+                  pc.leakReported = true;
+                  leaks++;
+                  leaked.add(pc);
+               }
+            }
+         }
+         missing = Math.max(0, config.minSize - total);
+         total += missing;
+      } finally {
+         lock.unlock();
+      }
+
+      for (PooledConnection pc : evicted) {
+         closeQuietly(pc);
+      }
+      for (PooledConnection pc : leaked) {
+         System.err.println(String.format(
+            "Possible connection leak: connection held for %d ms by thread %s", now - pc.borrowedAt, pc.borrowThread));
+         Throwable site = pc.borrowSite;
+         if (site != null) site.printStackTrace();
+      }
+      for (int i = 0; i < missing; i++) {
+         try {
+            PooledConnection pc = new PooledConnection(DriverManager.getConnection(url, user, passwd));
+            boolean keep;
+            lock.lock();
+            try {
+               keep = !closed;
+               if (keep) {
+                  idle.addLast(pc);
+                  available.signal();
+               } else {
+                  total--;
+               }
+            } finally {
+               lock.unlock();
+            }
+            if (!keep) closeQuietly(pc);
+         } catch (SQLException e) {
+            discard(null);
+         }
+      }
+   }//end housekeep
+}//end ConnectionPool
@@ -0,0 +1,191 @@
+/*
+ * Credential cache for the Retail application
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+
+/**
+ * Remembers logins that succeeded so the same user logging in again, or
+ * resuming a session, is checked in memory instead of with a query.
+ *
+ * Only successful logins are cached; a wrong password always goes to the
+ * database.  The cache never holds a password: each entry keeps a salted
+ * SHA-256 of it, the salt is random per process, and entries are compared
+ * with MessageDigest.isEqual so the time taken does not depend on how much
+ * of the password matched.
+ *
+ * Names and passwords are char(50) and char(11), which PostgreSQL compares
+ * ignoring trailing blanks; the cache does the same, and credentials longer
+ * than the columns are refused without a query since they cannot match.
+ *
+ * Entries expire after ttlMs (0 turns the cache off).  At most maxUsers are
+ * kept, the least recently used dropped first.  Changing a user's account
+ * must call invalidateUser(); a login that was querying when that happened
+ * is not cached.
+ */
+public class CredentialCache {
+   public static final int DEFAULT_MAX_USERS = Integer.getInteger("retail.credentialCache.maxUsers", 10000);
+   public static final long DEFAULT_TTL_MS = Long.getLong("retail.credentialCache.ttlMs", 5 * 60 * 1000);
+
+   // the widths of Users.name and Users.password
+   public static final int MAX_NAME = 50;
+   public static final int MAX_PASSWORD = 11;
+
+   /**
+    * One verified login.
+    */
+   private static class Entry {
+      final int userId;
+      final double latitude;
+      final double longitude;
+      final String type;
+      final byte[] verifier;
+      final long loadedAt;
+
+      Entry(Session session, byte[] verifier) {
+         this.userId = session.getUserId();
+         this.latitude = session.getLatitude();
+         this.longitude = session.getLongitude();
+         this.type = session.getType();
+         this.verifier = verifier;
+         this.loadedAt = System.currentTimeMillis();
+      }
+
+      Session toSession() {
+         return new Session(userId, latitude, longitude, type);
+      }
+   }//end Entry
+
+   private final Retail esql;
+   private final int maxUsers;
+   private final long ttlMs;
+   private final byte[] salt = new byte[16];
+   // by name without trailing blanks, access-ordered
+   private final LinkedHashMap<String, Entry> users;
+   // bumped by every invalidation; logins that overlap one are not cached
+   private long generation = 0;
+   private long hits = 0;
+   private long misses = 0;
+
+   public CredentialCache(Retail esql) {
+      this(esql, DEFAULT_MAX_USERS, DEFAULT_TTL_MS);
+   }
+
+   public CredentialCache(Retail esql, int maxUsers, long ttlMs) {
+      this.esql = esql;
+      this.maxUsers = Math.max(1, maxUsers);
+      this.ttlMs = ttlMs;
+      this.users = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+      new SecureRandom().nextBytes(salt);
+   }
+
+   /**
+    * @return a new session for the user, or null if the credentials are wrong
+    * @throws java.sql.SQLException when the lookup failed
+    */
+   public Session authenticate(String name, String password) throws SQLException {
+      if (name == null || password == null) return null;
+      name = trimTrailing(name);
+      password = trimTrailing(password);
+      if (name.length() > MAX_NAME || password.length() > MAX_PASSWORD) return null;
+
+      byte[] verifier = verifier(name, password);
+      long loadGeneration;
+      synchronized (this) {
+         Entry cached = users.get(name);
+         if (cached != null && System.currentTimeMillis() - cached.loadedAt < ttlMs
+             && MessageDigest.isEqual(cached.verifier, verifier)) {
+            hits++;
+            return cached.toSession();
+         }
+         misses++;
+         loadGeneration = generation;
+      }
+
+      Session session = load(name, password);
+      if (session == null || ttlMs <= 0) return session;
+      synchronized (this) {
+         if (generation == loadGeneration) {
+            users.put(name, new Entry(session, verifier));
+            Iterator<String> it = users.keySet().iterator();
+            while (users.size() > maxUsers && it.hasNext()) {
+               it.next();
+               it.remove();
+            }
+         }
+      }
+      return session;
+   }//end authenticate
+
+   /**
+    * Drops a user's cached login after their name, password, location or
+    * type changed.
+    */
+   public synchronized void invalidateUser(int userId) {
+      generation++;
+      Iterator<Entry> it = users.values().iterator();
+      while (it.hasNext()) {
+         if (it.next().userId == userId) it.remove();
+      }
+   }//end invalidateUser
+
+   /**
+    * Drops every cached login.
+    */
+   public synchronized void clear() {
+      generation++;
+      users.clear();
+   }
+
+   public synchronized int size() {
+      return users.size();
+   }
+
+   public synchronized long getHits() {
+      return hits;
+   }
+
+   public synchronized long getMisses() {
+      return misses;
+   }
+
+   private Session load(String name, String password) throws SQLException {
+      List<List<String>> queryResult = esql.executeQueryAndReturnResult(Retail.LOGIN_QUERY, name, password);
+      if (queryResult.size() == 0) return null;
+      List<String> row = queryResult.get(0);
+      return new Session(Integer.parseInt(row.get(0)), Double.parseDouble(row.get(2)),
+                         Double.parseDouble(row.get(3)), row.get(4).trim());
+   }//end load
+
+   private byte[] verifier(String name, String password) {
+      try {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         digest.update(salt);
+         digest.update(name.getBytes(StandardCharsets.UTF_8));
+         digest.update((byte) 0);
+         return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+      } catch (NoSuchAlgorithmException e) {
+         // every JRE has SHA-256
+         throw new IllegalStateException(e);
+      }
+   }//end verifier
+
+   private static String trimTrailing(String s) {
+      int end = s.length();
+      while (end > 0 && s.charAt(end - 1) == ' ') end--;
+      return s.substring(0, end);
+   }
+}//end CredentialCache
@@ -0,0 +1,338 @@
+/*
+ * Synthetic dataset generator for the Retail application
+ * ======================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+
+/**
+ * Writes the seven tables of create_tables.sql as CSV files in the layout
+ * of data/, at a chosen scale, for BulkLoader (--load) to load.  At scale 1
+ * there are:
+ *
+ *   users                   10,000   user1 .. userN, password "xyz"; user1
+ *                                    is the admin, one user per 2 stores
+ *                                    is a manager
+ *   stores                     100   every store carries the whole catalog
+ *   products                 5,000   50 catalog entries per store
+ *   warehouses                  10
+ *   orders               1,000,000   spread over 2016 in orderNumber order
+ *   supply requests         10,000
+ *   product updates         50,000
+ *
+ * Counts grow linearly with the scale (the catalog stays at 50 products),
+ * so scale 50 writes 50M orders.
+ *
+ * Stores sit in clusters (about 5 stores each) and 90% of users live
+ * around a cluster; the rest are spread evenly.  An order goes to a store
+ * of its customer's cluster, so nearby-store queries see realistic
+ * densities.  Products are picked with a Zipf distribution (s = 1.1), so a
+ * few products get most of the orders, and popularity ranks differ from
+ * store to store.
+ *
+ * Output is deterministic for a given scale and seed.  Rows are written as
+ * they are generated; memory grows with the number of users, not orders.
+ *
+ * Usage: java DataGenerator <dir> [scale] [seed]
+ *   e.g. java DataGenerator /tmp/retail-data 10 42
+ */
+public class DataGenerator {
+
+   private static final String[] CATALOG_NAMES = {
+      "7up", "Pepsi", "Brisk", "Lemonade", "Orange Juice",
+      "Egg", "Donuts", "Pudding", "Ice Cream", "Hot and Sour Soup",
+   };
+   private static final int CATALOG_SIZE = 50;
+   private static final double PRODUCT_SKEW = 1.1;
+   private static final int STORES_PER_CLUSTER = 5;
+   // coordinates stay inside decimal(8,6), like the shipped data
+   private static final double MAX_COORDINATE = 99.999999;
+   // 2016-01-01 00:00:00 UTC and one year of seconds
+   private static final long START = 1451606400L;
+   private static final long SPAN = 366L * 24 * 60 * 60;
+
+   private final File dir;
+   private final long seed;
+   private final int users;
+   private final int stores;
+   private final int managers;
+   private final int warehouses;
+   private final long orders;
+   private final int supplyRequests;
+   private final int productUpdates;
+   private final String[] catalog;
+
+   // filled by writeStores and writeUsers
+   private double[][] clusterCenters;
+   private List<List<Integer>> storesByCluster;
+   private int[] userCluster;
+
+   public DataGenerator(File dir, double scale, long seed) {
+      this.dir = dir;
+      this.seed = seed;
+      this.users = scaled(10000, scale);
+      this.stores = scaled(100, scale);
+      this.managers = Math.max(1, this.stores / 2);
+      this.warehouses = scaled(10, scale);
+      this.orders = Math.max(1L, Math.round(1000000L * scale));
+      this.supplyRequests = scaled(10000, scale);
+      this.productUpdates = scaled(50000, scale);
+      this.catalog = new String[CATALOG_SIZE];
+      for (int i = 0; i < CATALOG_SIZE; i++) {
+         this.catalog[i] = i < CATALOG_NAMES.length ? CATALOG_NAMES[i] : String.format("Product %02d", i + 1);
+      }
+      if (this.users < this.managers + 1) {
+         throw new IllegalArgumentException("Scale too small: not enough users for the store managers");
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: java DataGenerator <dir> [scale] [seed]");
+         return;
+      }
+      File dir = new File(args[0]);
+      double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+      long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         System.err.println("Cannot create " + dir);
+         return;
+      }
+      new DataGenerator(dir, scale, seed).generate();
+   }//end main
+
+   public void generate() throws IOException {
+      long t0 = System.currentTimeMillis();
+      // every table has its own stream, so changing one count leaves the
+      // other tables as they were
+      report("stores.csv", writeStores(new Random(seed)));
+      report("users.csv", writeUsers(new Random(seed + 1)));
+      report("warehouse.csv", writeWarehouses(new Random(seed + 2)));
+      report("products.csv", writeProducts(new Random(seed + 3)));
+      report("orders.csv", writeOrders(new Random(seed + 4)));
+      report("productSupplyRequests.csv", writeSupplyRequests(new Random(seed + 5)));
+      report("productUpdates.csv", writeProductUpdates(new Random(seed + 6)));
+      System.out.println(String.format("done in %.1f s", (System.currentTimeMillis() - t0) / 1000.0));
+   }//end generate
+
+   private static void report(String file, long rows) {
+      System.out.println(String.format("%-28s %12d rows", file, rows));
+   }
+
+   private long writeStores(Random random) throws IOException {
+      int clusters = Math.max(1, stores / STORES_PER_CLUSTER);
+      clusterCenters = new double[clusters][];
+      storesByCluster = new ArrayList<List<Integer>>(clusters);
+      for (int c = 0; c < clusters; c++) {
+         // keep the centres away from the edges so clusters are not cut off
+         clusterCenters[c] = new double[] { 10 + random.nextDouble() * 80, 10 + random.nextDouble() * 80 };
+         storesByCluster.add(new ArrayList<Integer>());
+      }
+
+      Writer out = open("stores.csv", "storeID,name,latitude,longitude,managerID,dateEstablished");
+      try {
+         for (int storeID = 1; storeID <= stores; storeID++) {
+            int cluster = (storeID - 1) % clusters;
+            storesByCluster.get(cluster).add(storeID);
+            double[] center = clusterCenters[cluster];
+            row(out, storeID, letters(random, 4),
+                coordinate(center[0] + random.nextGaussian() * 2),
+                coordinate(center[1] + random.nextGaussian() * 2),
+                managerOf(storeID),
+                String.format("%d/%d/%d", 1 + random.nextInt(12), 1 + random.nextInt(28), 1950 + random.nextInt(66)));
+         }
+      } finally {
+         out.close();
+      }
+      return stores;
+   }//end writeStores
+
+   private long writeUsers(Random random) throws IOException {
+      userCluster = new int[users + 1];
+      Writer out = open("users.csv", "userID,name,password,latitude,longitude,type");
+      try {
+         for (int userID = 1; userID <= users; userID++) {
+            String type = userID == 1 ? "admin" : userID <= managers + 1 ? "manager" : "customer";
+            int cluster = random.nextInt(clusterCenters.length);
+            double lat;
+            double lon;
+            if (random.nextDouble() < 0.9) {
+               lat = clusterCenters[cluster][0] + random.nextGaussian() * 5;
+               lon = clusterCenters[cluster][1] + random.nextGaussian() * 5;
+            } else {
+               lat = random.nextDouble() * MAX_COORDINATE;
+               lon = random.nextDouble() * MAX_COORDINATE;
+            }
+            userCluster[userID] = cluster;
+            row(out, userID, "user" + userID, "xyz", coordinate(lat), coordinate(lon), type);
+         }
+      } finally {
+         out.close();
+      }
+      return users;
+   }//end writeUsers
+
+   private long writeWarehouses(Random random) throws IOException {
+      Writer out = open("warehouse.csv", "wareHouseID,area,latitude,longitude");
+      try {
+         for (int id = 1; id <= warehouses; id++) {
+            row(out, id, 5000 + random.nextInt(20000),
+                coordinate(random.nextDouble() * MAX_COORDINATE), coordinate(random.nextDouble() * MAX_COORDINATE));
+         }
+      } finally {
+         out.close();
+      }
+      return warehouses;
+   }//end writeWarehouses
+
+   private long writeProducts(Random random) throws IOException {
+      Writer out = open("products.csv", "storeID,productName,numberOfUnits,pricePerUnit");
+      try {
+         for (int storeID = 1; storeID <= stores; storeID++) {
+            for (String name : catalog) {
+               row(out, storeID, name, random.nextInt(1000), 1 + random.nextInt(20));
+            }
+         }
+      } finally {
+         out.close();
+      }
+      return (long) stores * catalog.length;
+   }//end writeProducts
+
+   private long writeOrders(Random random) throws IOException {
+      Zipf products = new Zipf(catalog.length, PRODUCT_SKEW);
+      Writer out = open("orders.csv", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime");
+      try {
+         for (long orderNumber = 1; orderNumber <= orders; orderNumber++) {
+            int customerID = 1 + random.nextInt(users);
+            List<Integer> nearby = storesByCluster.get(userCluster[customerID]);
+            int storeID = nearby.get(random.nextInt(nearby.size()));
+            // rotate the ranking per store so each store has its own best sellers
+            String product = catalog[(products.next(random) + storeID) % catalog.length];
+            long time = START + (orderNumber - 1) * SPAN / orders;
+            row(out, orderNumber, customerID, storeID, product, 1 + random.nextInt(10), timestamp(time));
+         }
+      } finally {
+         out.close();
+      }
+      return orders;
+   }//end writeOrders
+
+   private long writeSupplyRequests(Random random) throws IOException {
+      Writer out = open("productSupplyRequests.csv",
+                        "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested");
+      try {
+         for (int id = 1; id <= supplyRequests; id++) {
+            int storeID = 1 + random.nextInt(stores);
+            row(out, id, managerOf(storeID), 1 + random.nextInt(warehouses), storeID,
+                catalog[random.nextInt(catalog.length)], 1 + random.nextInt(100));
+         }
+      } finally {
+         out.close();
+      }
+      return supplyRequests;
+   }//end writeSupplyRequests
+
+   private long writeProductUpdates(Random random) throws IOException {
+      Writer out = open("productUpdates.csv", "updateNumber,managerID,storeID,productName,updatedOn");
+      try {
+         for (int id = 1; id <= productUpdates; id++) {
+            int storeID = 1 + random.nextInt(stores);
+            long time = START + (id - 1) * SPAN / productUpdates;
+            row(out, id, managerOf(storeID), storeID, catalog[random.nextInt(catalog.length)], timestamp(time));
+         }
+      } finally {
+         out.close();
+      }
+      return productUpdates;
+   }//end writeProductUpdates
+
+   // managers are users 2 .. managers + 1, each running every managers-th store
+   private int managerOf(int storeID) {
+      return 2 + (storeID - 1) % managers;
+   }
+
+   private static int scaled(int base, double scale) {
+      return (int) Math.max(1L, Math.round(base * scale));
+   }
+
+   private static String coordinate(double value) {
+      return String.format(Locale.ROOT, "%.6f", Math.max(0.0, Math.min(MAX_COORDINATE, value)));
+   }
+
+   private static String letters(Random random, int length) {
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++) chars[i] = (char) ('a' + random.nextInt(26));
+      return new String(chars);
+   }
+
+   // formats epoch seconds as yyyy-MM-dd HH:mm:ss (UTC)
+   private static String timestamp(long epochSeconds) {
+      LocalDateTime t = LocalDateTime.ofEpochSecond(epochSeconds, 0, ZoneOffset.UTC);
+      return String.format("%04d-%02d-%02d %02d:%02d:%02d",
+         t.getYear(), t.getMonthValue(), t.getDayOfMonth(), t.getHour(), t.getMinute(), t.getSecond());
+   }
+
+   private Writer open(String file, String header) throws IOException {
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+         new FileOutputStream(new File(dir, file)), StandardCharsets.UTF_8), 1 << 16);
+      out.write(header);
+      out.write('\n');
+      return out;
+   }
+
+   // none of the generated values contain commas or quotes
+   private static void row(Writer out, Object... values) throws IOException {
+      for (int i = 0; i < values.length; i++) {
+         if (i > 0) out.write(',');
+         out.write(String.valueOf(values[i]));
+      }
+      out.write('\n');
+   }
+
+   /**
+    * Draws ranks 0 .. n-1 with probability proportional to 1 / (rank+1)^s.
+    */
+   static class Zipf {
+      private final double[] cdf;
+
+      Zipf(int n, double s) {
+         cdf = new double[n];
+         double sum = 0;
+         for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            cdf[i] = sum;
+         }
+         for (int i = 0; i < n; i++) cdf[i] /= sum;
+      }
+
+      int next(Random random) {
+         double u = random.nextDouble();
+         int lo = 0;
+         int hi = cdf.length - 1;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cdf[mid] < u) lo = mid + 1;
+            else hi = mid;
+         }
+         return lo;
+      }
+   }//end Zipf
+}//end DataGenerator
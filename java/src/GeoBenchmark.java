@@ -0,0 +1,188 @@
+/*
+ * Radius query benchmark for the Retail application
+ * =================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+
+/**
+ * Compares three ways of answering "stores within r of a user" against
+ * synthetic Store tables of increasing size:
+ *
+ *   plpgsql   the original query: the plpgsql calculate_distance evaluated
+ *             on every row of Users x Store
+ *   gist      Retail's STORES_NEAR_QUERY, as retail.geo.mode=database
+ *             runs it: a bounding box test on point(latitude, longitude)
+ *             served by a GiST index, then calculate_distance on the rows
+ *             in the box
+ *   memory    GeoIndex in the JVM (load time reported separately)
+ *
+ * Everything runs on TEMP tables, so the real schema is left alone; only
+ * the calculate_distance function of create_tables.sql has to exist.
+ * Coordinates stay inside the decimal(8,6) range of the real schema, so
+ * the number of matches grows with the table size.
+ *
+ * Usage: java GeoBenchmark <dbname> <port> <user> [sizes] [radius] [queries]
+ *   e.g. java GeoBenchmark $USER"_DB" $PGPORT $USER 10000,100000,1000000 30 50
+ */
+public class GeoBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java GeoBenchmark <dbname> <port> <user> [sizes] [radius] [queries]");
+         return;
+      }
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      String[] sizes = (args.length > 3 ? args[3] : "10000,100000,1000000").split(",");
+      double radius = args.length > 4 ? Double.parseDouble(args[4]) : 30.0;
+      int queries = args.length > 5 ? Integer.parseInt(args[5]) : 50;
+
+      Class.forName("org.postgresql.Driver");
+      Connection conn = DriverManager.getConnection(url, args[2], "");
+      try {
+         setup(conn);
+         System.out.println(String.format("%10s %10s %14s %14s %14s %14s",
+            "stores", "avg rows", "plpgsql ms", "gist ms", "memory ms", "mem load ms"));
+         for (String size : sizes) {
+            run(conn, Integer.parseInt(size.trim()), radius, queries);
+         }
+      } finally {
+         conn.close();
+      }
+   }//end main
+
+   private static void setup(Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         // the pre-index definition of calculate_distance, kept here for comparison
+         stmt.executeUpdate(
+            "CREATE OR REPLACE FUNCTION pg_temp.plpgsql_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal) " +
+            "RETURNS decimal AS $dist$ BEGIN RETURN sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2)); END; " +
+            "$dist$ LANGUAGE plpgsql");
+         stmt.executeUpdate("DROP TABLE IF EXISTS bench_user");
+         stmt.executeUpdate("CREATE TEMP TABLE bench_user (userID integer PRIMARY KEY, latitude decimal(8,6), longitude decimal(9,6))");
+      } finally {
+         stmt.close();
+      }
+   }//end setup
+
+   private static void run(Connection conn, int stores, double radius, int queries) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         stmt.executeUpdate("DROP TABLE IF EXISTS bench_store");
+         stmt.executeUpdate("CREATE TEMP TABLE bench_store (storeID integer PRIMARY KEY, name char(30) NOT NULL, " +
+                            "latitude decimal(8,6) NOT NULL, longitude decimal(9,6) NOT NULL)");
+         stmt.executeQuery("SELECT setseed(0.166)").close();
+         stmt.executeUpdate("INSERT INTO bench_store SELECT g, 'store' || g, random() * 99.999, random() * 99.999 " +
+                            "FROM generate_series(1, " + stores + ") g");
+         stmt.executeUpdate("CREATE INDEX bench_store_location ON bench_store USING GIST (point(latitude, longitude))");
+         stmt.executeUpdate("ANALYZE bench_store");
+         stmt.executeUpdate("TRUNCATE bench_user");
+      } finally {
+         stmt.close();
+      }
+
+      // the same query points for every approach
+      Random random = new Random(stores);
+      double[][] points = new double[queries][2];
+      PreparedStatement insertUser = conn.prepareStatement("INSERT INTO bench_user VALUES (?, ?, ?)");
+      try {
+         for (int q = 0; q < queries; q++) {
+            points[q][0] = random.nextDouble() * 99.999;
+            points[q][1] = random.nextDouble() * 99.999;
+            insertUser.setInt(1, q);
+            insertUser.setDouble(2, points[q][0]);
+            insertUser.setDouble(3, points[q][1]);
+            insertUser.executeUpdate();
+         }
+      } finally {
+         insertUser.close();
+      }
+
+      PreparedStatement plpgsql = conn.prepareStatement(
+         "SELECT s.storeID, s.name, pg_temp.plpgsql_distance(u.latitude, u.longitude, s.latitude, s.longitude) AS dist " +
+         "FROM bench_user u, bench_store s WHERE u.userID = ? " +
+         "AND pg_temp.plpgsql_distance(u.latitude, u.longitude, s.latitude, s.longitude) <= ? ORDER BY dist");
+      // the application's query, pointed at the synthetic stores
+      String storesNear = Retail.STORES_NEAR_QUERY.replace("FROM Store s ", "FROM bench_store s ");
+      if (storesNear.equals(Retail.STORES_NEAR_QUERY)) {
+         throw new SQLException("Retail.STORES_NEAR_QUERY no longer reads 'FROM Store s'");
+      }
+      PreparedStatement gist = conn.prepareStatement(storesNear);
+      try {
+         long rows = 0;
+         long plpgsqlNanos = 0;
+         long gistNanos = 0;
+         for (int q = 0; q < queries; q++) {
+            double lat = points[q][0];
+            double lon = points[q][1];
+
+            plpgsql.setInt(1, q);
+            plpgsql.setDouble(2, radius);
+            long start = System.nanoTime();
+            rows += drain(plpgsql.executeQuery());
+            plpgsqlNanos += System.nanoTime() - start;
+
+            // bound as Retail.storesNear binds them
+            double[] params = {
+               lat, lon,
+               lat - radius, lon - radius, lat + radius, lon + radius,
+               lat, lon, radius
+            };
+            for (int i = 0; i < params.length; i++) {
+               gist.setDouble(i + 1, params[i]);
+            }
+            start = System.nanoTime();
+            drain(gist.executeQuery());
+            gistNanos += System.nanoTime() - start;
+         }
+
+         long start = System.nanoTime();
+         GeoIndex index = new GeoIndex(10.0);
+         Statement scan = conn.createStatement();
+         try {
+            ResultSet rs = scan.executeQuery("SELECT storeID, name, latitude, longitude FROM bench_store");
+            while (rs.next()) {
+               index.put(new GeoIndex.Entry(rs.getInt(1), rs.getString(2).trim(), rs.getDouble(3), rs.getDouble(4)));
+            }
+            rs.close();
+         } finally {
+            scan.close();
+         }
+         long loadNanos = System.nanoTime() - start;
+
+         long memoryNanos = 0;
+         for (int q = 0; q < queries; q++) {
+            start = System.nanoTime();
+            index.within(points[q][0], points[q][1], radius);
+            memoryNanos += System.nanoTime() - start;
+         }
+
+         System.out.println(String.format("%10d %10d %14.3f %14.3f %14.3f %14.1f",
+            stores, rows / queries,
+            plpgsqlNanos / 1e6 / queries, gistNanos / 1e6 / queries,
+            memoryNanos / 1e6 / queries, loadNanos / 1e6));
+      } finally {
+         plpgsql.close();
+         gist.close();
+      }
+   }//end run
+
+   private static int drain(ResultSet rs) throws SQLException {
+      int n = 0;
+      while (rs.next()) n++;
+      rs.close();
+      return n;
+   }
+}//end GeoBenchmark
@@ -0,0 +1,284 @@
+/*
+ * In-memory spatial index for the Retail application
+ * ==================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A uniform grid over (latitude, longitude) points, e.g. stores or
+ * warehouses, answering radius and k-nearest queries without touching the
+ * database.  Distances are the same euclidean distance used by
+ * Retail.calculateDistance and the calculate_distance SQL function.
+ *
+ * A radius query only visits the cells overlapping the query circle's
+ * bounding box, so its cost depends on how many points are nearby rather
+ * than on how many are indexed.  Reads may run concurrently; put/remove
+ * take a write lock.
+ */
+public class GeoIndex {
+
+   /**
+    * An indexed point.
+    */
+   public static class Entry {
+      public final int id;
+      public final String name;
+      public final double latitude;
+      public final double longitude;
+
+      public Entry(int id, String name, double latitude, double longitude) {
+         this.id = id;
+         this.name = name;
+         this.latitude = latitude;
+         this.longitude = longitude;
+      }
+   }//end Entry
+
+   /**
+    * A query result: the entry and its distance from the query point.
+    */
+   public static class Hit {
+      public final Entry entry;
+      public final double distance;
+
+      public Hit(Entry entry, double distance) {
+         this.entry = entry;
+         this.distance = distance;
+      }
+   }//end Hit
+
+   public static final Comparator<Hit> BY_DISTANCE = new Comparator<Hit>() {
+      public int compare(Hit a, Hit b) {
+         int c = Double.compare(a.distance, b.distance);
+         return c != 0 ? c : Integer.compare(a.entry.id, b.entry.id);
+      }
+   };
+
+   private final double cellSize;
+   private final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+   private final Map<Integer, Entry> byId = new HashMap<Integer, Entry>();
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+   // bounds of the occupied cells, used to stop k-nearest ring expansion
+   private int minCellX = Integer.MAX_VALUE, maxCellX = Integer.MIN_VALUE;
+   private int minCellY = Integer.MAX_VALUE, maxCellY = Integer.MIN_VALUE;
+
+   /**
+    * @param cellSize grid cell edge length in coordinate units; roughly the
+    *        typical query radius divided by two or three works well
+    */
+   public GeoIndex(double cellSize) {
+      this.cellSize = cellSize;
+   }
+
+   /**
+    * Inserts an entry, replacing any entry with the same id.
+    */
+   public void put(Entry entry) {
+      lock.writeLock().lock();
+      try {
+         removeLocked(entry.id);
+         int cx = cell(entry.latitude);
+         int cy = cell(entry.longitude);
+         List<Entry> bucket = cells.get(key(cx, cy));
+         if (bucket == null) {
+            bucket = new ArrayList<Entry>(4);
+            cells.put(key(cx, cy), bucket);
+         }
+         bucket.add(entry);
+         byId.put(entry.id, entry);
+         minCellX = Math.min(minCellX, cx);
+         maxCellX = Math.max(maxCellX, cx);
+         minCellY = Math.min(minCellY, cy);
+         maxCellY = Math.max(maxCellY, cy);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end put
+
+   /**
+    * Removes the entry with this id, if any.
+    */
+   public void remove(int id) {
+      lock.writeLock().lock();
+      try {
+         removeLocked(id);
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end remove
+
+   /**
+    * Drops every entry.
+    */
+   public void clear() {
+      lock.writeLock().lock();
+      try {
+         cells.clear();
+         byId.clear();
+         minCellX = minCellY = Integer.MAX_VALUE;
+         maxCellX = maxCellY = Integer.MIN_VALUE;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }//end clear
+
+   /**
+    * @return the entry with this id, or null
+    */
+   public Entry get(int id) {
+      lock.readLock().lock();
+      try {
+         return byId.get(id);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end get
+
+   public int size() {
+      lock.readLock().lock();
+      try {
+         return byId.size();
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end size
+
+   /**
+    * @return the highest id in the index, or Integer.MIN_VALUE when empty
+    */
+   public int maxId() {
+      lock.readLock().lock();
+      try {
+         int max = Integer.MIN_VALUE;
+         for (Integer id : byId.keySet()) max = Math.max(max, id);
+         return max;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end maxId
+
+   /**
+    * Finds every entry within radius (inclusive) of the point.
+    *
+    * @return the hits ordered by increasing distance
+    */
+   public List<Hit> within(double latitude, double longitude, double radius) {
+      List<Hit> hits = new ArrayList<Hit>();
+      lock.readLock().lock();
+      try {
+         int x0 = cell(latitude - radius), x1 = cell(latitude + radius);
+         int y0 = cell(longitude - radius), y1 = cell(longitude + radius);
+         for (int x = Math.max(x0, minCellX); x <= Math.min(x1, maxCellX); x++) {
+            for (int y = Math.max(y0, minCellY); y <= Math.min(y1, maxCellY); y++) {
+               List<Entry> bucket = cells.get(key(x, y));
+               if (bucket == null) continue;
+               for (Entry e : bucket) {
+                  double d = distance(latitude, longitude, e);
+                  if (d <= radius) hits.add(new Hit(e, d));
+               }
+            }
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      Collections.sort(hits, BY_DISTANCE);
+      return hits;
+   }//end within
+
+   /**
+    * Finds the k entries closest to the point by searching rings of cells
+    * outward from the point's cell until no unvisited cell can hold a closer
+    * entry than the k-th best found so far.
+    *
+    * @return up to k hits ordered by increasing distance
+    */
+   public List<Hit> nearest(double latitude, double longitude, int k) {
+      List<Hit> result = new ArrayList<Hit>();
+      if (k <= 0) return result;
+      // max-heap on distance holding the best k so far
+      PriorityQueue<Hit> best = new PriorityQueue<Hit>(k + 1, Collections.reverseOrder(BY_DISTANCE));
+      lock.readLock().lock();
+      try {
+         if (byId.isEmpty()) return result;
+         int cx = cell(latitude);
+         int cy = cell(longitude);
+         int maxRing = Math.max(Math.max(Math.abs(cx - minCellX), Math.abs(maxCellX - cx)),
+                                Math.max(Math.abs(cy - minCellY), Math.abs(maxCellY - cy)));
+         for (int ring = 0; ring <= maxRing; ring++) {
+            // every cell in this ring is at least (ring - 1) cells away
+            if (best.size() == k && (ring - 1) * cellSize > best.peek().distance) break;
+            for (int x = cx - ring; x <= cx + ring; x++) {
+               for (int y = cy - ring; y <= cy + ring; y++) {
+                  if (Math.abs(x - cx) != ring && Math.abs(y - cy) != ring) continue;
+                  List<Entry> bucket = cells.get(key(x, y));
+                  if (bucket == null) continue;
+                  for (Entry e : bucket) {
+                     Hit h = new Hit(e, distance(latitude, longitude, e));
+                     if (best.size() < k) {
+                        best.add(h);
+                     } else if (BY_DISTANCE.compare(h, best.peek()) < 0) {
+                        best.poll();
+                        best.add(h);
+                     }
+                  }
+               }
+            }
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      result.addAll(best);
+      Collections.sort(result, BY_DISTANCE);
+      return result;
+   }//end nearest
+
+   /**
+    * @return a snapshot of every entry
+    */
+   public Collection<Entry> entries() {
+      lock.readLock().lock();
+      try {
+         return new ArrayList<Entry>(byId.values());
+      } finally {
+         lock.readLock().unlock();
+      }
+   }//end entries
+
+   private void removeLocked(int id) {
+      Entry old = byId.remove(id);
+      if (old == null) return;
+      long k = key(cell(old.latitude), cell(old.longitude));
+      List<Entry> bucket = cells.get(k);
+      bucket.remove(old);
+      if (bucket.isEmpty()) cells.remove(k);
+   }
+
+   private int cell(double coordinate) {
+      return (int) Math.floor(coordinate / cellSize);
+   }
+
+   private static long key(int x, int y) {
+      return ((long) x << 32) | (y & 0xffffffffL);
+   }
+
+   private static double distance(double latitude, double longitude, Entry e) {
+      double t1 = (latitude - e.latitude) * (latitude - e.latitude);
+      double t2 = (longitude - e.longitude) * (longitude - e.longitude);
+      return Math.sqrt(t1 + t2);
+   }
+}//end GeoIndex
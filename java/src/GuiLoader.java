@@ -0,0 +1,149 @@
+/*
+ * Background loading for the Retail GUI
+ * =====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.awt.BorderLayout;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+
+
+/**
+ * Runs the GUI's database work on a small pool of background threads so
+ * the event dispatch thread (EDT) only ever paints and handles input.
+ *
+ * Work is a Callable that queries and returns plain data (rows, not Swing
+ * components); its result is handed to a callback on the EDT, which builds
+ * the components.  load() additionally shows a progress placeholder in the
+ * target component while the work runs.  Starting a new load into the same
+ * target makes the previous one stale: it is cancelled if it has not
+ * started yet, and its result is dropped if it has.
+ *
+ * Every method must be called on the EDT.
+ */
+public class GuiLoader {
+   public static final int THREADS = Integer.getInteger("retail.gui.loaderThreads", 4);
+
+   // client property of a target holding its latest Ticket
+   private static final String TICKET = "retail.gui.loader.ticket";
+
+   private static final ExecutorService EXECUTOR;
+   static {
+      final AtomicInteger count = new AtomicInteger();
+      EXECUTOR = Executors.newFixedThreadPool(Math.max(1, THREADS), r -> {
+         Thread t = new Thread(r, "retail-gui-loader-" + count.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   /**
+    * One submitted piece of work.
+    */
+   private static class Ticket {
+      volatile Future<?> future;
+      volatile boolean cancelled = false;
+
+      void cancel() {
+         cancelled = true;
+         // a running query is left to finish; its result is ignored
+         if (future != null) future.cancel(false);
+      }
+   }//end Ticket
+
+   private GuiLoader() {
+   }
+
+   /**
+    * Runs work in the background, then passes its result to done, or the
+    * exception it threw to failed, on the EDT.
+    */
+   public static <T> void submit(Callable<T> work, Consumer<T> done, Consumer<Exception> failed) {
+      submit(new Ticket(), work, done, failed);
+   }
+
+   /**
+    * Replaces target's contents with a "Loading what..." placeholder, runs
+    * work in the background and, unless another load into target was
+    * started meanwhile, replaces the placeholder with whatever show adds
+    * to target.  Failures are reported in target instead.
+    */
+   public static <T> void load(final JComponent target, final String what, Callable<T> work, final Consumer<T> show) {
+      Object previous = target.getClientProperty(TICKET);
+      if (previous instanceof Ticket) ((Ticket) previous).cancel();
+      final Ticket ticket = new Ticket();
+      target.putClientProperty(TICKET, ticket);
+      replace(target, placeholder("Loading " + what + "..."));
+
+      submit(ticket, work, result -> {
+         if (target.getClientProperty(TICKET) != ticket) return;
+         target.putClientProperty(TICKET, null);
+         target.removeAll();
+         show.accept(result);
+         target.revalidate();
+         target.repaint();
+      }, e -> {
+         if (target.getClientProperty(TICKET) != ticket) return;
+         target.putClientProperty(TICKET, null);
+         System.err.println("Couldn't load " + what + ": " + e.getMessage());
+         replace(target, new JLabel("Couldn't load " + what + ": " + e.getMessage()));
+      });
+   }//end load
+
+   /**
+    * Cancels the load into target, if one is running, and keeps the
+    * current contents.
+    */
+   public static void cancel(JComponent target) {
+      Object previous = target.getClientProperty(TICKET);
+      if (previous instanceof Ticket) ((Ticket) previous).cancel();
+      target.putClientProperty(TICKET, null);
+   }
+
+   private static <T> void submit(final Ticket ticket, final Callable<T> work,
+                                  final Consumer<T> done, final Consumer<Exception> failed) {
+      ticket.future = EXECUTOR.submit(() -> {
+         if (ticket.cancelled) return;
+         try {
+            final T result = work.call();
+            SwingUtilities.invokeLater(() -> {
+               if (!ticket.cancelled) done.accept(result);
+            });
+         } catch (final Exception e) {
+            SwingUtilities.invokeLater(() -> {
+               if (!ticket.cancelled) failed.accept(e);
+            });
+         }
+      });
+   }//end submit
+
+   private static JComponent placeholder(String text) {
+      JPanel panel = new JPanel(new BorderLayout(0, 4));
+      panel.setOpaque(false);
+      JProgressBar bar = new JProgressBar();
+      bar.setIndeterminate(true);
+      panel.add(new JLabel(text), BorderLayout.NORTH);
+      panel.add(bar, BorderLayout.CENTER);
+      return panel;
+   }
+
+   private static void replace(JComponent target, JComponent content) {
+      target.removeAll();
+      target.add(content);
+      target.revalidate();
+      target.repaint();
+   }
+}//end GuiLoader
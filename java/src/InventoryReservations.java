@@ -0,0 +1,487 @@
+/*
+ * Inventory reservations for the Retail application
+ * =================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Takes ordered units out of Product.numberOfUnits without overselling.
+ * This is the only place stock is decremented; the Orders trigger no longer
+ * does it.
+ *
+ * The normal path is one conditional statement run in the caller's
+ * transaction:
+ *
+ *   UPDATE Product SET numberOfUnits = numberOfUnits - n
+ *   WHERE storeID = ? AND productName = ? AND numberOfUnits >= n
+ *
+ * It checks and decrements in one step, so no read can go stale.  The row
+ * stays locked only until the caller commits, never while a user is
+ * typing.
+ *
+ * A product reserved more than hotThreshold times in one flushIntervalMs
+ * window becomes "hot".  For a hot product, leaseSize units are leased from
+ * Product in a short transaction of their own and spread over striped
+ * in-memory counters.  Buyers then reserve with a compare-and-set on one
+ * stripe instead of queueing on the row lock.
+ *
+ * Every flushIntervalMs the unused leased units are written back to
+ * Product.  Product therefore under-reports a hot product's stock by at
+ * most one lease, for at most one interval.  If the process dies, the
+ * unused part of the current leases stays deducted until a manager next
+ * updates the product.
+ */
+public class InventoryReservations {
+
+   /**
+    * Hot-product knobs, overridable with -Dretail.inventory.<name>=<value>.
+    */
+   public static class Config {
+      public int hotThreshold = 50;
+      public int leaseSize = 100;
+      public int stripes = 16;
+      public long flushIntervalMs = 1000;
+
+      public static Config fromSystemProperties() {
+         Config config = new Config();
+         config.hotThreshold = Integer.getInteger("retail.inventory.hotThreshold", config.hotThreshold);
+         config.leaseSize = Integer.getInteger("retail.inventory.leaseSize", config.leaseSize);
+         config.stripes = Integer.getInteger("retail.inventory.stripes", config.stripes);
+         config.flushIntervalMs = Long.getLong("retail.inventory.flushIntervalMs", config.flushIntervalMs);
+         if (config.stripes < 1) config.stripes = 1;
+         if (config.leaseSize < 1) config.leaseSize = 1;
+         if (config.flushIntervalMs < 10) config.flushIntervalMs = 10;
+         return config;
+      }
+   }//end Config
+
+   /**
+    * One product reservation.  After reserve() either refused is set or the
+    * units have been taken.
+    */
+   public static class Request {
+      public final int storeID;
+      public final String productName;
+      public final int units;
+      // why the reservation failed, or null
+      public IOException refused;
+      // the units came from a hot product's lease rather than the row
+      private HotStock hot;
+
+      public Request(int storeID, String productName, int units) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.units = units;
+      }
+   }//end Request
+
+   /*
+    * Units leased from one hot product, spread over stripes so concurrent
+    * buyers mostly touch different counters.
+    */
+   private static class HotStock {
+      final int storeID;
+      final String productName;
+      final AtomicInteger[] stripes;
+      // set once the product has cooled down or was evicted; units given
+      // back after that go straight to Product
+      volatile boolean retired = false;
+
+      HotStock(int storeID, String productName, int stripeCount) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.stripes = new AtomicInteger[stripeCount];
+         for (int i = 0; i < stripeCount; i++) stripes[i] = new AtomicInteger();
+      }
+
+      // takes units from one stripe when one holds enough, otherwise
+      // gathers them from several; returns the units taken, which are fewer
+      // than asked for when all the stripes together hold fewer, and which
+      // the caller then has to give back (see giveBack)
+      int take(int units) {
+         int start = (int) (Thread.currentThread().getId() % stripes.length);
+         for (int i = 0; i < stripes.length; i++) {
+            AtomicInteger stripe = stripes[(start + i) % stripes.length];
+            int current = stripe.get();
+            while (current >= units) {
+               if (stripe.compareAndSet(current, current - units)) return units;
+               current = stripe.get();
+            }
+         }
+         int taken = 0;
+         for (int i = 0; i < stripes.length && taken < units; i++) {
+            AtomicInteger stripe = stripes[(start + i) % stripes.length];
+            int current = stripe.get();
+            while (current > 0) {
+               int part = Math.min(current, units - taken);
+               if (stripe.compareAndSet(current, current - part)) {
+                  taken += part;
+                  break;
+               }
+               current = stripe.get();
+            }
+         }
+         return taken;
+      }
+
+      // spreads units over the stripes, so the next takers find them
+      // wherever they start
+      void spread(int units) {
+         int share = units / stripes.length;
+         int rest = units % stripes.length;
+         for (int i = 0; i < stripes.length; i++) {
+            int n = share + (i < rest ? 1 : 0);
+            if (n > 0) stripes[i].addAndGet(n);
+         }
+      }
+
+      void put(int units) {
+         stripes[(int) (Thread.currentThread().getId() % stripes.length)].addAndGet(units);
+      }
+
+      int held() {
+         int total = 0;
+         for (AtomicInteger stripe : stripes) total += stripe.get();
+         return total;
+      }
+
+      int drain() {
+         int total = 0;
+         for (AtomicInteger stripe : stripes) total += stripe.getAndSet(0);
+         return total;
+      }
+   }//end HotStock
+
+   private static final String RESERVE =
+      "UPDATE Product SET numberOfUnits = numberOfUnits - ? WHERE storeID = ? AND productName = ? AND numberOfUnits >= ?";
+   private static final String RESERVE_RETURNING = RESERVE + " RETURNING numberOfUnits";
+   private static final String RETURN_UNITS =
+      "UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ?";
+   // leases up to ? units, however many are left, and says how many it took
+   private static final String LEASE =
+      "UPDATE Product P SET numberOfUnits = P.numberOfUnits - L.units " +
+      "FROM (SELECT LEAST(?, numberOfUnits) AS units FROM Product WHERE storeID = ? AND productName = ? FOR UPDATE) L " +
+      "WHERE P.storeID = ? AND P.productName = ? AND L.units > 0 RETURNING L.units";
+   private static final String STOCK =
+      "SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?";
+
+   private final ConnectionPool pool;
+   private final Config config;
+   private final ConcurrentHashMap<String, HotStock> hot = new ConcurrentHashMap<String, HotStock>();
+   // reservations per product in the current window, for spotting hot ones
+   private volatile ConcurrentHashMap<String, AtomicInteger> demand = new ConcurrentHashMap<String, AtomicInteger>();
+   // products whose numberOfUnits a manager is setting, with how many
+   // updates are in progress; they are not leased until the updates are done
+   private final ConcurrentHashMap<String, Integer> updating = new ConcurrentHashMap<String, Integer>();
+   private final ScheduledExecutorService flusher;
+
+   public InventoryReservations(ConnectionPool pool, Config config) {
+      this.pool = pool;
+      this.config = config;
+      this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "retail-inventory-flush");
+         t.setDaemon(true);
+         return t;
+      });
+      this.flusher.scheduleWithFixedDelay(this::flush,
+         config.flushIntervalMs, config.flushIntervalMs, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Reserves one product in pc's open transaction, reporting the stock
+    * left afterwards in the refusal message when there is not enough.
+    *
+    * @throws java.sql.SQLException when the reservation could not be run
+    */
+   public void reserve(ConnectionPool.PooledConnection pc, Request request) throws SQLException {
+      if (reserveHot(request)) return;
+      PreparedStatement stmt = pc.statements().prepare(RESERVE_RETURNING);
+      bindReserve(stmt, request);
+      ResultSet rs = stmt.executeQuery();
+      boolean taken = rs.next();
+      rs.close();
+      if (!taken) request.refused = refusal(pc, request);
+   }//end reserve
+
+   /**
+    * Reserves every request, in order, in pc's open transaction.  Requests
+    * for the same product see the stock left by the ones before them.  The
+    * row updates are sent as one JDBC batch.
+    *
+    * @throws java.sql.SQLException when the reservations could not be run;
+    *         call cancel() before rolling back
+    */
+   public void reserve(ConnectionPool.PooledConnection pc, List<Request> requests) throws SQLException {
+      List<Request> cold = new ArrayList<Request>(requests.size());
+      for (Request request : requests) {
+         if (!reserveHot(request)) cold.add(request);
+      }
+      if (cold.isEmpty()) return;
+
+      PreparedStatement stmt = pc.statements().prepare(RESERVE);
+      int[] counts;
+      try {
+         for (Request request : cold) {
+            bindReserve(stmt, request);
+            stmt.addBatch();
+         }
+         counts = stmt.executeBatch();
+      } finally {
+         stmt.clearBatch();
+      }
+      for (int i = 0; i < cold.size(); i++) {
+         // the driver reports rows matched per statement; 0 means the guard failed
+         if (counts[i] == 0) cold.get(i).refused = refusal(pc, cold.get(i));
+      }
+   }//end reserve
+
+   /**
+    * Gives back the hot-product units taken by requests whose transaction
+    * is being rolled back.  Row reservations need nothing: the rollback
+    * undoes them.
+    */
+   public void cancel(List<Request> requests) {
+      for (Request request : requests) {
+         if (request.hot == null || request.refused != null) continue;
+         HotStock stock = request.hot;
+         request.hot = null;
+         giveBack(stock, request.units);
+      }
+   }//end cancel
+
+   /**
+    * Writes a product's leased units back to Product and stops serving it
+    * from memory.  Call this before setting numberOfUnits directly.
+    */
+   public void evict(int storeID, String productName) {
+      HotStock stock = hot.remove(key(storeID, productName));
+      if (stock != null) retire(stock);
+   }//end evict
+
+   /**
+    * Writes a product's leased units back, as evict() does, and keeps it
+    * from being leased again until endUpdate().  Bracket a statement that
+    * sets numberOfUnits with these, so no lease taken from the old count is
+    * handed back on top of the new one.
+    */
+   public void beginUpdate(int storeID, String productName) {
+      updating.merge(key(storeID, productName), 1, Integer::sum);
+      // after the marker: a lease either sees it or ran before it, in which
+      // case its stock is in hot and is retired here
+      evict(storeID, productName);
+   }//end beginUpdate
+
+   /**
+    * Lets the product be leased again once its update has committed or
+    * failed.
+    */
+   public void endUpdate(int storeID, String productName) {
+      updating.computeIfPresent(key(storeID, productName), (k, n) -> n == 1 ? null : n - 1);
+   }//end endUpdate
+
+   /**
+    * @return the units of a hot product leased into memory and not yet
+    *         sold, which Product.numberOfUnits does not count; 0 for a
+    *         product served from the row
+    */
+   public int leasedUnits(int storeID, String productName) {
+      HotStock stock = hot.get(key(storeID, productName));
+      return stock == null ? 0 : stock.held();
+   }
+
+   /**
+    * @return the number of products currently served from memory
+    */
+   public int hotProducts() {
+      return hot.size();
+   }
+
+   /**
+    * Writes every lease back and stops the flusher.
+    */
+   public void close() {
+      flusher.shutdownNow();
+      for (String k : new ArrayList<String>(hot.keySet())) {
+         HotStock stock = hot.remove(k);
+         if (stock != null) retire(stock);
+      }
+   }//end close
+
+   private boolean reserveHot(Request request) {
+      if (config.hotThreshold <= 0 || request.units > config.leaseSize) return false;
+      String k = key(request.storeID, request.productName);
+      if (updating.containsKey(k)) return false;
+      int recent = countDemand(k);
+      HotStock stock = hot.get(k);
+      if (stock == null) {
+         if (recent < config.hotThreshold) return false;
+         stock = new HotStock(request.storeID, request.productName, config.stripes);
+         HotStock raced = hot.putIfAbsent(k, stock);
+         if (raced != null) stock = raced;
+      }
+      while (true) {
+         int taken = stock.take(request.units);
+         if (taken == request.units) break;
+         if (taken > 0) giveBack(stock, taken);
+         if (!lease(stock)) return false;
+      }
+      request.hot = stock;
+      return true;
+   }//end reserveHot
+
+   /*
+    * Puts units taken from a hot product back into its stripes, or into
+    * Product once it has been retired.  The check and the put happen under
+    * the lock retire() drains under, so no units can land in stripes that
+    * have already been drained for the last time.
+    */
+   private void giveBack(HotStock stock, int units) {
+      synchronized (stock) {
+         if (!stock.retired) {
+            stock.put(units);
+            return;
+         }
+      }
+      returnUnits(stock.storeID, stock.productName, units);
+   }//end giveBack
+
+   // counts a reservation in the current window and returns the window's total
+   private int countDemand(String k) {
+      ConcurrentHashMap<String, AtomicInteger> window = demand;
+      AtomicInteger count = window.get(k);
+      if (count == null) {
+         AtomicInteger raced = window.putIfAbsent(k, count = new AtomicInteger());
+         if (raced != null) count = raced;
+      }
+      return count.incrementAndGet();
+   }
+
+   /*
+    * Moves leaseSize units from Product into the stripes in a transaction of
+    * its own, so a buyer's rollback cannot undo a lease the stripes still
+    * hold.  Near sell-out it leases whatever is left, so the last units can
+    * still be bought.  Returns false when Product has no units left to
+    * lease, in which case buyers fall back to reserving the row directly.
+    */
+   private boolean lease(HotStock stock) {
+      synchronized (stock) {
+         if (stock.retired || updating.containsKey(key(stock.storeID, stock.productName))) return false;
+         int leased;
+         ConnectionPool.PooledConnection pc = null;
+         try {
+            pc = pool.acquire();
+            PreparedStatement stmt = pc.statements().prepare(LEASE);
+            stmt.setInt(1, config.leaseSize);
+            stmt.setInt(2, stock.storeID);
+            stmt.setString(3, stock.productName);
+            stmt.setInt(4, stock.storeID);
+            stmt.setString(5, stock.productName);
+            ResultSet rs = stmt.executeQuery();
+            try {
+               if (!rs.next()) return false;
+               leased = rs.getInt(1);
+            } finally {
+               rs.close();
+            }
+         } catch (SQLException e) {
+            return false;
+         } finally {
+            pool.release(pc);
+         }
+         stock.spread(leased);
+         return true;
+      }
+   }//end lease
+
+   /*
+    * Runs every flushIntervalMs: writes the unused lease of every hot
+    * product back to Product, and retires the products whose demand in the
+    * last window fell below hotThreshold.
+    */
+   private void flush() {
+      ConcurrentHashMap<String, AtomicInteger> window = demand;
+      demand = new ConcurrentHashMap<String, AtomicInteger>();
+      for (Map.Entry<String, HotStock> e : hot.entrySet()) {
+         HotStock stock = e.getValue();
+         AtomicInteger count = window.get(e.getKey());
+         if (count == null || count.get() < config.hotThreshold) {
+            if (hot.remove(e.getKey(), stock)) retire(stock);
+            continue;
+         }
+         synchronized (stock) {
+            int unused = stock.drain();
+            if (unused > 0) returnUnits(stock.storeID, stock.productName, unused);
+         }
+      }
+   }//end flush
+
+   private void retire(HotStock stock) {
+      synchronized (stock) {
+         stock.retired = true;
+         int unused = stock.drain();
+         if (unused > 0) returnUnits(stock.storeID, stock.productName, unused);
+      }
+   }//end retire
+
+   private void returnUnits(int storeID, String productName, int units) {
+      ConnectionPool.PooledConnection pc = null;
+      try {
+         pc = pool.acquire();
+         PreparedStatement stmt = pc.statements().prepare(RETURN_UNITS);
+         stmt.setInt(1, units);
+         stmt.setInt(2, storeID);
+         stmt.setString(3, productName);
+         stmt.executeUpdate();
+      } catch (SQLException e) {
+         System.err.println(String.format("Could not return %d leased unit(s) of '%s' to store %d: %s",
+            units, productName, storeID, e.getMessage()));
+      } finally {
+         pool.release(pc);
+      }
+   }//end returnUnits
+
+   private static void bindReserve(PreparedStatement stmt, Request request) throws SQLException {
+      stmt.setInt(1, request.units);
+      stmt.setInt(2, request.storeID);
+      stmt.setString(3, request.productName);
+      stmt.setInt(4, request.units);
+   }
+
+   // only run for failed reservations, to say why
+   private static IOException refusal(ConnectionPool.PooledConnection pc, Request request) throws SQLException {
+      PreparedStatement stmt = pc.statements().prepare(STOCK);
+      stmt.setInt(1, request.storeID);
+      stmt.setString(2, request.productName);
+      ResultSet rs = stmt.executeQuery();
+      try {
+         if (!rs.next()) return new IOException("Product does not exist at this store");
+         return new IOException(String.format("Not enough inventory. Store only has %s units available.", rs.getInt(1)));
+      } finally {
+         rs.close();
+      }
+   }
+
+   // Product is keyed by (storeID, char(30) productName), which ignores trailing blanks
+   static String key(int storeID, String productName) {
+      int end = productName.length();
+      while (end > 0 && productName.charAt(end - 1) == ' ') end--;
+      return storeID + "/" + productName.substring(0, end);
+   }
+}//end InventoryReservations
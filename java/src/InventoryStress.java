@@ -0,0 +1,235 @@
+/*
+ * Inventory reservation stress run for the Retail application
+ * ===========================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Lets many concurrent buyers order one unit at a time of a single product
+ * until more units have been asked for than exist, then checks that no
+ * unit was sold twice:
+ *
+ *   orders written  <=  starting stock
+ *   stock left      ==  starting stock - orders written, and never negative
+ *
+ * Three strategies are compared:
+ *
+ *   naive   the old placeOrder: read the stock, then insert the order and
+ *           decrement without a guard, each in autocommit (expected to
+ *           oversell)
+ *   row     InventoryReservations' conditional UPDATE in the order's
+ *           transaction
+ *   hot     the same with the product served from striped in-memory leases
+ *
+ * The run adds a throwaway product to the first store and removes it, with
+ * its orders, when done.
+ *
+ * Usage: java InventoryStress <dbname> <port> <user> [buyers] [stock] [modes]
+ *   e.g. java InventoryStress $USER"_DB" $PGPORT $USER 64 5000 naive,row,hot
+ */
+public class InventoryStress {
+
+   private static final String PRODUCT = "stress-test-product";
+   private static final String INSERT_ORDER =
+      "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (?, ?, ?, 1, current_timestamp)";
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java InventoryStress <dbname> <port> <user> [buyers] [stock] [modes]");
+         return;
+      }
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      int buyers = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+      int stock = args.length > 4 ? Integer.parseInt(args[4]) : 5000;
+      String[] modes = (args.length > 5 ? args[5] : "naive,row,hot").split(",");
+
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool.Config poolConfig = ConnectionPool.Config.fromSystemProperties();
+      // one connection per buyer plus a few for leases and write-backs
+      poolConfig.maxSize = Integer.getInteger("retail.pool.maxSize", buyers + 4);
+      ConnectionPool pool = new ConnectionPool(url, args[2], "", poolConfig);
+      try {
+         int[] ids = firstStoreAndCustomer(pool);
+         System.out.println(String.format("%d buyers, %d units at store %d, %d attempts per buyer",
+            buyers, stock, ids[0], attemptsPerBuyer(stock, buyers)));
+         System.out.println(String.format("%8s %10s %10s %10s %10s %12s %8s",
+            "mode", "sold", "refused", "errors", "left", "attempts/s", "oversold"));
+         for (String mode : modes) {
+            run(pool, mode.trim(), ids[0], ids[1], buyers, stock);
+         }
+      } finally {
+         pool.close();
+      }
+   }//end main
+
+   // every buyer keeps trying until a quarter more units were asked for than exist
+   private static int attemptsPerBuyer(int stock, int buyers) {
+      return (int) Math.ceil(stock * 1.25 / buyers);
+   }
+
+   private static void run(ConnectionPool pool, final String mode, final int storeID, final int customerID,
+                           int buyers, int stock) throws Exception {
+      InventoryReservations.Config config = InventoryReservations.Config.fromSystemProperties();
+      // 0 keeps every reservation on the row; 1 makes the product hot at once
+      config.hotThreshold = "hot".equals(mode) ? 1 : 0;
+      final InventoryReservations inventory = new InventoryReservations(pool, config);
+
+      update(pool, "INSERT INTO Product (storeID, productName, numberOfUnits, pricePerUnit) VALUES (?, ?, ?, 1)",
+             storeID, PRODUCT, stock);
+      final AtomicLong sold = new AtomicLong();
+      final AtomicLong refused = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final int attempts = attemptsPerBuyer(stock, buyers);
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(buyers);
+      long elapsed;
+      try {
+         for (int b = 0; b < buyers; b++) {
+            Thread buyer = new Thread(() -> {
+               try {
+                  start.await();
+                  for (int i = 0; i < attempts; i++) {
+                     try {
+                        boolean ok = "naive".equals(mode)
+                           ? buyNaive(pool, storeID, customerID)
+                           : buyReserved(pool, inventory, storeID, customerID);
+                        (ok ? sold : refused).incrementAndGet();
+                     } catch (SQLException e) {
+                        errors.incrementAndGet();
+                     }
+                  }
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               } finally {
+                  done.countDown();
+               }
+            }, "buyer-" + b);
+            buyer.start();
+         }
+         long t0 = System.nanoTime();
+         start.countDown();
+         done.await();
+         elapsed = System.nanoTime() - t0;
+      } finally {
+         // hands any leased units back to Product before counting
+         inventory.close();
+      }
+
+      int left = queryInt(pool, "SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?", storeID, PRODUCT);
+      int written = queryInt(pool, "SELECT COUNT(*) FROM Orders WHERE storeID = ? AND productName = ?", storeID, PRODUCT);
+      boolean oversold = written > stock || left < 0 || left != stock - written;
+      System.out.println(String.format("%8s %10d %10d %10d %10d %12.0f %8s",
+         mode, written, refused.get(), errors.get(), left,
+         (sold.get() + refused.get() + errors.get()) / (elapsed / 1e9), oversold ? "YES" : "no"));
+
+      update(pool, "DELETE FROM Orders WHERE storeID = ? AND productName = ?", storeID, PRODUCT);
+      update(pool, "DELETE FROM Product WHERE storeID = ? AND productName = ?", storeID, PRODUCT);
+   }//end run
+
+   // the pre-reservation placeOrder: check, then insert and decrement blindly
+   private static boolean buyNaive(ConnectionPool pool, int storeID, int customerID) throws SQLException {
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         PreparedStatement check = pc.statements().prepare(
+            "SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?");
+         check.setInt(1, storeID);
+         check.setString(2, PRODUCT);
+         ResultSet rs = check.executeQuery();
+         int available = rs.next() ? rs.getInt(1) : 0;
+         rs.close();
+         if (available < 1) return false;
+
+         PreparedStatement insert = pc.statements().prepare(INSERT_ORDER);
+         insert.setInt(1, customerID);
+         insert.setInt(2, storeID);
+         insert.setString(3, PRODUCT);
+         insert.executeUpdate();
+         PreparedStatement decrement = pc.statements().prepare(
+            "UPDATE Product SET numberOfUnits = numberOfUnits - 1 WHERE storeID = ? AND productName = ?");
+         decrement.setInt(1, storeID);
+         decrement.setString(2, PRODUCT);
+         decrement.executeUpdate();
+         return true;
+      } finally {
+         pool.release(pc);
+      }
+   }//end buyNaive
+
+   private static boolean buyReserved(ConnectionPool pool, InventoryReservations inventory,
+                                      int storeID, int customerID) throws SQLException {
+      InventoryReservations.Request request = new InventoryReservations.Request(storeID, PRODUCT, 1);
+      List<InventoryReservations.Request> requests = new ArrayList<InventoryReservations.Request>(1);
+      requests.add(request);
+      boolean committed = false;
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         pc.connection().setAutoCommit(false);
+         inventory.reserve(pc, request);
+         if (request.refused != null) return false;
+         PreparedStatement insert = pc.statements().prepare(INSERT_ORDER);
+         insert.setInt(1, customerID);
+         insert.setInt(2, storeID);
+         insert.setString(3, PRODUCT);
+         insert.executeUpdate();
+         pc.connection().commit();
+         committed = true;
+         return true;
+      } finally {
+         if (!committed) inventory.cancel(requests);
+         pool.release(pc);
+      }
+   }//end buyReserved
+
+   private static int[] firstStoreAndCustomer(ConnectionPool pool) throws SQLException {
+      int store = queryInt(pool, "SELECT MIN(storeID) FROM Store");
+      int customer = queryInt(pool, "SELECT MIN(userID) FROM Users");
+      return new int[] { store, customer };
+   }
+
+   private static int queryInt(ConnectionPool pool, String sql, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         PreparedStatement stmt = pc.statements().prepare(sql);
+         bind(stmt, params);
+         ResultSet rs = stmt.executeQuery();
+         try {
+            if (!rs.next()) throw new SQLException("No rows for: " + sql);
+            return rs.getInt(1);
+         } finally {
+            rs.close();
+         }
+      } finally {
+         pool.release(pc);
+      }
+   }
+
+   private static void update(ConnectionPool pool, String sql, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         PreparedStatement stmt = pc.statements().prepare(sql);
+         bind(stmt, params);
+         stmt.executeUpdate();
+      } finally {
+         pool.release(pc);
+      }
+   }
+
+   private static void bind(PreparedStatement stmt, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; i++) {
+         if (params[i] instanceof Integer) stmt.setInt(i + 1, (Integer) params[i]);
+         else stmt.setString(i + 1, params[i].toString());
+      }
+   }
+}//end InventoryStress
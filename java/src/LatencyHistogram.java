@@ -0,0 +1,101 @@
+/*
+ * Latency histogram for the Retail application
+ * ============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * Counts latencies in microseconds with about 1.5% precision using a fixed
+ * array of buckets: values below 128us get one bucket each, and every
+ * power of two above that is split into 64 equal buckets.  Recording is
+ * constant time and allocation free, and the array stays at a few KB
+ * whether it holds ten values or a billion.
+ *
+ * Not thread-safe: give each thread its own histogram and merge() them
+ * when the run is over.
+ */
+public class LatencyHistogram {
+   private static final int SUB_BUCKETS = 64;
+   private static final int LINEAR = 2 * SUB_BUCKETS;
+   // up to 2^40us, about 12 days
+   private static final int MAX_SHIFT = 34;
+
+   private final long[] counts = new long[LINEAR + MAX_SHIFT * SUB_BUCKETS];
+   private long count = 0;
+   private long sum = 0;
+   private long max = 0;
+
+   public void recordNanos(long nanos) {
+      record(Math.max(0, nanos / 1000));
+   }
+
+   /**
+    * Records one latency, in microseconds.
+    */
+   public void record(long micros) {
+      counts[index(micros)]++;
+      count++;
+      sum += micros;
+      if (micros > max) max = micros;
+   }
+
+   /**
+    * Adds every value recorded by other to this histogram.
+    */
+   public void merge(LatencyHistogram other) {
+      for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+      count += other.count;
+      sum += other.sum;
+      if (other.max > max) max = other.max;
+   }
+
+   public long getCount() {
+      return count;
+   }
+
+   /**
+    * @return the mean latency in microseconds, or 0 when nothing was recorded
+    */
+   public double getMean() {
+      return count == 0 ? 0 : sum / (double) count;
+   }
+
+   public long getMax() {
+      return max;
+   }
+
+   /**
+    * @param percentile between 0 and 100, e.g. 99.9
+    * @return the highest value of the bucket holding that percentile, in
+    *         microseconds, or 0 when nothing was recorded
+    */
+   public long getPercentile(double percentile) {
+      if (count == 0) return 0;
+      long rank = (long) Math.ceil(percentile / 100.0 * count);
+      if (rank < 1) rank = 1;
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+         seen += counts[i];
+         if (seen >= rank) return Math.min(max, highestValue(i));
+      }
+      return max;
+   }
+
+   private static int index(long micros) {
+      if (micros < LINEAR) return (int) micros;
+      int shift = 63 - Long.numberOfLeadingZeros(micros) - 6;
+      if (shift > MAX_SHIFT) return LINEAR + MAX_SHIFT * SUB_BUCKETS - 1;
+      // micros >> shift is in [64, 128)
+      return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((micros >> shift) - SUB_BUCKETS);
+   }
+
+   private static long highestValue(int index) {
+      if (index < LINEAR) return index;
+      int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+      long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+      return ((top + 1) << shift) - 1;
+   }
+}//end LatencyHistogram
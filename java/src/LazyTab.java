@@ -0,0 +1,97 @@
+/*
+ * Lazily built tabs for the Retail GUI
+ * ====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.util.function.Supplier;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.JTabbedPane;
+
+
+/**
+ * A tab whose panel is built the first time the tab is selected instead
+ * of when the tab is added, so logging in only queries for the tab that is
+ * actually shown.  Once built the panel is kept, and switching back to the
+ * tab shows it as it was; the Refresh button above it builds it again,
+ * which re-runs its queries.
+ *
+ * With retail.gui.lazyTabs=false every tab is built as soon as it is
+ * created, as the GUI used to do, which is useful for comparing login
+ * times.  Every method must be called on the event dispatch thread.
+ */
+public class LazyTab extends JPanel {
+   private static final long serialVersionUID = 1L;
+
+   public static final boolean LAZY = !"false".equals(System.getProperty("retail.gui.lazyTabs"));
+
+   private final Supplier<JComponent> factory;
+   private final JPanel body = new JPanel(new BorderLayout());
+   private boolean built = false;
+
+   /**
+    * @param factory builds the tab's panel; called on the first selection
+    *        and on every refresh
+    */
+   public LazyTab(Supplier<JComponent> factory) {
+      super(new BorderLayout());
+      this.factory = factory;
+      setOpaque(false);
+      body.setOpaque(false);
+
+      JButton refresh = new JButton("Refresh");
+      refresh.addActionListener(e -> refresh());
+      JPanel bar = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+      bar.setOpaque(false);
+      bar.add(refresh);
+
+      add(bar, BorderLayout.NORTH);
+      add(body, BorderLayout.CENTER);
+      if (!LAZY) build();
+   }
+
+   /**
+    * Builds the panel unless that has been done already.
+    */
+   public void load() {
+      if (!built) build();
+   }
+
+   /**
+    * Throws the panel away and builds it again.
+    */
+   public void refresh() {
+      build();
+   }
+
+   public boolean isBuilt() {
+      return built;
+   }
+
+   /**
+    * Makes every LazyTab in tabs load when it is selected, starting with
+    * the one selected now.
+    */
+   public static void install(final JTabbedPane tabs) {
+      tabs.addChangeListener(e -> {
+         if (tabs.getSelectedComponent() instanceof LazyTab) ((LazyTab) tabs.getSelectedComponent()).load();
+      });
+      if (tabs.getSelectedComponent() instanceof LazyTab) ((LazyTab) tabs.getSelectedComponent()).load();
+   }
+
+   private void build() {
+      // loads still running for the old panel finish into components no longer shown
+      body.removeAll();
+      body.add(factory.get(), BorderLayout.CENTER);
+      built = true;
+      body.revalidate();
+      body.repaint();
+   }
+}//end LazyTab
@@ -0,0 +1,366 @@
+/*
+ * Closed-loop load generator for the Retail application
+ * =====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Simulates shoppers, managers and admins using one Retail instance, the
+ * way the --server mode does: every virtual user logs in as a real account
+ * and has its own Session bound to its thread.  Each one repeatedly picks
+ * an operation from its role's mix, runs it, and waits an exponentially
+ * distributed think time before the next.  The loop is closed, so a
+ * slower system also gets fewer requests, as with real users.
+ *
+ * Operations are the Retail ones behind the menu entries:
+ *
+ *   LogIn                        authenticate
+ *   viewStores                   nearby, popular and previously used stores
+ *   viewProducts                 a store's product lists and best sellers
+ *   placeOrder                   orderProduct at a nearby store
+ *   viewRecentOrders             the user's latest orders
+ *   updateProduct                applyProductUpdate at a managed store
+ *   placeProductSupplyRequests   requestSupply at a managed store
+ *
+ * A role's mix is a list of operation:weight pairs, set with
+ * -Dretail.loadgen.mix.<role>=...  Nothing is recorded during the warm-up.
+ * Afterwards throughput and p50/p99/p99.9 latency are printed for each
+ * operation.  With -Dretail.loadgen.report=<file>, the same figures are
+ * appended to a CSV file, labelled with -Dretail.loadgen.label (e.g. a git
+ * revision), so runs of different versions can be compared.
+ *
+ * Accounts are taken from Users by type, so the customers, managers and
+ * admins must exist (DataGenerator's data has plenty).  Orders and updates
+ * are really written.
+ *
+ * Usage: java LoadGenerator <dbname> <port> <user> [customers] [managers] [admins] [seconds]
+ *   e.g. java LoadGenerator $USER"_DB" $PGPORT $USER 50 5 1 60
+ */
+public class LoadGenerator {
+   public static final long THINK_MS = Long.getLong("retail.loadgen.thinkMs", 500);
+   public static final int WARMUP_SECONDS = Integer.getInteger("retail.loadgen.warmupSeconds", 10);
+   public static final String REPORT = System.getProperty("retail.loadgen.report");
+   public static final String LABEL = System.getProperty("retail.loadgen.label", "");
+
+   private static final String[] OPS = {
+      "LogIn", "viewStores", "viewProducts", "placeOrder", "viewRecentOrders",
+      "updateProduct", "placeProductSupplyRequests",
+   };
+   private static final String[] ROLES = { "customer", "manager", "admin" };
+   private static final String[] DEFAULT_MIXES = {
+      "LogIn:5,viewStores:25,viewProducts:35,placeOrder:20,viewRecentOrders:15",
+      "viewProducts:40,updateProduct:35,placeProductSupplyRequests:25",
+      "viewStores:50,viewProducts:50",
+   };
+
+   /**
+    * What one virtual user measured; merged across users after the run.
+    */
+   private static class Tally {
+      final LatencyHistogram[] latency = new LatencyHistogram[OPS.length];
+      final long[] refused = new long[OPS.length];
+      final long[] errors = new long[OPS.length];
+
+      Tally() {
+         for (int i = 0; i < OPS.length; i++) latency[i] = new LatencyHistogram();
+      }
+
+      void merge(Tally other) {
+         for (int i = 0; i < OPS.length; i++) {
+            latency[i].merge(other.latency[i]);
+            refused[i] += other.refused[i];
+            errors[i] += other.errors[i];
+         }
+      }
+   }//end Tally
+
+   private final Retail esql;
+   private final List<String> allStores = new ArrayList<String>();
+   private final List<String> warehouses = new ArrayList<String>();
+   // first failure message per operation, printed once
+   private final ConcurrentHashMap<String, String> firstErrors = new ConcurrentHashMap<String, String>();
+
+   public LoadGenerator(Retail esql) throws Exception {
+      this.esql = esql;
+      for (List<String> row : esql.executeQueryOnEveryShard("SELECT storeID FROM Store", null, 0)) {
+         allStores.add(row.get(0).trim());
+      }
+      for (List<String> row : esql.executeQueryAndReturnResult("SELECT WarehouseID FROM Warehouse")) {
+         warehouses.add(row.get(0).trim());
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java LoadGenerator <dbname> <port> <user> [customers] [managers] [admins] [seconds]");
+         return;
+      }
+      int[] users = {
+         args.length > 3 ? Integer.parseInt(args[3]) : 50,
+         args.length > 4 ? Integer.parseInt(args[4]) : 5,
+         args.length > 5 ? Integer.parseInt(args[5]) : 1,
+      };
+      int seconds = args.length > 6 ? Integer.parseInt(args[6]) : 60;
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "");
+      try {
+         new LoadGenerator(esql).run(users, seconds);
+         System.out.println("pool: " + esql.getPoolStats());
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Runs users[r] virtual users of each role for the warm-up plus seconds,
+    * then prints and exports the results.
+    */
+   public void run(int[] users, int seconds) throws Exception {
+      final long measureFrom = System.currentTimeMillis() + WARMUP_SECONDS * 1000L;
+      final long until = measureFrom + seconds * 1000L;
+      List<Thread> threads = new ArrayList<Thread>();
+      final List<Tally> tallies = new ArrayList<Tally>();
+      int id = 0;
+      for (int r = 0; r < ROLES.length; r++) {
+         if (users[r] == 0) continue;
+         final int[] mix = parseMix(System.getProperty("retail.loadgen.mix." + ROLES[r], DEFAULT_MIXES[r]));
+         final List<String[]> accounts = accounts(ROLES[r]);
+         if (accounts.isEmpty()) throw new IOException("No users of type '" + ROLES[r] + "'");
+         for (int u = 0; u < users[r]; u++) {
+            final String[] account = accounts.get(u % accounts.size());
+            final Tally tally = new Tally();
+            final Random random = new Random(id);
+            tallies.add(tally);
+            Thread t = new Thread(() -> simulate(account, mix, random, tally, measureFrom, until));
+            t.setName("loadgen-" + ROLES[r] + "-" + u);
+            t.setDaemon(true);
+            threads.add(t);
+            id++;
+         }
+      }
+
+      System.out.println(String.format("%d customers, %d managers, %d admins; %ds warm-up, %ds measured, %dms think time",
+         users[0], users[1], users[2], WARMUP_SECONDS, seconds, THINK_MS));
+      for (Thread t : threads) t.start();
+      for (Thread t : threads) t.join();
+
+      Tally total = new Tally();
+      for (Tally t : tallies) total.merge(t);
+      report(total, seconds);
+      for (Map.Entry<String, String> e : firstErrors.entrySet()) {
+         System.err.println("first " + e.getKey() + " error: " + e.getValue());
+      }
+   }//end run
+
+   private void simulate(String[] account, int[] mix, Random random, Tally tally, long measureFrom, long until) {
+      // the stores this user works with, refreshed at every LogIn
+      List<String> stores = new ArrayList<String>();
+      Session session = null;
+      try {
+         // spread the first requests over one think time
+         Thread.sleep((long) (random.nextDouble() * THINK_MS));
+         while (System.currentTimeMillis() < until) {
+            int op = session == null ? 0 : pick(mix, random);
+            long t0 = System.nanoTime();
+            try {
+               Session next = perform(op, account, session, stores, random);
+               if (next != null) session = next;
+               if (System.currentTimeMillis() >= measureFrom) tally.latency[op].recordNanos(System.nanoTime() - t0);
+            } catch (IOException e) {
+               // the operation refused the request, as it would for a person
+               if (System.currentTimeMillis() >= measureFrom) tally.refused[op]++;
+            } catch (Exception e) {
+               if (System.currentTimeMillis() >= measureFrom) tally.errors[op]++;
+               firstErrors.putIfAbsent(OPS[op], String.valueOf(e.getMessage()));
+            } finally {
+               esql.unbindSession();
+            }
+            if (THINK_MS > 0) Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * THINK_MS));
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end simulate
+
+   /*
+    * Runs OPS[op] as the user of session.
+    *
+    * @return the new session after a LogIn, otherwise null
+    */
+   private Session perform(int op, String[] account, Session session, List<String> stores, Random random) throws Exception {
+      if (op == 0) {
+         Session next = Retail.authenticate(esql, account[0], account[1]);
+         if (next == null) throw new IOException("User does not exist");
+         esql.bindSession(next);
+         refreshStores(next, stores);
+         return next;
+      }
+      esql.bindSession(session);
+      switch (OPS[op]) {
+         case "viewStores": {
+            List<GeoIndex.Hit> nearby = esql.storesNearUser();
+            Retail.nearbyStores(nearby);
+            Retail.popularNearbyStores(esql, nearby);
+            Retail.repeatNearbyStores(esql, nearby);
+            break;
+         }
+         case "viewProducts": {
+            int storeID = Integer.parseInt(anyStore(stores, random));
+            esql.getCatalog().get(storeID);
+            esql.onStore(storeID, shard -> esql.executeQueryAndReturnResult(Retail.STORE_POPULAR_PRODUCTS_QUERY, storeID));
+            break;
+         }
+         case "placeOrder": {
+            String storeID = anyStore(stores, random);
+            Retail.orderProduct(esql, storeID, anyProduct(storeID, random), 1 + random.nextInt(3));
+            break;
+         }
+         case "viewRecentOrders":
+            Retail.recentOrders(esql, session.getUserId());
+            break;
+         case "updateProduct": {
+            String storeID = anyStore(stores, random);
+            Retail.applyProductUpdate(esql, storeID, anyProduct(storeID, random),
+               Integer.toString(100 + random.nextInt(900)), Integer.toString(1 + random.nextInt(20)));
+            break;
+         }
+         case "placeProductSupplyRequests": {
+            String storeID = anyStore(stores, random);
+            Retail.requestSupply(esql, storeID, anyProduct(storeID, random),
+               Integer.toString(1 + random.nextInt(100)), warehouses.get(random.nextInt(warehouses.size())));
+            break;
+         }
+         default:
+            throw new IllegalStateException(OPS[op]);
+      }
+      return null;
+   }//end perform
+
+   // customers and admins shop nearby; managers work on their own stores
+   private void refreshStores(Session session, List<String> stores) throws Exception {
+      stores.clear();
+      if ("manager".equals(session.getType())) {
+         for (List<String> row : esql.executeQueryOnEveryShard(
+               "SELECT storeID FROM Store WHERE managerID = ?", null, 0, session.getUserId())) {
+            stores.add(row.get(0).trim());
+         }
+      } else {
+         for (String[] row : Retail.nearbyStores(esql.storesNearUser())) stores.add(row[0].trim());
+      }
+   }
+
+   private String anyStore(List<String> stores, Random random) throws IOException {
+      List<String> from = stores.isEmpty() ? allStores : stores;
+      if (from.isEmpty()) throw new IOException("No stores");
+      return from.get(random.nextInt(from.size()));
+   }
+
+   private String anyProduct(String storeID, Random random) throws Exception {
+      CatalogCache.Snapshot products = esql.getCatalog().get(Integer.parseInt(storeID));
+      if (products.all.isEmpty()) throw new IOException("Store " + storeID + " has no products");
+      int name = 0;
+      while (!products.columns[name].equalsIgnoreCase("productname")) name++;
+      return products.all.get(random.nextInt(products.all.size()))[name].trim();
+   }
+
+   private List<String[]> accounts(String type) throws Exception {
+      List<String[]> accounts = new ArrayList<String[]>();
+      for (List<String> row : esql.executeQueryAndReturnResult(
+            "SELECT name, password FROM Users WHERE type = ? ORDER BY userID LIMIT 10000", type)) {
+         accounts.add(new String[] { row.get(0).trim(), row.get(1).trim() });
+      }
+      return accounts;
+   }
+
+   /*
+    * Turns "op:weight,..." into a cumulative weight per entry of OPS.
+    */
+   private static int[] parseMix(String spec) throws IOException {
+      Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+      for (String part : spec.split(",")) {
+         String[] kv = part.trim().split(":");
+         if (kv.length != 2) throw new IOException("Bad mix entry '" + part + "'");
+         weights.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+      }
+      int[] cumulative = new int[OPS.length];
+      int sum = 0;
+      for (int i = 0; i < OPS.length; i++) {
+         Integer w = weights.remove(OPS[i]);
+         sum += w == null ? 0 : Math.max(0, w);
+         cumulative[i] = sum;
+      }
+      if (!weights.isEmpty()) throw new IOException("Unknown operations in mix: " + weights.keySet());
+      if (sum == 0) throw new IOException("Mix '" + spec + "' has no weight");
+      return cumulative;
+   }
+
+   private static int pick(int[] cumulative, Random random) {
+      int x = random.nextInt(cumulative[cumulative.length - 1]);
+      int i = 0;
+      while (cumulative[i] <= x) i++;
+      return i;
+   }
+
+   private void report(Tally total, int seconds) throws IOException {
+      String format = "%-28s %9s %9s %9s %10s %9s %9s %9s %9s %9s";
+      System.out.println(String.format(format, "operation", "count", "refused", "errors", "ops/s",
+                                       "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+      LatencyHistogram all = new LatencyHistogram();
+      long refused = 0;
+      long errors = 0;
+      List<String[]> lines = new ArrayList<String[]>();
+      for (int i = 0; i < OPS.length; i++) {
+         LatencyHistogram h = total.latency[i];
+         if (h.getCount() + total.refused[i] + total.errors[i] == 0) continue;
+         lines.add(line(OPS[i], h, total.refused[i], total.errors[i], seconds));
+         all.merge(h);
+         refused += total.refused[i];
+         errors += total.errors[i];
+      }
+      lines.add(line("all", all, refused, errors, seconds));
+      for (String[] l : lines) System.out.println(String.format(format, (Object[]) l));
+
+      if (REPORT == null) return;
+      File file = new File(REPORT);
+      boolean header = !file.exists() || file.length() == 0;
+      PrintWriter out = new PrintWriter(new FileWriter(file, true));
+      try {
+         if (header) out.println("label,time,operation,count,refused,errors,ops_per_s,mean_ms,p50_ms,p99_ms,p999_ms,max_ms");
+         long now = System.currentTimeMillis();
+         for (String[] l : lines) out.println(LABEL + "," + now + "," + String.join(",", l));
+      } finally {
+         out.close();
+      }
+      System.out.println("appended to " + REPORT);
+   }//end report
+
+   private static String[] line(String op, LatencyHistogram h, long refused, long errors, int seconds) {
+      return new String[] {
+         op, Long.toString(h.getCount()), Long.toString(refused), Long.toString(errors),
+         String.format(Locale.ROOT, "%.1f", h.getCount() / (double) seconds),
+         millis(h.getMean()), millis(h.getPercentile(50)), millis(h.getPercentile(99)),
+         millis(h.getPercentile(99.9)), millis(h.getMax()),
+      };
+   }
+
+   private static String millis(double micros) {
+      return String.format(Locale.ROOT, "%.2f", micros / 1000.0);
+   }
+}//end LoadGenerator
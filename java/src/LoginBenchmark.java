@@ -0,0 +1,100 @@
+/*
+ * Login benchmark for the Retail application
+ * ==========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Measures logins per second with concurrent threads, each logging in as
+ * random users taken from the Users table, once with every login going to
+ * the database and once through the credential cache.
+ *
+ * One in ten attempts uses a wrong password, which the cache never
+ * answers, so the cached figure includes that share of queries.  The
+ * cached run is warmed up first so it measures repeated logins rather
+ * than the first one of each user.
+ *
+ * Usage: java LoginBenchmark <dbname> <port> <user> [threads] [seconds] [accounts]
+ */
+public class LoginBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java LoginBenchmark <dbname> <port> <user> [threads] [seconds] [accounts]");
+         return;
+      }
+      int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+      int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+      int accounts = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "");
+      try {
+         List<String[]> users = new ArrayList<String[]>();
+         for (List<String> row : esql.executeQueryAndReturnResult(
+               "SELECT name, password FROM Users ORDER BY userID LIMIT ?", accounts)) {
+            users.add(new String[] { row.get(0).trim(), row.get(1).trim() });
+         }
+         if (users.isEmpty()) {
+            System.err.println("No users to log in as");
+            return;
+         }
+         System.out.println(String.format("%d threads, %d accounts, %d s per run", threads, users.size(), seconds));
+         System.out.println(String.format("%10s %12s %10s %10s %10s", "mode", "logins/s", "p50 ms", "p99 ms", "failed"));
+
+         run("database", new CredentialCache(esql, 1, 0), users, threads, seconds);
+         CredentialCache cache = new CredentialCache(esql);
+         for (String[] user : users) cache.authenticate(user[0], user[1]);
+         run("cached", cache, users, threads, seconds);
+         System.out.println(String.format("cache: %d users, %d hits, %d misses", cache.size(), cache.getHits(), cache.getMisses()));
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   private static void run(String mode, final CredentialCache cache, final List<String[]> users,
+                           int threads, int seconds) throws InterruptedException {
+      final long until = System.nanoTime() + seconds * 1000000000L;
+      final AtomicLong failed = new AtomicLong();
+      final List<LatencyHistogram> histograms = new ArrayList<LatencyHistogram>();
+      List<Thread> running = new ArrayList<Thread>();
+      for (int t = 0; t < threads; t++) {
+         final LatencyHistogram latency = new LatencyHistogram();
+         final Random random = new Random(t);
+         histograms.add(latency);
+         Thread thread = new Thread(() -> {
+            while (System.nanoTime() < until) {
+               String[] user = users.get(random.nextInt(users.size()));
+               boolean wrong = random.nextInt(10) == 0;
+               long t0 = System.nanoTime();
+               try {
+                  Session session = cache.authenticate(user[0], wrong ? user[1] + "x" : user[1]);
+                  // a wrong password that logs in, or a right one that does not, is a failure
+                  if ((session == null) != wrong) failed.incrementAndGet();
+               } catch (Exception e) {
+                  failed.incrementAndGet();
+               }
+               latency.recordNanos(System.nanoTime() - t0);
+            }
+         });
+         thread.setName("login-" + mode + "-" + t);
+         running.add(thread);
+         thread.start();
+      }
+      for (Thread thread : running) thread.join();
+
+      LatencyHistogram total = new LatencyHistogram();
+      for (LatencyHistogram h : histograms) total.merge(h);
+      System.out.println(String.format("%10s %12.0f %10.2f %10.2f %10d", mode, total.getCount() / (double) seconds,
+         total.getPercentile(50) / 1000.0, total.getPercentile(99) / 1000.0, failed.get()));
+   }//end run
+}//end LoginBenchmark
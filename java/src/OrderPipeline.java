@@ -0,0 +1,278 @@
+/*
+ * Order submission pipeline for the Retail application
+ * ====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Collects orders from every session into one queue and writes them in
+ * batches: a single worker takes up to batchSize orders, waiting at most
+ * lingerMs after the first one for more to arrive.  It then reserves stock
+ * for the whole batch through InventoryReservations, inserts the accepted
+ * orders with one JDBC batch, and commits once.  One commit, and so one WAL
+ * flush, covers the whole batch instead of one per order.
+ *
+ * Orders in a batch are reserved in arrival order, so two orders for the
+ * last unit cannot both succeed.  Each caller's future completes after the
+ * commit, with null on success or with the reason the order was refused.
+ * If the batch fails, it is rolled back and every order is retried on its
+ * own.
+ */
+public class OrderPipeline {
+
+   /**
+    * Batching knobs, overridable with -Dretail.orders.<name>=<value>.
+    */
+   public static class Config {
+      public int batchSize = 32;
+      public long lingerMs = 2;
+      public int queueCapacity = 10000;
+
+      public static Config fromSystemProperties() {
+         Config config = new Config();
+         config.batchSize = Integer.getInteger("retail.orders.batchSize", config.batchSize);
+         config.lingerMs = Long.getLong("retail.orders.lingerMs", config.lingerMs);
+         config.queueCapacity = Integer.getInteger("retail.orders.queueCapacity", config.queueCapacity);
+         if (config.batchSize < 1) config.batchSize = 1;
+         if (config.lingerMs < 0) config.lingerMs = 0;
+         if (config.queueCapacity < 1) config.queueCapacity = 1;
+         return config;
+      }
+   }//end Config
+
+   /**
+    * One order waiting to be written.
+    */
+   private static class Order {
+      final int customerID;
+      final int storeID;
+      final String productName;
+      final int unitsOrdered;
+      final CompletableFuture<Void> done = new CompletableFuture<Void>();
+      InventoryReservations.Request stock;
+
+      Order(int customerID, int storeID, String productName, int unitsOrdered) {
+         this.customerID = customerID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.unitsOrdered = unitsOrdered;
+      }
+   }//end Order
+
+   private static final String INSERT_ORDER =
+      "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (?, ?, ?, ?, current_timestamp)";
+
+   private final ConnectionPool pool;
+   private final InventoryReservations inventory;
+   private final Config config;
+   private final BlockingQueue<Order> queue;
+   private final Thread worker;
+   private volatile boolean closed = false;
+
+   // written by the worker only
+   private volatile long batches = 0;
+   private volatile long orders = 0;
+   private volatile long fallbacks = 0;
+
+   public OrderPipeline(ConnectionPool pool, InventoryReservations inventory, Config config) {
+      this.pool = pool;
+      this.inventory = inventory;
+      this.config = config;
+      this.queue = new LinkedBlockingQueue<Order>(config.queueCapacity);
+      this.worker = new Thread(this::run, "retail-order-pipeline");
+      this.worker.setDaemon(true);
+      this.worker.start();
+   }
+
+   /**
+    * Queues an order.  The caller has already checked that the store exists
+    * and is close enough; stock is checked when the order's batch is
+    * written.
+    *
+    * @return a future completed with null once the order is committed, or
+    *         exceptionally with an IOException when it was refused or an
+    *         SQLException when it could not be written
+    */
+   public CompletableFuture<Void> submit(int customerID, int storeID, String productName, int unitsOrdered) {
+      Order order = new Order(customerID, storeID, productName, unitsOrdered);
+      if (closed) {
+         order.done.completeExceptionally(new SQLException("Order pipeline is closed"));
+      } else if (!queue.offer(order)) {
+         order.done.completeExceptionally(new SQLException("Too many orders waiting; try again"));
+      }
+      return order.done;
+   }//end submit
+
+   public long getBatches() {
+      return batches;
+   }
+
+   public long getOrders() {
+      return orders;
+   }
+
+   /**
+    * @return how many batches had to be retried one order at a time
+    */
+   public long getFallbacks() {
+      return fallbacks;
+   }
+
+   /**
+    * Stops taking orders, writes the ones already queued and stops the
+    * worker.
+    */
+   public void close() {
+      closed = true;
+      worker.interrupt();
+      try {
+         worker.join(TimeUnit.SECONDS.toMillis(10));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      // anything the worker did not get to
+      Order order;
+      while ((order = queue.poll()) != null) {
+         order.done.completeExceptionally(new SQLException("Order pipeline is closed"));
+      }
+   }//end close
+
+   private void run() {
+      List<Order> batch = new ArrayList<Order>(config.batchSize);
+      while (true) {
+         try {
+            Order first = closed ? queue.poll() : queue.take();
+            if (first == null) return;
+            batch.add(first);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.lingerMs);
+            while (batch.size() < config.batchSize) {
+               if (queue.drainTo(batch, config.batchSize - batch.size()) > 0) continue;
+               long remaining = deadline - System.nanoTime();
+               Order next = remaining > 0 && !closed ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+               if (next == null) break;
+               batch.add(next);
+            }
+         } catch (InterruptedException e) {
+            // close() wakes the worker up; drain what is left without waiting
+            if (!closed) continue;
+            queue.drainTo(batch, config.batchSize - batch.size());
+            if (batch.isEmpty()) return;
+         }
+         try {
+            write(batch);
+         } catch (RuntimeException e) {
+            for (Order order : batch) order.done.completeExceptionally(e);
+         }
+         batch.clear();
+      }
+   }//end run
+
+   private void write(List<Order> batch) {
+      try {
+         writeBatch(batch);
+      } catch (SQLException e) {
+         fallbacks++;
+         for (Order order : batch) {
+            writeOne(order);
+         }
+      }
+      batches++;
+      orders += batch.size();
+   }//end write
+
+   /*
+    * Reserves stock for every order, inserts the accepted ones and commits.
+    * Refused orders are only completed after the commit, so a rolled back
+    * batch can be retried from scratch.
+    */
+   private void writeBatch(List<Order> batch) throws SQLException {
+      List<InventoryReservations.Request> requests = new ArrayList<InventoryReservations.Request>(batch.size());
+      for (Order order : batch) {
+         order.stock = new InventoryReservations.Request(order.storeID, order.productName, order.unitsOrdered);
+         requests.add(order.stock);
+      }
+
+      boolean committed = false;
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         Connection conn = pc.connection();
+         conn.setAutoCommit(false);
+         inventory.reserve(pc, requests);
+
+         PreparedStatement insert = pc.statements().prepare(INSERT_ORDER);
+         int accepted = 0;
+         try {
+            for (Order order : batch) {
+               if (order.stock.refused != null) continue;
+               bindInsert(insert, order);
+               insert.addBatch();
+               accepted++;
+            }
+            if (accepted > 0) insert.executeBatch();
+         } finally {
+            insert.clearBatch();
+         }
+         conn.commit();
+         committed = true;
+      } finally {
+         if (!committed) inventory.cancel(requests);
+         // rolls back whatever did not commit
+         pool.release(pc);
+      }
+
+      for (Order order : batch) {
+         if (order.stock.refused == null) order.done.complete(null);
+         else order.done.completeExceptionally(order.stock.refused);
+      }
+   }//end writeBatch
+
+   // the per-order path, used when a batch could not be written as a whole
+   private void writeOne(Order order) {
+      order.stock = new InventoryReservations.Request(order.storeID, order.productName, order.unitsOrdered);
+      boolean committed = false;
+      ConnectionPool.PooledConnection pc = null;
+      try {
+         pc = pool.acquire();
+         Connection conn = pc.connection();
+         conn.setAutoCommit(false);
+         inventory.reserve(pc, order.stock);
+         if (order.stock.refused != null) {
+            order.done.completeExceptionally(order.stock.refused);
+            return;
+         }
+         PreparedStatement insert = pc.statements().prepare(INSERT_ORDER);
+         bindInsert(insert, order);
+         insert.executeUpdate();
+         conn.commit();
+         committed = true;
+         order.done.complete(null);
+      } catch (SQLException e) {
+         order.done.completeExceptionally(e);
+      } finally {
+         if (!committed) inventory.cancel(Collections.singletonList(order.stock));
+         pool.release(pc);
+      }
+   }//end writeOne
+
+   private static void bindInsert(PreparedStatement insert, Order order) throws SQLException {
+      insert.setInt(1, order.customerID);
+      insert.setInt(2, order.storeID);
+      insert.setString(3, order.productName);
+      insert.setInt(4, order.unitsOrdered);
+   }
+}//end OrderPipeline
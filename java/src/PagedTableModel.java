@@ -0,0 +1,176 @@
+/*
+ * Paged table model for the Retail GUI
+ * ====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.table.AbstractTableModel;
+
+
+/**
+ * A TableModel that reads its rows a page at a time with keyset pagination
+ * instead of holding the whole result, so a table of any size shows its
+ * first rows after one short query and never keeps more than
+ * retail.gui.cachedPages pages of retail.gui.pageSize rows in memory.
+ *
+ * The query must end in "... AND key > ? ORDER BY key LIMIT ?" (or < and
+ * DESC), where key is a unique integer column of the result.  The first
+ * page is read after firstKey and every later page after the last key of
+ * the page before it, so reading any page is an index seek however deep
+ * into the table it is.  Only the key each page starts after is kept for
+ * pages that have been evicted from the cache.
+ *
+ * The table grows as it is scrolled: it starts with the first page, and
+ * showing a row of the last page read fetches the next one.  Pages are read
+ * in the background through GuiLoader; rows of a page still loading show
+ * as "...".  Must only be used on the event dispatch thread.
+ *
+ * With several shards each page is read from every shard and the rows
+ * merged by key, which stays exact because every shard returns its own
+ * first PAGE_SIZE rows after the key.
+ */
+public class PagedTableModel extends AbstractTableModel {
+   private static final long serialVersionUID = 1L;
+
+   public static final int PAGE_SIZE = Math.max(1, Integer.getInteger("retail.gui.pageSize", 100));
+   public static final int CACHED_PAGES = Math.max(2, Integer.getInteger("retail.gui.cachedPages", 8));
+
+   private static final String LOADING = "...";
+
+   private final Retail esql;
+   private final String[] columns;
+   private final String query;
+   private final int keyColumn;
+   private final boolean descending;
+   private final Object[] params;
+
+   // after[p] is the key page p starts after; it is known once page p-1 is read
+   private final List<Integer> after = new ArrayList<Integer>();
+   // the most recently used pages, oldest first
+   private final LinkedHashMap<Integer, String[][]> pages = new LinkedHashMap<Integer, String[][]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, String[][]> eldest) {
+         return size() > CACHED_PAGES;
+      }
+   };
+   private final List<Integer> loading = new ArrayList<Integer>();
+   private int rowCount = 0;
+   private boolean complete = false;
+   // bumped by refresh() so pages read before it are dropped
+   private int generation = 0;
+
+   /**
+    * @param esql the connection the pages are read through
+    * @param columns the names shown in the header
+    * @param query the query, whose last two placeholders are the key to
+    *        read after and the page size
+    * @param keyColumn the index of the key in the result's columns
+    * @param firstKey the key the first page is read after, e.g. 0 for an
+    *        ascending key or Integer.MAX_VALUE for a descending one; the
+    *        latter makes the key descending when pages are merged
+    * @param params the values for the placeholders before the last two
+    */
+   public PagedTableModel(Retail esql, String[] columns, String query, int keyColumn, int firstKey, Object... params) {
+      this.esql = esql;
+      this.columns = columns;
+      this.query = query;
+      this.keyColumn = keyColumn;
+      this.descending = firstKey == Integer.MAX_VALUE;
+      this.params = params;
+      after.add(firstKey);
+      fetch(0);
+   }
+
+   @Override
+   public int getRowCount() {
+      return rowCount;
+   }
+
+   @Override
+   public int getColumnCount() {
+      return columns.length;
+   }
+
+   @Override
+   public String getColumnName(int column) {
+      return columns[column];
+   }
+
+   @Override
+   public Object getValueAt(int row, int column) {
+      int page = row / PAGE_SIZE;
+      String[][] rows = pages.get(page);
+      if (rows == null) {
+         fetch(page);
+         return LOADING;
+      }
+      // showing the last page read brings in the next one before it is needed
+      if (!complete && page == after.size() - 2) fetch(page + 1);
+      String[] values = rows[row % PAGE_SIZE];
+      return column < values.length ? values[column] : null;
+   }
+
+   /**
+    * Forgets every page and reads the table again from the start.
+    */
+   public void refresh() {
+      Integer firstKey = after.get(0);
+      after.clear();
+      after.add(firstKey);
+      pages.clear();
+      loading.clear();
+      generation++;
+      complete = false;
+      rowCount = 0;
+      fireTableDataChanged();
+      fetch(0);
+   }
+
+   /*
+    * Reads page in the background unless it is already being read.
+    **/
+   private void fetch(final int page) {
+      if (loading.contains(page) || page >= after.size()) return;
+      loading.add(page);
+      final int current = generation;
+      Object[] args = Arrays.copyOf(params, params.length + 2);
+      args[params.length] = after.get(page);
+      args[params.length + 1] = PAGE_SIZE;
+      final Object[] bound = args;
+      GuiLoader.submit(
+         () -> esql.executeQueryOnEveryShard(query, ShardRouter.byColumn(keyColumn, true, descending), PAGE_SIZE, bound)
+                   .stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new),
+         rows -> {
+            if (current == generation) loaded(page, rows);
+         },
+         e -> {
+            if (current == generation) loading.remove(Integer.valueOf(page));
+            System.err.println("Couldn't load rows: " + e.getMessage());
+         });
+   }//end fetch
+
+   private void loaded(int page, String[][] rows) {
+      loading.remove(Integer.valueOf(page));
+      pages.put(page, rows);
+
+      if (page == after.size() - 1) {
+         if (rows.length == PAGE_SIZE) after.add(Integer.parseInt(rows[rows.length - 1][keyColumn].trim()));
+         else complete = true;
+         int first = rowCount;
+         rowCount = page * PAGE_SIZE + rows.length;
+         if (rowCount > first) fireTableRowsInserted(first, rowCount - 1);
+      } else if (rows.length > 0) {
+         // a page read again after it was evicted
+         int from = page * PAGE_SIZE;
+         fireTableRowsUpdated(from, Math.min(rowCount, from + rows.length) - 1);
+      }
+   }//end loaded
+}//end PagedTableModel
@@ -0,0 +1,138 @@
+/*
+ * Stored procedure benchmark for the Retail application
+ * ======================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.List;
+
+
+/**
+ * Times each write operation one call at a time, done as the series of
+ * statements it used to be and as the single server-side function of
+ * procedures.sql:
+ *
+ *   update_product   ownership check, existence check, UPDATE Product and
+ *                    INSERT INTO ProductUpdates: four round trips, or one
+ *   request_supply   ownership check, existence check and INSERT: three,
+ *                    or one
+ *   place_order      the batching OrderPipeline (reservation, insert and
+ *                    commit, waiting up to retail.orders.lingerMs for other
+ *                    orders), or one place_order() call
+ *
+ * It works on the first product of the first store, as that store's
+ * manager, and writes real updates, supply requests and orders, so run it
+ * against a scratch database.  The product's units and price are put back
+ * at the end.
+ *
+ * Usage: java ProcedureBenchmark <dbname> <port> <user> [iterations]
+ */
+public class ProcedureBenchmark {
+
+   private interface Op {
+      void run() throws Exception;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java ProcedureBenchmark <dbname> <port> <user> [iterations]");
+         return;
+      }
+      int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+      Class.forName("org.postgresql.Driver");
+      final Retail esql = new Retail(args[0], args[1], args[2], "");
+      try {
+         List<List<String>> rows = esql.executeQueryAndReturnResult(
+            "SELECT S.managerID, S.storeID, P.productName, P.numberOfUnits, P.pricePerUnit " +
+            "FROM Store S, Product P WHERE P.storeID = S.storeID ORDER BY S.storeID LIMIT 1");
+         List<List<String>> warehouses = esql.executeQueryAndReturnResult(
+            "SELECT warehouseID FROM Warehouse ORDER BY warehouseID LIMIT 1");
+         List<List<String>> customers = esql.executeQueryAndReturnResult(
+            "SELECT userID FROM Users WHERE type = 'customer' ORDER BY userID LIMIT 1");
+         if (rows.isEmpty() || warehouses.isEmpty() || customers.isEmpty()) {
+            System.err.println("Needs a store with a product, a warehouse and a customer");
+            return;
+         }
+         final int manager = Integer.parseInt(rows.get(0).get(0).trim());
+         final int store = Integer.parseInt(rows.get(0).get(1).trim());
+         final String product = rows.get(0).get(2).trim();
+         final int units = Integer.parseInt(rows.get(0).get(3).trim());
+         final double price = Double.parseDouble(rows.get(0).get(4).trim());
+         final int warehouse = Integer.parseInt(warehouses.get(0).get(0).trim());
+         final int customer = Integer.parseInt(customers.get(0).get(0).trim());
+         // plenty of stock for every order below
+         final int stock = 10 * iterations + 1000000;
+
+         System.out.println(String.format("store %d, product '%s', %d calls per run", store, product, iterations));
+         System.out.println(String.format("%-16s %-12s %10s %10s %10s", "operation", "mode", "mean ms", "p50 ms", "p99 ms"));
+         try {
+            run("update_product", "statements", iterations, () -> {
+               esql.executeQueryAndReturnResult(
+                  "SELECT S.managerID FROM Store S WHERE S.storeID = ? AND S.managerID = ?", store, manager);
+               esql.executeQueryAndReturnResult(
+                  "SELECT 1 FROM Product P WHERE P.storeID = ? AND P.productName = ?", store, product);
+               esql.executeUpdate(
+                  "UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE storeID = ? AND productName = ?",
+                  stock, price, store, product);
+               esql.executeUpdate(
+                  "INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES (?, ?, ?, current_timestamp)",
+                  manager, store, product);
+            });
+            run("update_product", "procedure", iterations, () -> {
+               refused(esql.executeCall(Retail.UPDATE_PRODUCT_CALL, manager, false, store, product, stock, price));
+            });
+            run("request_supply", "statements", iterations, () -> {
+               esql.executeQueryAndReturnResult(
+                  "SELECT S.managerID FROM Store S WHERE S.storeID = ? AND S.managerID = ?", store, manager);
+               esql.executeQueryAndReturnResult(
+                  "SELECT 1 FROM Product P WHERE P.storeID = ? AND P.productName = ?", store, product);
+               esql.executeUpdate(
+                  "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (?, ?, ?, ?, ?)",
+                  manager, warehouse, store, product, 1);
+            });
+            run("request_supply", "procedure", iterations, () -> {
+               refused(esql.executeCall(Retail.REQUEST_SUPPLY_CALL, manager, false, warehouse, store, product, 1));
+            });
+            run("place_order", "pipeline", iterations, () -> {
+               esql.submitOrder(customer, store, product, 1).get();
+            });
+            run("place_order", "procedure", iterations, () -> {
+               refused(esql.executeCall(Retail.PLACE_ORDER_CALL, customer, store, product, 1));
+            });
+         } finally {
+            // the pipeline run made the product hot; its leased units go back before the count is put back,
+            // or cleanup() would add them on top of it
+            esql.getInventory(store).evict(store, product);
+            esql.executeUpdate("UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE storeID = ? AND productName = ?",
+               units, price, store, product);
+         }
+         System.out.println("pool: " + esql.getPoolStats());
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   /*
+    * Runs op a tenth of iterations times to warm up, then iterations timed
+    * times, and prints the latency.
+    */
+   private static void run(String operation, String mode, int iterations, Op op) throws Exception {
+      for (int i = 0; i < iterations / 10; i++) op.run();
+      LatencyHistogram latency = new LatencyHistogram();
+      for (int i = 0; i < iterations; i++) {
+         long t0 = System.nanoTime();
+         op.run();
+         latency.recordNanos(System.nanoTime() - t0);
+      }
+      System.out.println(String.format("%-16s %-12s %10.3f %10.3f %10.3f", operation, mode,
+         latency.getMean() / 1000.0, latency.getPercentile(50) / 1000.0, latency.getPercentile(99) / 1000.0));
+   }//end run
+
+   private static void refused(String reason) throws Exception {
+      if (reason != null) throw new Exception(reason);
+   }
+}//end ProcedureBenchmark
@@ -0,0 +1,302 @@
+/*
+ * Query metrics for the Retail application
+ * ========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+
+/**
+ * Records how long each statement run through Retail's executeQuery... and
+ * executeUpdate gateways takes, how many rows it returned or changed and
+ * roughly how many bytes it read.  Statements are grouped by shape: the
+ * SQL with string and number literals replaced by ? and lists of
+ * placeholders collapsed, so the same query with different literals counts
+ * once.  Each shape keeps a LatencyHistogram.
+ *
+ * Statements slower than retail.metrics.slowQueryMs go to the slow query
+ * log: the last retail.metrics.slowLogSize are kept in memory and, with
+ * retail.metrics.slowLogFile set, every one is appended to that file.
+ * Bound parameter values are never logged, since some are passwords.
+ *
+ * Bytes are counted on the client as the values are read: the length of
+ * every string, and 4 or 8 for numbers.  retail.metrics.enabled=false turns
+ * the counting and recording off.
+ */
+public class QueryMetrics {
+   public static final boolean ENABLED = !"false".equals(System.getProperty("retail.metrics.enabled"));
+   public static final long SLOW_QUERY_MS = Long.getLong("retail.metrics.slowQueryMs", 200);
+   public static final int SLOW_LOG_SIZE = Integer.getInteger("retail.metrics.slowLogSize", 100);
+   public static final String SLOW_LOG_FILE = System.getProperty("retail.metrics.slowLogFile");
+
+   public static final String[] COLUMNS = {
+      "query", "calls", "errors", "rows", "KB", "total ms", "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms"
+   };
+   public static final String[] SLOW_COLUMNS = { "at", "ms", "rows", "query" };
+
+   // shapes beyond this are counted under one catch-all entry
+   private static final int MAX_SHAPES = 1000;
+   private static final String OTHER = "(other)";
+
+   private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+   private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+   private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+   /**
+    * Everything recorded for one query shape.
+    */
+   public static class Stats {
+      public final String shape;
+      private final LatencyHistogram latency = new LatencyHistogram();
+      private long errors = 0;
+      private long rows = 0;
+      private long bytes = 0;
+      private long totalMicros = 0;
+
+      Stats(String shape) {
+         this.shape = shape;
+      }
+
+      synchronized void record(long micros, long rows, long bytes, boolean failed) {
+         latency.record(micros);
+         totalMicros += micros;
+         this.rows += rows;
+         this.bytes += bytes;
+         if (failed) errors++;
+      }
+
+      public synchronized long getCalls() {
+         return latency.getCount();
+      }
+
+      public synchronized long getErrors() {
+         return errors;
+      }
+
+      public synchronized long getRows() {
+         return rows;
+      }
+
+      public synchronized long getBytes() {
+         return bytes;
+      }
+
+      public synchronized long getTotalMicros() {
+         return totalMicros;
+      }
+
+      /**
+       * @return the statement's columns of COLUMNS
+       */
+      public synchronized String[] toRow() {
+         return new String[] {
+            shape, Long.toString(latency.getCount()), Long.toString(errors), Long.toString(rows),
+            Long.toString(bytes / 1024), millis(totalMicros), millis(latency.getMean()),
+            millis(latency.getPercentile(50)), millis(latency.getPercentile(99)),
+            millis(latency.getPercentile(99.9)), millis(latency.getMax()),
+         };
+      }
+   }//end Stats
+
+   /**
+    * One entry of the slow query log.
+    */
+   public static class SlowQuery {
+      public final long at;
+      public final long micros;
+      public final long rows;
+      public final String sql;
+
+      SlowQuery(long at, long micros, long rows, String sql) {
+         this.at = at;
+         this.micros = micros;
+         this.rows = rows;
+         this.sql = sql;
+      }
+
+      /**
+       * @return the entry's columns of SLOW_COLUMNS
+       */
+      public String[] toRow() {
+         return new String[] { timestamp(at), millis(micros), Long.toString(rows), sql };
+      }
+   }//end SlowQuery
+
+   private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+   // SQL text to shape; the application's SQL is mostly constants, so this stays small
+   private final ConcurrentHashMap<String, String> shapes = new ConcurrentHashMap<String, String>();
+   private final ArrayDeque<SlowQuery> slow = new ArrayDeque<SlowQuery>();
+
+   /**
+    * Records one statement.
+    *
+    * @param sql the statement as it was prepared
+    * @param nanos how long it took
+    * @param rows rows returned or changed
+    * @param bytes bytes read from the result
+    * @param failed whether it threw
+    */
+   public void record(String sql, long nanos, long rows, long bytes, boolean failed) {
+      if (!ENABLED) return;
+      long micros = nanos / 1000;
+      Stats s = statsFor(shape(sql));
+      s.record(micros, rows, bytes, failed);
+      if (micros >= SLOW_QUERY_MS * 1000) logSlow(new SlowQuery(System.currentTimeMillis(), micros, rows, oneLine(sql)));
+   }//end record
+
+   /**
+    * Wraps rs so that rows and bytes read through it are added to
+    * counts[0] and counts[1].  Returns rs itself when metrics are off.
+    */
+   public static ResultSet counting(final ResultSet rs, final long[] counts) {
+      if (!ENABLED) return rs;
+      return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+         (proxy, method, args) -> {
+            Object value;
+            try {
+               value = method.invoke(rs, args);
+            } catch (InvocationTargetException e) {
+               throw e.getCause();
+            }
+            String name = method.getName();
+            if (name.equals("next")) {
+               if ((Boolean) value) counts[0]++;
+            } else if (value instanceof String) {
+               counts[1] += ((String) value).length();
+            } else if (value instanceof byte[]) {
+               counts[1] += ((byte[]) value).length;
+            } else if (name.equals("getInt") || name.equals("getFloat")) {
+               counts[1] += 4;
+            } else if (name.equals("getLong") || name.equals("getDouble") || name.equals("getTimestamp")) {
+               counts[1] += 8;
+            }
+            return value;
+         });
+   }//end counting
+
+   /**
+    * @return every shape's statistics, the most total time first
+    */
+   public List<Stats> getStats() {
+      List<Stats> list = new ArrayList<Stats>(stats.values());
+      Collections.sort(list, (a, b) -> Long.compare(b.getTotalMicros(), a.getTotalMicros()));
+      return list;
+   }
+
+   /**
+    * @return the rows of COLUMNS, the most total time first
+    */
+   public List<String[]> rows() {
+      List<String[]> rows = new ArrayList<String[]>();
+      for (Stats s : getStats()) rows.add(s.toRow());
+      return rows;
+   }
+
+   /**
+    * @return the rows of SLOW_COLUMNS, the most recent first
+    */
+   public List<String[]> slowRows() {
+      List<String[]> rows = new ArrayList<String[]>();
+      synchronized (slow) {
+         for (SlowQuery q : slow) rows.add(0, q.toRow());
+      }
+      return rows;
+   }
+
+   public void reset() {
+      stats.clear();
+      synchronized (slow) {
+         slow.clear();
+      }
+   }
+
+   /**
+    * Prints the per-query table and the slow query log.
+    */
+   public void print(PrintStream out) {
+      out.println("Queries by total time:");
+      new TablePrinter(out, TablePrinter.Mode.TWO_PASS).print(COLUMNS, rows());
+      out.println();
+      out.println(String.format("Queries slower than %d ms (latest first):", SLOW_QUERY_MS));
+      new TablePrinter(out, TablePrinter.Mode.TWO_PASS).print(SLOW_COLUMNS, slowRows());
+   }//end print
+
+   private Stats statsFor(String shape) {
+      Stats s = stats.get(shape);
+      if (s != null) return s;
+      if (stats.size() >= MAX_SHAPES) shape = OTHER;
+      Stats fresh = new Stats(shape);
+      s = stats.putIfAbsent(shape, fresh);
+      return s == null ? fresh : s;
+   }
+
+   private String shape(String sql) {
+      String shape = shapes.get(sql);
+      if (shape == null) {
+         shape = normalize(sql);
+         if (shapes.size() < MAX_SHAPES * 10) shapes.put(sql, shape);
+      }
+      return shape;
+   }
+
+   /**
+    * @return sql with literals replaced by ?, placeholder lists collapsed
+    *         to "?, ..." and whitespace collapsed to single spaces
+    */
+   static String normalize(String sql) {
+      String s = STRING_LITERAL.matcher(sql).replaceAll("?");
+      s = NUMBER_LITERAL.matcher(s).replaceAll("?");
+      s = PLACEHOLDER_LIST.matcher(s).replaceAll("?, ...");
+      return oneLine(s);
+   }
+
+   private void logSlow(SlowQuery q) {
+      synchronized (slow) {
+         slow.addLast(q);
+         while (slow.size() > Math.max(0, SLOW_LOG_SIZE)) slow.removeFirst();
+         if (SLOW_LOG_FILE == null) return;
+         try {
+            PrintWriter out = new PrintWriter(new FileWriter(SLOW_LOG_FILE, true));
+            try {
+               out.println(String.join("\t", q.toRow()));
+            } finally {
+               out.close();
+            }
+         } catch (IOException e) {
+            System.err.println("Couldn't write slow query log: " + e.getMessage());
+         }
+      }
+   }//end logSlow
+
+   private static String oneLine(String sql) {
+      return WHITESPACE.matcher(sql).replaceAll(" ").trim();
+   }
+
+   private static String millis(double micros) {
+      return String.format(Locale.ROOT, "%.2f", micros / 1000.0);
+   }
+
+   private static String timestamp(long millis) {
+      return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(millis));
+   }
+}//end QueryMetrics
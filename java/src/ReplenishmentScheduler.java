@@ -0,0 +1,283 @@
+/*
+ * Low-stock replenishment for the Retail application
+ * ==================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Files supply requests for products running low, so managers do not have
+ * to find them in viewManagedProducts and request them one at a time.
+ *
+ * Every intervalMs one query (LOW_STOCK_QUERY) finds the products whose
+ * stock is below their reorder point:
+ *
+ *   reorder point = max(minUnits, units sold in the last windowMs,
+ *                       scaled to coverMs)
+ *
+ * that is, a product is restocked once what is left would last less than
+ * coverMs at its recent sell-through.  It is requested up to twice its
+ * reorder point from the warehouse nearest its store, in the name of the
+ * store's manager.  The sell-through and the nearest warehouse are worked
+ * out in the database (the recent Orders partitions and the Warehouse GiST
+ * index), so only the products that need stock come back, however many
+ * are watched.
+ *
+ * The requests of a run are inserted as JDBC batches of batchSize rows, one
+ * commit per batch, and SupplyRequestTrigger adds the units to Product as
+ * usual.  A product is not requested again for debounceMs, so a product
+ * that keeps selling gets one large request rather than one per order.
+ *
+ * A hot product's units leased into memory by InventoryReservations are
+ * missing from Product.numberOfUnits, so they are added back before its
+ * stock is compared with the reorder point.
+ *
+ * One scheduler runs per shard, and only when intervalMs is set.  Run it
+ * in a single process per database: the debounce is kept in memory.
+ */
+public class ReplenishmentScheduler {
+
+   /**
+    * Replenishment knobs, overridable with -Dretail.replenish.<name>=<value>.
+    */
+   public static class Config {
+      public long intervalMs = 0;
+      public long windowMs = 60 * 60 * 1000;
+      public long coverMs = 24 * 60 * 60 * 1000;
+      public int minUnits = 10;
+      public long debounceMs = 10 * 60 * 1000;
+      public int batchSize = 500;
+
+      public static Config fromSystemProperties() {
+         Config config = new Config();
+         config.intervalMs = Long.getLong("retail.replenish.intervalMs", config.intervalMs);
+         config.windowMs = Long.getLong("retail.replenish.windowMs", config.windowMs);
+         config.coverMs = Long.getLong("retail.replenish.coverMs", config.coverMs);
+         config.minUnits = Integer.getInteger("retail.replenish.minUnits", config.minUnits);
+         config.debounceMs = Long.getLong("retail.replenish.debounceMs", config.debounceMs);
+         config.batchSize = Integer.getInteger("retail.replenish.batchSize", config.batchSize);
+         if (config.windowMs < 1000) config.windowMs = 1000;
+         if (config.coverMs < 0) config.coverMs = 0;
+         if (config.minUnits < 1) config.minUnits = 1;
+         if (config.batchSize < 1) config.batchSize = 1;
+         return config;
+      }
+   }//end Config
+
+   // products below their reorder point, with their recent sales, their
+   // store's manager and the warehouse nearest the store
+   private static final String LOW_STOCK_QUERY =
+      "SELECT P.storeID, P.productName, P.numberOfUnits, " +
+      "GREATEST(?, CEIL(COALESCE(D.sold, 0) * ?::float))::integer AS reorderPoint, S.managerID, W.warehouseID " +
+      "FROM Product P " +
+      "JOIN Store S ON S.storeID = P.storeID " +
+      "LEFT JOIN (SELECT O.storeID, O.productName, SUM(O.unitsOrdered) AS sold FROM Orders O " +
+                 "WHERE O.orderTime >= localtimestamp - ? * interval '1 millisecond' " +
+                 "GROUP BY O.storeID, O.productName) D " +
+      "ON D.storeID = P.storeID AND D.productName = P.productName " +
+      "CROSS JOIN LATERAL (SELECT WH.warehouseID FROM Warehouse WH " +
+                          "ORDER BY point(WH.latitude, WH.longitude) <-> point(S.latitude, S.longitude) LIMIT 1) W " +
+      "WHERE P.numberOfUnits < GREATEST(?, CEIL(COALESCE(D.sold, 0) * ?::float))";
+
+   private static final String INSERT_REQUEST =
+      "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (?, ?, ?, ?, ?)";
+
+   /*
+    * One supply request to file.
+    */
+   private static class Request {
+      final int managerID;
+      final int warehouseID;
+      final int storeID;
+      final String productName;
+      final int units;
+
+      Request(int managerID, int warehouseID, int storeID, String productName, int units) {
+         this.managerID = managerID;
+         this.warehouseID = warehouseID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.units = units;
+      }
+   }//end Request
+
+   private final ConnectionPool pool;
+   private final InventoryReservations inventory;
+   private final CatalogCache catalog;
+   private final Config config;
+   // when each product was last requested, for the debounce
+   private final ConcurrentHashMap<String, Long> requested = new ConcurrentHashMap<String, Long>();
+   private final AtomicLong runs = new AtomicLong();
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong units = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+   private volatile long lastRunMs = 0;
+   private final ScheduledExecutorService scheduler;
+
+   /**
+    * Starts the schedule when config.intervalMs is above 0.
+    *
+    * @param inventory the shard's reservations, whose leased units count as
+    *        stock
+    * @param catalog the product cache whose stores are refreshed after their
+    *        stock is replenished
+    */
+   public ReplenishmentScheduler(ConnectionPool pool, InventoryReservations inventory, CatalogCache catalog, Config config) {
+      this.pool = pool;
+      this.inventory = inventory;
+      this.catalog = catalog;
+      this.config = config;
+      if (config.intervalMs <= 0) {
+         this.scheduler = null;
+         return;
+      }
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "retail-replenish");
+         t.setDaemon(true);
+         return t;
+      });
+      this.scheduler.scheduleWithFixedDelay(this::run, config.intervalMs, config.intervalMs, TimeUnit.MILLISECONDS);
+   }//end ReplenishmentScheduler
+
+   /**
+    * Finds the products below their reorder point and files their supply
+    * requests.  Runs on the schedule; callable directly, e.g. from a tool.
+    *
+    * @return the number of requests filed
+    * @throws java.sql.SQLException when the products could not be read or
+    *         a batch could not be written; the batches before it stay
+    *         committed
+    */
+   public synchronized int replenish() throws SQLException {
+      long now = System.currentTimeMillis();
+      Iterator<Map.Entry<String, Long>> expired = requested.entrySet().iterator();
+      while (expired.hasNext()) {
+         if (now - expired.next().getValue() >= config.debounceMs) expired.remove();
+      }
+
+      List<Request> due = lowStock();
+      int filed = 0;
+      for (int from = 0; from < due.size(); from += config.batchSize) {
+         List<Request> batch = due.subList(from, Math.min(due.size(), from + config.batchSize));
+         writeBatch(batch);
+         Set<Integer> stores = new HashSet<Integer>();
+         for (Request request : batch) {
+            requested.put(InventoryReservations.key(request.storeID, request.productName), now);
+            units.addAndGet(request.units);
+            stores.add(request.storeID);
+         }
+         for (int store : stores) catalog.invalidate(store);
+         requests.addAndGet(batch.size());
+         filed += batch.size();
+      }
+      runs.incrementAndGet();
+      lastRunMs = System.currentTimeMillis() - now;
+      return filed;
+   }//end replenish
+
+   /**
+    * @return the run, request and unit counters, for /stats
+    */
+   public String getStats() {
+      return String.format("runs=%d requests=%d units=%d failures=%d debounced=%d lastRunMs=%d",
+         runs.get(), requests.get(), units.get(), failures.get(), requested.size(), lastRunMs);
+   }
+
+   /**
+    * Stops the schedule; a run in progress finishes its current batch.
+    */
+   public void close() {
+      if (scheduler != null) scheduler.shutdown();
+   }
+
+   // the scheduled run; a failed run is reported and retried next interval
+   private void run() {
+      try {
+         replenish();
+      } catch (SQLException e) {
+         failures.incrementAndGet();
+         System.err.println("Replenishment run failed: " + e.getMessage());
+      }
+   }
+
+   /*
+    * Reads the products below their reorder point, less the ones requested
+    * in the last debounceMs and the hot products whose leased units cover
+    * the shortfall, and sizes each request up to twice the reorder point.
+    */
+   private List<Request> lowStock() throws SQLException {
+      double cover = (double) config.coverMs / config.windowMs;
+      List<Request> due = new ArrayList<Request>();
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         PreparedStatement stmt = pc.statements().prepare(LOW_STOCK_QUERY);
+         stmt.setInt(1, config.minUnits);
+         stmt.setDouble(2, cover);
+         stmt.setLong(3, config.windowMs);
+         stmt.setInt(4, config.minUnits);
+         stmt.setDouble(5, cover);
+         ResultSet rs = stmt.executeQuery();
+         try {
+            while (rs.next()) {
+               int storeID = rs.getInt(1);
+               String productName = rs.getString(2);
+               if (requested.containsKey(InventoryReservations.key(storeID, productName))) continue;
+               int stock = rs.getInt(3) + inventory.leasedUnits(storeID, productName);
+               int reorderPoint = rs.getInt(4);
+               if (stock >= reorderPoint) continue;
+               due.add(new Request(rs.getInt(5), rs.getInt(6), storeID, productName, 2 * reorderPoint - stock));
+            }
+         } finally {
+            rs.close();
+         }
+      } finally {
+         pool.release(pc);
+      }
+      return due;
+   }//end lowStock
+
+   private void writeBatch(List<Request> batch) throws SQLException {
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         Connection conn = pc.connection();
+         conn.setAutoCommit(false);
+         PreparedStatement insert = pc.statements().prepare(INSERT_REQUEST);
+         try {
+            for (Request request : batch) {
+               insert.setInt(1, request.managerID);
+               insert.setInt(2, request.warehouseID);
+               insert.setInt(3, request.storeID);
+               insert.setString(4, request.productName);
+               insert.setInt(5, request.units);
+               insert.addBatch();
+            }
+            insert.executeBatch();
+         } finally {
+            insert.clearBatch();
+         }
+         conn.commit();
+      } finally {
+         // rolls back whatever did not commit
+         pool.release(pc);
+      }
+   }//end writeBatch
+}//end ReplenishmentScheduler
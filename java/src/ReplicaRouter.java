@@ -0,0 +1,334 @@
+/*
+ * Read replica router for the Retail application
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+
+/**
+ * Decides which connection pool a statement runs on: the primary, or one of
+ * the streaming replicas listed in retail.replicas.  Only read-only queries
+ * (see isReadOnly) ever go to a replica; everything else, and any query
+ * pinned with pinToPrimary(), stays on the primary.
+ *
+ * A replica is used round robin while it is reachable and no more than
+ * maxLagBytes of WAL behind the primary.  A background check reads each
+ * replica's replay position every checkIntervalMs; one that cannot be
+ * reached is skipped for retryMs, and its reads go to the primary.
+ *
+ * Read-your-writes: once a session's write commits, Retail calls
+ * markWritten() on the session.  Its next read asks the primary how far
+ * the WAL has got, and from then on that session only reads from replicas
+ * that have replayed at least that far, so it always sees its own orders
+ * and updates.  Other sessions may read data up to maxLagBytes old.
+ *
+ * A replica endpoint may also be an ordinary, non-standby server (for
+ * example the primary itself under a second entry), which is then always
+ * treated as caught up.
+ */
+public class ReplicaRouter {
+
+   /**
+    * Replica endpoints and timing knobs.  Every field can be overridden with
+    * a -Dretail.replicas.<name>=<value> system property, and the endpoints
+    * with -Dretail.replicas=host:port[/dbname],...
+    */
+   public static class Config {
+      public String endpoints = "";
+      public long checkIntervalMs = 250;
+      public long retryMs = 5000;
+      public long maxLagBytes = 16L * 1024 * 1024;
+
+      public static Config fromSystemProperties() {
+         Config config = new Config();
+         config.endpoints = System.getProperty("retail.replicas", config.endpoints);
+         config.checkIntervalMs = Long.getLong("retail.replicas.checkIntervalMs", config.checkIntervalMs);
+         config.retryMs = Long.getLong("retail.replicas.retryMs", config.retryMs);
+         config.maxLagBytes = Long.getLong("retail.replicas.maxLagBytes", config.maxLagBytes);
+         if (config.checkIntervalMs < 10) config.checkIntervalMs = 10;
+         return config;
+      }
+   }//end Config
+
+   /**
+    * One replica endpoint.  Its pool is opened by the background check, so
+    * a replica that is down at startup is picked up once it comes back.
+    */
+   private static class Replica {
+      final String name;
+      final String url;
+      volatile ConnectionPool pool;
+      // WAL position replayed as of the last check; Long.MAX_VALUE when the
+      // endpoint is not a standby
+      volatile long replayLsn = -1;
+      volatile long lagBytes = 0;
+      volatile long downUntil = 0;
+      final AtomicLong reads = new AtomicLong();
+      final AtomicLong failures = new AtomicLong();
+
+      Replica(String name, String url) {
+         this.name = name;
+         this.url = url;
+      }
+
+      boolean usable(long now, long maxLagBytes) {
+         return pool != null && now >= downUntil && replayLsn >= 0 && lagBytes <= maxLagBytes;
+      }
+   }//end Replica
+
+   // statements that change data or lock rows even though they start with
+   // SELECT or WITH (a data-modifying WITH, FOR UPDATE/SHARE, or a function
+   // that writes)
+   private static final Pattern WRITES = Pattern.compile(
+      "(?is).*(\\b(INSERT|UPDATE|DELETE|SHARE)\\b"
+      + "|\\b(nextval|setval|rebuild_popularity|partition_orders|detach_order_partitions"
+      + "|update_product|request_supply|place_order)\\s*\\("
+      // sequences are WAL-logged ahead of use, so a standby's last_value is
+      // not the primary's
+      + "|\\blast_value\\b).*");
+
+   private static final String PRIMARY_LSN_QUERY =
+      "SELECT pg_wal_lsn_diff(pg_current_wal_lsn(), '0/0')::bigint";
+   private static final String REPLAY_LSN_QUERY =
+      "SELECT pg_is_in_recovery(), pg_wal_lsn_diff(pg_last_wal_replay_lsn(), '0/0')::bigint";
+
+   private final ConnectionPool primary;
+   private final String user;
+   private final String passwd;
+   private final Config config;
+   private final List<Replica> replicas = new ArrayList<Replica>();
+   private final Set<String> pinned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+   private final AtomicInteger next = new AtomicInteger();
+   private final AtomicLong primaryReads = new AtomicLong();
+   private final ScheduledExecutorService checker;
+
+   // the primary's WAL position as of the last check
+   private volatile long primaryLsn = 0;
+
+   /**
+    * @param primary the pool every write and fallback read uses
+    * @param dbname the database a replica endpoint without /dbname serves
+    */
+   public ReplicaRouter(ConnectionPool primary, String dbname, String user, String passwd, Config config) {
+      this.primary = primary;
+      this.user = user;
+      this.passwd = passwd;
+      this.config = config;
+
+      for (String endpoint : config.endpoints.split(",")) {
+         endpoint = endpoint.trim();
+         if (endpoint.isEmpty()) continue;
+         String url = "jdbc:postgresql://" + endpoint + (endpoint.contains("/") ? "" : "/" + dbname);
+         this.replicas.add(new Replica(endpoint, url));
+      }
+
+      if (this.replicas.isEmpty()) {
+         this.checker = null;
+         return;
+      }
+      this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "retail-replica-checker");
+         t.setDaemon(true);
+         return t;
+      });
+      // the first check runs before any read is routed, so replicas that are
+      // up are used from the start
+      check();
+      this.checker.scheduleWithFixedDelay(this::check, config.checkIntervalMs, config.checkIntervalMs, TimeUnit.MILLISECONDS);
+   }//end ReplicaRouter
+
+   /**
+    * @return true when sql can only read: a SELECT or WITH that takes no row
+    *         locks, writes no table and calls none of the writing functions
+    */
+   public static boolean isReadOnly(String sql) {
+      String head = sql.trim();
+      int space = 0;
+      while (space < head.length() && Character.isLetter(head.charAt(space))) space++;
+      String verb = head.substring(0, space);
+      if (!verb.equalsIgnoreCase("SELECT") && !verb.equalsIgnoreCase("WITH")) return false;
+      return !WRITES.matcher(head).matches();
+   }//end isReadOnly
+
+   /**
+    * Keeps query on the primary even though it is read-only, for the loads
+    * of caches shared by every session: a cache filled from a lagging
+    * replica would hand the stale rows to the session that just wrote them.
+    */
+   public void pinToPrimary(String query) {
+      this.pinned.add(query);
+   }
+
+   /**
+    * @return whether any replica is configured
+    */
+   public boolean hasReplicas() {
+      return !this.replicas.isEmpty();
+   }
+
+   /**
+    * Picks the pool to run sql on for session.
+    *
+    * @return a replica's pool, or the primary's when sql may write, is
+    *         pinned, or no replica is reachable and caught up with the
+    *         session's writes
+    */
+   public ConnectionPool route(String sql, Session session) {
+      if (this.replicas.isEmpty() || this.pinned.contains(sql) || !isReadOnly(sql)) {
+         return this.primary;
+      }
+      long needed = 0;
+      if (session != null) {
+         if (session.takeWritePending()) {
+            try {
+               session.advanceWriteLsn(primaryLsn());
+            } catch (SQLException e) {
+               // without the position no replica is known to be safe
+               this.primaryReads.incrementAndGet();
+               return this.primary;
+            }
+         }
+         needed = session.getWriteLsn();
+      }
+
+      long now = System.currentTimeMillis();
+      int start = Math.floorMod(this.next.getAndIncrement(), this.replicas.size());
+      for (int i = 0; i < this.replicas.size(); i++) {
+         Replica replica = this.replicas.get((start + i) % this.replicas.size());
+         if (replica.usable(now, this.config.maxLagBytes) && replica.replayLsn >= needed) {
+            replica.reads.incrementAndGet();
+            return replica.pool;
+         }
+      }
+      this.primaryReads.incrementAndGet();
+      return this.primary;
+   }//end route
+
+   /**
+    * Takes the replica behind pool out of rotation for retryMs after e, so
+    * the following reads go to the primary.  Does nothing for the primary.
+    */
+   public void markDown(ConnectionPool pool, SQLException e) {
+      for (Replica replica : this.replicas) {
+         if (replica.pool == pool) {
+            down(replica, e);
+            return;
+         }
+      }
+   }//end markDown
+
+   /**
+    * @return one line per replica with its state, lag and reads, plus the
+    *         reads the primary served
+    */
+   public List<String> getStats() {
+      List<String> stats = new ArrayList<String>();
+      long now = System.currentTimeMillis();
+      for (Replica replica : this.replicas) {
+         String state = replica.pool == null || now < replica.downUntil ? "down"
+                      : replica.lagBytes > this.config.maxLagBytes ? "lagging" : "up";
+         stats.add(String.format("%s %s lag=%dB reads=%d failures=%d",
+            replica.name, state, replica.lagBytes, replica.reads.get(), replica.failures.get()));
+      }
+      stats.add(String.format("primary reads=%d", this.primaryReads.get()));
+      return stats;
+   }//end getStats
+
+   /**
+    * Stops the background check and closes the replica pools.
+    */
+   public void close() {
+      if (this.checker != null) this.checker.shutdownNow();
+      for (Replica replica : this.replicas) {
+         ConnectionPool pool = replica.pool;
+         if (pool != null) pool.close();
+      }
+   }//end close
+
+   /*
+    * Reads the primary's WAL position and each replica's replay position,
+    * opening the pools of replicas that are due for another try.
+    **/
+   private void check() {
+      try {
+         this.primaryLsn = primaryLsn();
+      } catch (SQLException e) {
+         // the replicas' lag is measured against the last known position
+      }
+      long now = System.currentTimeMillis();
+      for (Replica replica : this.replicas) {
+         if (now < replica.downUntil) continue;
+         try {
+            if (replica.pool == null) {
+               replica.pool = new ConnectionPool(replica.url, this.user, this.passwd,
+                                                 ConnectionPool.Config.fromSystemProperties());
+            }
+            ConnectionPool.PooledConnection pc = replica.pool.acquire();
+            try {
+               Statement stmt = pc.connection().createStatement();
+               try {
+                  ResultSet rs = stmt.executeQuery(REPLAY_LSN_QUERY);
+                  rs.next();
+                  boolean standby = rs.getBoolean(1);
+                  long replayed = rs.getLong(2);
+                  replica.replayLsn = standby ? replayed : Long.MAX_VALUE;
+                  replica.lagBytes = standby ? Math.max(0, this.primaryLsn - replayed) : 0;
+               } finally {
+                  stmt.close();
+               }
+            } catch (SQLException e) {
+               replica.pool.invalidate(pc);
+               pc = null;
+               throw e;
+            } finally {
+               if (pc != null) replica.pool.release(pc);
+            }
+         } catch (SQLException e) {
+            down(replica, e);
+         }
+      }
+   }//end check
+
+   private long primaryLsn() throws SQLException {
+      ConnectionPool.PooledConnection pc = this.primary.acquire();
+      try {
+         Statement stmt = pc.connection().createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(PRIMARY_LSN_QUERY);
+            rs.next();
+            return rs.getLong(1);
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         this.primary.release(pc);
+      }
+   }//end primaryLsn
+
+   private void down(Replica replica, SQLException e) {
+      boolean wasUp = System.currentTimeMillis() >= replica.downUntil;
+      replica.downUntil = System.currentTimeMillis() + this.config.retryMs;
+      replica.failures.incrementAndGet();
+      if (wasUp) {
+         System.err.println("Replica " + replica.name + " unavailable, reading from the primary: " + e.getMessage());
+      }
+   }//end down
+}//end ReplicaRouter
@@ -14,22 +14,37 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.CallableStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Formatter;
 import java.lang.Math;
 import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableModel;
 import java.awt.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 
@@ -48,14 +63,49 @@ public class Retail {
    public static Color pink = new Color(255, 240, 255);
    public static Color darkPink = new Color(242, 230, 255);
    public static Color blue = new Color(52, 152, 235);
-   // reference to physical database connection.
-   private Connection _connection = null;
-   private int userId = -1;
-   private double userLatitude = 0.0;
-   private double userLongitude = 0.0;
-   private String userType = "";
+   // pool of physical database connections shared by every session.
+   private ConnectionPool _pool = null;
+   // sends read-only queries to the replicas in retail.replicas, if any.
+   private ReplicaRouter _router = null;
+   // the databases the store-scoped tables are spread over; shard 0 is _pool.
+   private ShardRouter _shards = null;
+   // the shard this thread's statements go to, set by onStore/onEveryShard
+   private final ThreadLocal<Integer> _boundShard = new ThreadLocal<Integer>();
+   // takes ordered units out of Product without overselling, one per shard.
+   private InventoryReservations[] _inventory = null;
+   // batches orders from every session into group-committed inserts, one per shard.
+   private OrderPipeline[] _orders = null;
+   // each store's products, shared by the product views.
+   private CatalogCache _catalog = null;
+   // files supply requests for low-stock products, one per shard.
+   private ReplenishmentScheduler[] _replenishment = null;
+
+   // recently verified logins
+   private CredentialCache _credentials = null;
+   // set by the first cleanup()
+   private boolean _closed = false;
+   // latency, rows and bytes of every statement, by query shape.
+   private final QueryMetrics _metrics = new QueryMetrics();
+   // the menu/GUI user; server requests bind their own session instead
+   private final Session _session = new Session();
+   private final ThreadLocal<Session> _boundSession = new ThreadLocal<Session>();
    private Boolean isGUI = false;
 
+   // the "stores within 30 miles" radius used by the store views and orders
+   public static final double NEARBY_RADIUS = 30.0;
+   private static final long STORE_INDEX_REFRESH_MS = Long.getLong("retail.storeIndex.refreshMs", 60 * 1000);
+   private static final double STORE_INDEX_CELL_SIZE =
+      Double.parseDouble(System.getProperty("retail.storeIndex.cellSize", "10"));
+   // retail.geo.mode=database answers radius queries with the GiST-indexed
+   // bounding box query instead of the in-memory grid
+   private static final boolean GEO_IN_DATABASE = "database".equals(System.getProperty("retail.geo.mode", "memory"));
+   // retail.orders.mode=procedure places each order with one place_order()
+   // call instead of batching it through the OrderPipeline
+   public static final boolean ORDERS_BY_PROCEDURE = "procedure".equals(System.getProperty("retail.orders.mode", "pipeline"));
+   // in-memory grid over Store coordinates, loaded on first use
+   private GeoIndex _storeIndex = null;
+   private long _storeIndexRefreshedAt = 0;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -78,8 +128,27 @@ public class Retail {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the connection pool
+         this._pool = new ConnectionPool(url, user, passwd, ConnectionPool.Config.fromSystemProperties());
+         this._router = new ReplicaRouter(this._pool, dbname, user, passwd, ReplicaRouter.Config.fromSystemProperties());
+         // the shared catalog and login caches are loaded from the primary
+         this._router.pinToPrimary(STORE_PRODUCTS_QUERY);
+         this._router.pinToPrimary(LOGIN_QUERY);
+         this._shards = new ShardRouter(this._pool, user, passwd, ShardRouter.Config.fromSystemProperties());
+         this._inventory = new InventoryReservations[this._shards.size()];
+         this._orders = new OrderPipeline[this._shards.size()];
+         for (int shard = 0; shard < this._shards.size(); shard++) {
+            ConnectionPool pool = this._shards.pool(shard);
+            this._inventory[shard] = new InventoryReservations(pool, InventoryReservations.Config.fromSystemProperties());
+            this._orders[shard] = new OrderPipeline(pool, this._inventory[shard], OrderPipeline.Config.fromSystemProperties());
+         }
+         this._catalog = new CatalogCache(this);
+         this._replenishment = new ReplenishmentScheduler[this._shards.size()];
+         for (int shard = 0; shard < this._shards.size(); shard++) {
+            this._replenishment[shard] = new ReplenishmentScheduler(this._shards.pool(shard), this._inventory[shard],
+                                                                    this._catalog, ReplenishmentScheduler.Config.fromSystemProperties());
+         }
+         this._credentials = new CredentialCache(this);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -88,20 +157,41 @@ public class Retail {
       }//end catch
    }//end Retail
 
+   /**
+    * @return the session bound to this thread by bindSession, or the
+    *         menu/GUI user's session when none is bound
+    */
+   public Session getSession() {
+      Session bound = this._boundSession.get();
+      return bound != null ? bound : this._session;
+   }
+
+   /**
+    * Makes the getters and update methods act on session for the calling
+    * thread until unbindSession() is called.
+    */
+   public void bindSession(Session session) {
+      this._boundSession.set(session);
+   }
+
+   public void unbindSession() {
+      this._boundSession.remove();
+   }
+
    public int getUserId() {
-      return this.userId;      
+      return getSession().getUserId();
    }
 
    public double getUserLatitude() {
-      return this.userLatitude;      
+      return getSession().getLatitude();
    }
 
    public double getUserLongitude() {
-      return this.userLongitude;      
+      return getSession().getLongitude();
    }
 
    public String getUserType() {
-      return this.userType;
+      return getSession().getType();
    }
 
    public Boolean getIsGUI() {
@@ -109,109 +199,517 @@ public class Retail {
    }
 
    public void updateUserId(int userId) {
-      this.userId = userId;
+      getSession().setUserId(userId);
    }
 
    public void updateUserLatitude(double userLatitude) {
-      this.userLatitude = userLatitude;
+      getSession().setLatitude(userLatitude);
    }
 
    public void updateUserLongitude(double userLongitude) {
-      this.userLongitude = userLongitude;
+      getSession().setLongitude(userLongitude);
    }
    
    public void updateUserType(String userType) {
-      this.userType = userType;
+      getSession().setType(userType);
    }
 
    public void updateIsGUI(Boolean isGUI) {
       this.isGUI = isGUI;
    }
 
+   /**
+    * @return the current active/idle/waiter counts and acquire latency of
+    *         the connection pool
+    */
+   public ConnectionPool.Stats getPoolStats() {
+      return this._pool.getStats();
+   }
+
+   /**
+    * @return one line per shard with its replenishment counters
+    */
+   public List<String> getReplenishmentStats() {
+      List<String> stats = new ArrayList<String>();
+      for (int shard = 0; shard < this._replenishment.length; shard++) {
+         stats.add(shard + " " + this._replenishment[shard].getStats());
+      }
+      return stats;
+   }
+
+   /**
+    * @return the router that spreads reads over the replicas
+    */
+   public ReplicaRouter getRouter() {
+      return this._router;
+   }
+
+   /**
+    * @return the per-query latency statistics and slow query log
+    */
+   public QueryMetrics getMetrics() {
+      return this._metrics;
+   }
+
+   /**
+    * @return the connection pool of shard 0, for tools that need whole
+    *         connections
+    */
+   public ConnectionPool getPool() {
+      return this._pool;
+   }
+
+   /**
+    * @return the shards the store-scoped tables are spread over
+    */
+   public ShardRouter getShards() {
+      return this._shards;
+   }
+
+   /**
+    * Runs task with this thread's statements going to the shard that holds
+    * storeID's rows, for operations on a single store.
+    *
+    * @return whatever the task returns
+    */
+   public <T> T onStore(int storeID, ShardRouter.ShardTask<T> task) throws SQLException {
+      return onShard(this._shards.shardOf(storeID), task);
+   }
+
+   /**
+    * Runs task once on every shard, in parallel, for reports across stores.
+    * The task sees the calling thread's session.
+    *
+    * @return the task's results, in shard order
+    */
+   public <T> List<T> onEveryShard(final ShardRouter.ShardTask<T> task) throws SQLException {
+      final Session session = getSession();
+      return this._shards.scatter(shard -> {
+         Session previous = this._boundSession.get();
+         bindSession(session);
+         try {
+            return onShard(shard, task);
+         } finally {
+            if (previous == null) unbindSession(); else bindSession(previous);
+         }
+      });
+   }
+
+   private <T> T onShard(int shard, ShardRouter.ShardTask<T> task) throws SQLException {
+      Integer previous = this._boundShard.get();
+      this._boundShard.set(shard);
+      try {
+         return task.run(shard);
+      } finally {
+         if (previous == null) this._boundShard.remove(); else this._boundShard.set(previous);
+      }
+   }
+
+   // the shard set by onStore/onEveryShard, else shard 0
+   private int currentShard() {
+      Integer shard = this._boundShard.get();
+      return shard == null ? 0 : shard;
+   }
+
+   /**
+    * @return the reservation manager that decrements storeID's Product stock
+    */
+   public InventoryReservations getInventory(int storeID) {
+      return this._inventory[this._shards.shardOf(storeID)];
+   }
+
+   /**
+    * Hands an order to the order pipeline, which checks stock and writes it
+    * together with other sessions' orders.
+    *
+    * @return a future completed once the order is committed, or
+    *         exceptionally with the reason it was refused
+    */
+   public CompletableFuture<Void> submitOrder(final int customerID, final int storeID, String productName, int unitsOrdered) {
+      // the store's cached stock is stale once the order commits; the
+      // result is passed on unwrapped so callers still see the IOException
+      final CompletableFuture<Void> result = new CompletableFuture<Void>();
+      final Session session = getSession();
+      this._orders[this._shards.shardOf(storeID)].submit(customerID, storeID, productName, unitsOrdered).whenComplete((v, e) -> {
+         if (e != null) {
+            result.completeExceptionally(e);
+         } else {
+            session.markWritten();
+            this._catalog.invalidate(storeID);
+            result.complete(null);
+         }
+      });
+      return result;
+   }
+
+   /**
+    * @return the per-store product cache
+    */
+   public CatalogCache getCatalog() {
+      return this._catalog;
+   }
+
+   /**
+    * @return the cache of recently verified logins
+    */
+   public CredentialCache getCredentials() {
+      return this._credentials;
+   }
+
+   /**
+    * @return the spatial index over Store coordinates, loading it on first
+    *         use and picking up newly added stores once it is older than
+    *         retail.storeIndex.refreshMs
+    * @throws java.sql.SQLException when loading the stores failed
+    */
+   public synchronized GeoIndex getStoreIndex() throws SQLException {
+      if (this._storeIndex == null) {
+         reloadStoreIndex();
+      } else if (System.currentTimeMillis() - this._storeIndexRefreshedAt > STORE_INDEX_REFRESH_MS) {
+         refreshStoreIndex();
+      }
+      return this._storeIndex;
+   }
+
+   /**
+    * Rebuilds the store index from scratch.  Needed only when stores are
+    * moved or deleted outside the application.
+    *
+    * @throws java.sql.SQLException when loading the stores failed
+    */
+   public synchronized void reloadStoreIndex() throws SQLException {
+      final GeoIndex index = new GeoIndex(STORE_INDEX_CELL_SIZE);
+      for (List<GeoIndex.Entry> stores : onEveryShard(shard -> readStores("SELECT storeID, name, latitude, longitude FROM Store"))) {
+         for (GeoIndex.Entry store : stores) index.put(store);
+      }
+      this._storeIndex = index;
+      this._storeIndexRefreshedAt = System.currentTimeMillis();
+   }
+
+   /**
+    * Adds stores created since the index was last loaded or refreshed.
+    *
+    * @return the number of stores added
+    * @throws java.sql.SQLException when loading the stores failed
+    */
+   public synchronized int refreshStoreIndex() throws SQLException {
+      if (this._storeIndex == null) {
+         reloadStoreIndex();
+         return this._storeIndex.size();
+      }
+      final GeoIndex index = this._storeIndex;
+      final int after = index.size() == 0 ? Integer.MIN_VALUE : index.maxId();
+      int added = 0;
+      for (List<GeoIndex.Entry> stores : onEveryShard(shard -> readStores("SELECT storeID, name, latitude, longitude FROM Store WHERE storeID > ?", after))) {
+         for (GeoIndex.Entry store : stores) index.put(store);
+         added += stores.size();
+      }
+      this._storeIndexRefreshedAt = System.currentTimeMillis();
+      return added;
+   }
+
+   // reads {storeID, name, latitude, longitude} rows as index entries
+   private List<GeoIndex.Entry> readStores(String query, Object... params) throws SQLException {
+      final List<GeoIndex.Entry> stores = new ArrayList<GeoIndex.Entry>();
+      executeQueryAndStream(query, FETCH_SIZE,
+         rs -> stores.add(new GeoIndex.Entry(rs.getInt(1), rs.getString(2).trim(), rs.getDouble(3), rs.getDouble(4))),
+         params);
+      return stores;
+   }
+
+   /**
+    * Looks a store up in the index, refreshing once on a miss in case it was
+    * added after the last refresh.
+    *
+    * @return the store's index entry, or null when it does not exist
+    */
+   public GeoIndex.Entry findStore(int storeID) throws SQLException {
+      if (GEO_IN_DATABASE) {
+         List<List<String>> rows = onStore(storeID, shard -> executeQueryAndReturnResult(
+            "SELECT storeID, name, latitude, longitude FROM Store WHERE storeID = ?", storeID));
+         if (rows.isEmpty()) return null;
+         List<String> r = rows.get(0);
+         return new GeoIndex.Entry(storeID, r.get(1).trim(), Double.parseDouble(r.get(2)), Double.parseDouble(r.get(3)));
+      }
+      GeoIndex.Entry entry = getStoreIndex().get(storeID);
+      if (entry == null && refreshStoreIndex() > 0) {
+         entry = getStoreIndex().get(storeID);
+      }
+      return entry;
+   }
+
+   /**
+    * @return stores within NEARBY_RADIUS of the logged in user, closest first
+    */
+   public List<GeoIndex.Hit> storesNearUser() throws SQLException {
+      if (GEO_IN_DATABASE) {
+         return storesNear(getUserLatitude(), getUserLongitude(), NEARBY_RADIUS);
+      }
+      return getStoreIndex().within(getUserLatitude(), getUserLongitude(), NEARBY_RADIUS);
+   }
+
+   // bounding box prefilter (served by storeLocation_index) followed by the exact distance
+   static final String STORES_NEAR_QUERY =
+      "SELECT s.storeID, s.name, s.latitude, s.longitude, calculate_distance(?, ?, s.latitude, s.longitude) AS dist " +
+      "FROM Store s " +
+      "WHERE point(s.latitude, s.longitude) <@ box(point(?, ?), point(?, ?)) " +
+      "AND calculate_distance(?, ?, s.latitude, s.longitude) <= ? " +
+      "ORDER BY dist, s.storeID";
+
+   /**
+    * Radius search run in the database instead of the in-memory index.
+    *
+    * @return stores within radius of the point, closest first
+    */
+   public List<GeoIndex.Hit> storesNear(double latitude, double longitude, double radius) throws SQLException {
+      final List<GeoIndex.Hit> hits = new ArrayList<GeoIndex.Hit>();
+      // each shard's stores come closest first; merged the same way
+      for (List<GeoIndex.Hit> part : onEveryShard(shard -> {
+         final List<GeoIndex.Hit> found = new ArrayList<GeoIndex.Hit>();
+         executeQueryAndStream(STORES_NEAR_QUERY, FETCH_SIZE, rs -> {
+            GeoIndex.Entry entry = new GeoIndex.Entry(rs.getInt(1), rs.getString(2).trim(), rs.getDouble(3), rs.getDouble(4));
+            found.add(new GeoIndex.Hit(entry, rs.getDouble(5)));
+         }, latitude, longitude,
+            latitude - radius, longitude - radius, latitude + radius, longitude + radius,
+            latitude, longitude, radius);
+         return found;
+      })) {
+         hits.addAll(part);
+      }
+      Collections.sort(hits, GeoIndex.BY_DISTANCE);
+      return hits;
+   }
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
-   public double calculateDistance (double lat1, double long1, double lat2, double long2){
+   public static double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
    }
    /**
-    * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    * Binds positional parameters to a prepared statement using the setter
+    * that matches each value's Java type.
     *
-    * @param sql the input SQL string
-    * @throws java.sql.SQLException when update failed
+    * @param stmt the statement to bind
+    * @param params the values for the ? placeholders, in order
+    * @throws java.sql.SQLException when a value cannot be bound
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   private static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+      bind(stmt, 1, params);
+   }
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   // binds params to the placeholders from index first on
+   private static void bind (PreparedStatement stmt, int first, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; i++) {
+         Object p = params[i];
+         int idx = first + i;
+         if (p == null) stmt.setNull(idx, Types.VARCHAR);
+         else if (p instanceof Integer) stmt.setInt(idx, (Integer) p);
+         else if (p instanceof Long) stmt.setLong(idx, (Long) p);
+         else if (p instanceof Double) stmt.setDouble(idx, (Double) p);
+         else if (p instanceof Float) stmt.setFloat(idx, (Float) p);
+         else if (p instanceof Boolean) stmt.setBoolean(idx, (Boolean) p);
+         else if (p instanceof Timestamp) stmt.setTimestamp(idx, (Timestamp) p);
+         else if (p instanceof java.sql.Date) stmt.setDate(idx, (java.sql.Date) p);
+         else stmt.setString(idx, p.toString());
+      }
+   }//end bind
 
-      // close the instruction
-      stmt.close ();
+   /**
+    * Method to execute an update SQL statement.  Update SQL instructions
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.  The statement is
+    * prepared once per pooled connection and reused on later calls.
+    *
+    * @param sql the input SQL string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      ConnectionPool pool = this._shards.pool(currentShard());
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         long start = System.nanoTime();
+         int rows = 0;
+         boolean failed = true;
+         try {
+            // fetches the cached statement and binds the parameters
+            PreparedStatement stmt = pc.statements().prepare(sql);
+            bind(stmt, params);
+
+            // issues the update instruction
+            rows = stmt.executeUpdate ();
+            failed = false;
+            getSession().markWritten();
+            return rows;
+         } finally {
+            this._metrics.record(sql, System.nanoTime() - start, rows, 0, failed);
+         }
+      } finally {
+         pool.release(pc);
+      }
    }//end executeUpdate
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * Method to call a server-side function that returns text, written in
+    * JDBC escape syntax with the result as the first placeholder, e.g.
+    * "{? = call update_product(?, ?)}".  The call is prepared once per
+    * pooled connection like any other statement.
     *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param sql the call with ? placeholders
+    * @param params the values bound to the placeholders after the result
+    * @return the function's result
+    * @throws java.sql.SQLException when the function raised an error
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public String executeCall (String sql, Object... params) throws SQLException {
+      ConnectionPool pool = this._shards.pool(currentShard());
+      ConnectionPool.PooledConnection pc = pool.acquire();
+      try {
+         long start = System.nanoTime();
+         boolean failed = true;
+         try {
+            CallableStatement stmt = pc.statements().prepareCall(sql);
+            stmt.registerOutParameter(1, Types.VARCHAR);
+            bind(stmt, 2, params);
+
+            stmt.execute();
+            String result = stmt.getString(1);
+            failed = false;
+            getSession().markWritten();
+            return result;
+         } finally {
+            this._metrics.record(sql, System.nanoTime() - start, 1, 0, failed);
+         }
+      } finally {
+         pool.release(pc);
+      }
+   }//end executeCall
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Callback that consumes a whole result set.  Used by runQuery so that
+    * every SELECT gateway shares one acquire/prepare/bind/release path.
+    */
+   public interface ResultSetHandler<T> {
+      T handle(ResultSet rs) throws SQLException;
+   }//end ResultSetHandler
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+   /**
+    * Callback invoked once per row by executeQueryAndStream.  The handler
+    * reads the current row with the typed ResultSet getters and must not
+    * call next() itself.
+    */
+   public interface RowHandler {
+      void handle(ResultSet rs) throws SQLException;
+   }//end RowHandler
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      List<Integer> maxColumnSizes = new ArrayList<Integer>();
-      for(int i = 1; i <= numCol; i++) {
-         maxColumnSizes.add(rsmd.getColumnName(i).length());
-      }
+   // rows fetched per round trip when a query is streamed.
+   public static final int FETCH_SIZE = Integer.getInteger("retail.fetchSize", 500);
+   // cleared the first time the driver refuses setFetchSize, as the bundled
+   // pg73jdbc3.jar does, after which every result is read in one go
+   private static volatile boolean _cursorsSupported = true;
 
-      List<List<String>> results = new ArrayList<List<String>>();
-      List<String> header = new ArrayList<String>();
-      for(int i = 1; i <= numCol; i++) {
-         header.add(rsmd.getColumnName(i));
+   /**
+    * Borrows a connection, runs the cached prepared statement for query and
+    * passes the result set to handler.  With a positive fetchSize the query
+    * runs inside a transaction so the driver can read it through a cursor
+    * fetchSize rows at a time; a driver without fetch size support reads
+    * the result in one go instead.  Read-only queries may run on a replica (see
+    * ReplicaRouter); when the replica cannot be reached the query runs on
+    * the primary instead.
+    *
+    * @param query the input query string with ? placeholders
+    * @param fetchSize rows per round trip, or 0 to read the result in one go
+    * @param handler consumes the result set
+    * @param params the values bound to the placeholders
+    * @return whatever the handler returns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   private <T> T runQuery (String query, int fetchSize, ResultSetHandler<T> handler, Object... params) throws SQLException {
+      // the replicas are replicas of shard 0
+      int shard = currentShard();
+      ConnectionPool pool = shard == 0 ? this._router.route(query, getSession()) : this._shards.pool(shard);
+      ConnectionPool.PooledConnection pc;
+      try {
+         pc = pool.acquire();
+      } catch (SQLException e) {
+         if (pool == this._shards.pool(shard)) throw e;
+         this._router.markDown(pool, e);
+         pool = this._shards.pool(shard);
+         pc = pool.acquire();
       }
-      results.add(header);
-
-      while (rs.next()){
-         List<String> row = new ArrayList<String>();
-         for (int i=1; i<=numCol; ++i){
-            row.add(rs.getString(i).trim());
-            maxColumnSizes.set(i - 1, Math.max(maxColumnSizes.get(i-1), rs.getString(i).trim().length()));
-         }
-         results.add(row);
-         ++rowCount;
-      }//end while
-
-      for(List<String> r: results) {
-         for(int i = 0; i < r.size(); i++) {
-            String space = "";
-            for(int j = 0; j < maxColumnSizes.get(i)- r.get(i).length() + 2; j++) {
-               space += " ";
+      try {
+         // rows and bytes read through the result set, for the metrics
+         long[] counts = new long[2];
+         long start = System.nanoTime();
+         boolean failed = true;
+         try {
+            // fetches the cached statement and binds the parameters
+            PreparedStatement stmt = pc.statements().prepare(query);
+            bind(stmt, params);
+            boolean cursor = false;
+            if (fetchSize > 0 && _cursorsSupported) {
+               try {
+                  stmt.setFetchSize(fetchSize);
+                  cursor = true;
+               } catch (SQLException e) {
+                  // the driver has no fetch size (postgresql.unimplemented); read buffered from now on
+                  _cursorsSupported = false;
+               }
             }
-            System.out.print(r.get(i)+space);
+            // cursors only stay open inside a transaction
+            if (cursor) pc.connection().setAutoCommit(false);
+            try {
+               // issues the query instruction
+               ResultSet rs = stmt.executeQuery ();
+               T result;
+               try {
+                  result = handler.handle(QueryMetrics.counting(rs, counts));
+               } finally {
+                  rs.close ();
+               }
+               if (cursor) pc.connection().commit();
+               failed = false;
+               return result;
+            } finally {
+               // the statement is cached, so don't leak the fetch size to the next caller
+               if (cursor) stmt.setFetchSize(0);
+            }
+         } finally {
+            this._metrics.record(query, System.nanoTime() - start, counts[0], counts[1], failed);
          }
-         System.out.println();
+      } catch (SQLException e) {
+         // rows may already have been handed out, so the query is not
+         // retried, but the next ones go to the primary
+         if (pool != this._shards.pool(shard) && isConnectionFailure(e)) this._router.markDown(pool, e);
+         throw e;
+      } finally {
+         // rolls back anything left open and restores autocommit
+         pool.release(pc);
       }
-      stmt.close ();
-      return rowCount;
+   }//end runQuery
+
+   /*
+    * True for the connection exception (08) and operator intervention (57P)
+    * SQLSTATE classes, i.e. the server went away rather than the query
+    * being wrong.
+    **/
+   private static boolean isConnectionFailure(SQLException e) {
+      String state = e.getSQLState();
+      return state != null && (state.startsWith("08") || state.startsWith("57P"));
+   }
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and outputs the results to
+    * standard out, with every column as wide as its widest value.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return runQuery(query, 0, rs -> new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(rs), params);
    }//end executeQuery
 
    /**
@@ -219,92 +717,189 @@ public class Retail {
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      return runQuery(query, 0, Retail::readAll, params);
+   }//end executeQueryAndReturnResult
 
+   /**
+    * Reads every remaining row of a result set into a list of records, each
+    * record being the column values as strings.
+    *
+    * @param rs the result set to consume
+    * @return the rows read
+    * @throws java.sql.SQLException when reading the result set fails
+    */
+   public static List<List<String>> readAll (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
        */
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
 
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
       List<List<String>> result  = new ArrayList<List<String>>();
       while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
+        List<String> record = new ArrayList<String>(numCol);
+        for (int i=1; i<=numCol; ++i)
+           record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end readAll
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * hand each row to a callback as it arrives.  With a positive fetchSize
+    * (usually FETCH_SIZE) the query runs inside a read-only transaction
+    * with a fetch size set, so the driver pulls rows through a server-side
+    * cursor in chunks of fetchSize instead of materializing the whole
+    * result; heap use stays flat however many rows come back.  With 0 the
+    * result is read in one round trip, which suits small results.
     *
-    * @param query the input query string
-    * @return the number of rows returned
+    * @param query the input query string with ? placeholders
+    * @param fetchSize the number of rows fetched per round trip, or 0 to
+    *        read the result in one go
+    * @param handler called once for every row
+    * @param params the values bound to the placeholders
+    * @return the number of rows streamed
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   public int executeQueryAndStream (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+      return runQuery(query, fetchSize, rs -> {
+         int rowCount = 0;
+         while (rs.next()){
+            handler.handle(rs);
+            ++rowCount;
+         }//end while
+         return rowCount;
+      }, params);
+   }//end executeQueryAndStream
 
-       int rowCount = 0;
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * print the rows to standard out as they are streamed from the DBMS.
+    * Column widths are sized from the first rows, so printing starts
+    * almost immediately and only that sample is ever buffered.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStreamResult (String query, Object... params) throws SQLException {
+      return runQuery(query, FETCH_SIZE, rs -> new TablePrinter(System.out, TablePrinter.Mode.STREAM_SAMPLED).print(rs), params);
+   }//end executeQueryAndStreamResult
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   /**
+    * Method to run a query on every shard in parallel and merge the rows
+    * (see ShardRouter.merge), for reports across stores.  Each shard's rows
+    * must already be in order, and a top-K query must LIMIT each shard to
+    * K rows itself.
+    *
+    * @param query the input query string with ? placeholders
+    * @param order the order of the merged rows, or null to concatenate the
+    *        shards' rows in shard order
+    * @param limit rows to keep, or 0 for all of them
+    * @param params the values bound to the placeholders
+    * @return the merged rows
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<String>> executeQueryOnEveryShard (String query, Comparator<List<String>> order, int limit, Object... params) throws SQLException {
+      return ShardRouter.merge(onEveryShard(shard -> executeQueryAndReturnResult(query, params)), order, limit);
+   }//end executeQueryOnEveryShard
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Method to stream a query's rows to standard out from every shard in
+    * turn, as one table.  The shards are read one after another rather
+    * than in parallel so only one result is being printed at a time, and
+    * the columns are sized from the metadata so every part lines up.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows printed
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+   public int executeQueryAndStreamResultOnEveryShard (String query, Object... params) throws SQLException {
+      if (this._shards.size() == 1) return executeQueryAndStreamResult(query, params);
+      int rowCount = 0;
+      for (int shard = 0; shard < this._shards.size(); shard++) {
+         final boolean first = shard == 0;
+         rowCount += onShard(shard, s -> runQuery(query, FETCH_SIZE,
+            rs -> new TablePrinter(System.out, TablePrinter.Mode.STREAM_FIXED).print(rs, first), params));
+      }
+      return rowCount;
+   }//end executeQueryAndStreamResultOnEveryShard
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+       // streams the rows so counting a large result never holds it in memory
+       return executeQueryAndStream(query, FETCH_SIZE, rs -> { }, params);
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to run an INSERT and return the key the database generated for
+    * the new row, e.g. an orderNumber.  The key comes back with the insert
+    * itself (INSERT ... RETURNING), so it is this insert's key even though
+    * other sessions draw from the same sequence on other pooled
+    * connections; neither currval() on another backend nor the sequence's
+    * last_value can promise that.
+    *
+    * @param insert the INSERT statement with ? placeholders
+    * @param keyColumn the serial column whose new value is returned
+    * @param params the values bound to the placeholders
+    * @return the generated key, or -1 when no row was inserted
+    * @throws java.sql.SQLException when failed to execute the insert
     */
-   public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+   public int executeInsertAndReturnKey (String insert, String keyColumn, Object... params) throws SQLException {
+      // identifiers cannot be bound as parameters, so only plain names are accepted
+      if (!keyColumn.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+         throw new SQLException("Invalid key column: " + keyColumn);
+      }
+      int key = runQuery(insert + " RETURNING " + keyColumn, 0, rs -> rs.next() ? rs.getInt(1) : -1, params);
+      getSession().markWritten();
+      return key;
+   }//end executeInsertAndReturnKey
+
+   /**
+    * Method to close the connection pool and every physical connection in it.
+    * Only the first call does anything, so the --server shutdown hook and
+    * main's finally block can both call it.
+    */
+   public synchronized void cleanup(){
+      if (this._closed) return;
+      this._closed = true;
+      if (this._replenishment != null){
+         for (ReplenishmentScheduler replenishment : this._replenishment) if (replenishment != null) replenishment.close ();
+      }//end if
+      if (this._orders != null){
+         for (OrderPipeline orders : this._orders) if (orders != null) orders.close ();
+      }//end if
+      if (this._inventory != null){
+         for (InventoryReservations inventory : this._inventory) if (inventory != null) inventory.close ();
+      }//end if
+      if (this._shards != null){
+         this._shards.close ();
+      }//end if
+      if (this._router != null){
+         this._router.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    public static Box ContentBox(Retail esql) {
@@ -327,57 +922,65 @@ public class Retail {
          System.out.println("Attempting to Log In!");
          String username = UserInputBox.getText();
          String password = PasswordInputBox.getText();
-         
-         String verifiedUser = LogIn(esql, username, password);
-         if (verifiedUser == null) {
-            return;
-         }
-
-         loginPanel.setVisible(false);
-
-         // View Stores within 30 miles
-         JPanel viewStorePanel = ViewStorePanel(esql);
-
-         // View Products
-         JPanel viewProductsPanel = ViewProductsPanel(esql);
-
-         // Place and View Orders
-         JPanel placeAndViewOrders = PlaceAndViewOrders(esql);
-
-         JTabbedPane tabbedPane = new JTabbedPane();
-         tabbedPane.setBackground(purple);
-         tabbedPane.addTab("Stores", null, viewStorePanel, "View Stores In Your Area");
-         tabbedPane.addTab("Products", null, viewProductsPanel, "View Products List");
-         tabbedPane.addTab("Order", null, placeAndViewOrders, "Place and View Recent Orders");
-
-
-         // Managers and Admins
-         if(esql.getUserType().equals("manager") || esql.getUserType().equals("admin")) {
-            // Update Product and View Recent Updates
-            JPanel productUpdatesPanel = ProductUpdatesPanel(esql);
-
-            // View Popular Items and Customers
-            JPanel popularPanel = PopularPanel(esql);
-
-            // Place and View Supply Requests
-            JPanel productSupplyRequestPanel = ProductSupplyRequestPanel(esql);
-
-            // View The Stores You Manage
-            JPanel viewManagedStoresPanel = ViewManagedStoresPanel(esql);
+         long clicked = System.nanoTime();
+         submitButton.setEnabled(false);
+
+         // the login query runs in the background; the tabs are built once it is back
+         GuiLoader.submit(() -> LogIn(esql, username, password), verifiedUser -> {
+            submitButton.setEnabled(true);
+            if (verifiedUser == null) {
+               return;
+            }
 
-            tabbedPane.addTab("Updates", null, productUpdatesPanel, "Place and View Recent Product Updates");
-            tabbedPane.addTab("Popular", null, popularPanel, "View Popular Items and Customers");
-            tabbedPane.addTab("Supply Requests", null, productSupplyRequestPanel, "Place and View Recent Supply Requests");
-            tabbedPane.addTab("My Stores", null, viewManagedStoresPanel, "View the Stores that you Mange");
+            loginPanel.setVisible(false);
 
-            // tabbedPane.addChangeListener(u -> {
-            //    if (tabbedPane.getSelectedIndex() == 1) {
-            //       System.out.println("Products tab");
-            //    }
-            // });
-         }
+            // each tab queries only when it is first selected
+            JTabbedPane tabbedPane = new JTabbedPane() {
+               private boolean painted = false;
 
-         content.add(tabbedPane);
+               @Override
+               public void paint(Graphics g) {
+                  super.paint(g);
+                  if (!painted) {
+                     painted = true;
+                     System.out.println(String.format("Login to first paint: %d ms", (System.nanoTime() - clicked) / 1000000));
+                  }
+               }
+            };
+            tabbedPane.setBackground(purple);
+            // View Stores within 30 miles
+            tabbedPane.addTab("Stores", null, new LazyTab(() -> ViewStorePanel(esql)), "View Stores In Your Area");
+            // View Products
+            tabbedPane.addTab("Products", null, new LazyTab(() -> ViewProductsPanel(esql)), "View Products List");
+            // Place and View Orders
+            tabbedPane.addTab("Order", null, new LazyTab(() -> PlaceAndViewOrders(esql)), "Place and View Recent Orders");
+
+
+            // Managers and Admins
+            if(esql.getUserType().equals("manager") || esql.getUserType().equals("admin")) {
+               // Update Product and View Recent Updates
+               tabbedPane.addTab("Updates", null, new LazyTab(() -> ProductUpdatesPanel(esql)), "Place and View Recent Product Updates");
+               // View Popular Items and Customers
+               tabbedPane.addTab("Popular", null, new LazyTab(() -> PopularPanel(esql)), "View Popular Items and Customers");
+               // Place and View Supply Requests
+               tabbedPane.addTab("Supply Requests", null, new LazyTab(() -> ProductSupplyRequestPanel(esql)), "Place and View Recent Supply Requests");
+               // View The Stores You Manage
+               tabbedPane.addTab("My Stores", null, new LazyTab(() -> ViewManagedStoresPanel(esql)), "View the Stores that you Mange");
+
+               if (esql.getUserType().equals("admin")) {
+                  // Query timings and the slow query log
+                  tabbedPane.addTab("Metrics", null, MetricsPanel(esql), "View Query Timings and Slow Queries");
+               }
+            }
+            LazyTab.install(tabbedPane);
+
+            content.add(tabbedPane);
+            content.revalidate();
+            content.repaint();
+         }, ex -> {
+            submitButton.setEnabled(true);
+            System.err.println(ex.getMessage());
+         });
       });
 
       createUserButton.addActionListener(e -> {
@@ -412,14 +1015,21 @@ public class Retail {
             String password = inputField2.getText();
             String latitude = inputField3.getText();
             String longitude = inputField4.getText();
-
-            CreateUser(esql, name, password, latitude, longitude);
-
-            UserInputBox.setText(name);
-            PasswordInputBox.setText(password);
-
-            container.setVisible(false);
-            loginPanel.setVisible(true);
+            submitButton1.setEnabled(false);
+
+            GuiLoader.submit(() -> {
+               CreateUser(esql, name, password, latitude, longitude);
+               return Boolean.TRUE;
+            }, created -> {
+               UserInputBox.setText(name);
+               PasswordInputBox.setText(password);
+
+               container.setVisible(false);
+               loginPanel.setVisible(true);
+            }, ex -> {
+               submitButton1.setEnabled(true);
+               System.err.println(ex.getMessage());
+            });
          });
 
          loginPanel.setVisible(false);
@@ -451,26 +1061,17 @@ public class Retail {
       JPanel panel = new JPanel();
       panel.setPreferredSize(new Dimension(600, 500));
       panel.setOpaque(false);
-      JLabel label1 = new JLabel("Popular Items");
-      JLabel label2 = new JLabel("Popular Customers");
-      try {
-         JTable table1 = viewPopularProductsAndMakeTable(esql);
-         JTable table2 = viewPopularCustomersAndMakeTable(esql);
-
-         JScrollPane scroll1 = new JScrollPane(table1);
-         JScrollPane scroll2 = new JScrollPane(table2);
-
-         scroll1.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
-         scroll2.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
-         scroll1.getViewport().setBackground(darkPink);
-         scroll2.getViewport().setBackground(darkPink);
-         panel.add(label1);
-         panel.add(scroll1);
-         panel.add(label2);
-         panel.add(scroll2);
-      } catch (Exception e) {
-         System.err.println ("Couldn't load popular products and customers: " + e.getMessage());
-      }
+      GuiLoader.load(panel, "popular products and customers", () -> {
+         List<String[][]> tables = new ArrayList<String[][]>();
+         tables.add(viewPopularProductsRows(esql));
+         tables.add(viewPopularCustomersRows(esql));
+         return tables;
+      }, tables -> {
+         panel.add(new JLabel("Popular Items"));
+         panel.add(makeScroll(makeTable(tables.get(0), POPULAR_PRODUCTS_COLUMNS), 200));
+         panel.add(new JLabel("Popular Customers"));
+         panel.add(makeScroll(makeTable(tables.get(1), POPULAR_CUSTOMERS_COLUMNS), 200));
+      });
       return panel;
    }
 
@@ -489,35 +1090,18 @@ public class Retail {
       tableBox.setOpaque(false);
       submitButton.addActionListener(e -> {
          System.out.println("Loading Tables...");
-         tableBox.setVisible(false);
-         tableBox.removeAll();
          String input = inputField.getText();
-         List<JTable> viewTables = viewProductsAndMakeTables(esql, input);
-         if (viewTables.size() != 4) {
-            System.out.println("Bad Query");
-            return;
-         }
-         JScrollPane scroll1 = new JScrollPane(viewTables.get(0));
-         JScrollPane scroll2 = new JScrollPane(viewTables.get(1));
-         JScrollPane scroll3 = new JScrollPane(viewTables.get(2));
-         JScrollPane scroll4 = new JScrollPane(viewTables.get(3));
-         scroll1.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
-         scroll2.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
-         scroll3.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
-         scroll4.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
-         scroll1.getViewport().setBackground(darkPink);
-         scroll2.getViewport().setBackground(darkPink);
-         scroll3.getViewport().setBackground(darkPink);
-         scroll4.getViewport().setBackground(darkPink);
-         JTabbedPane tabbedPane = new JTabbedPane();
-         tabbedPane.setBackground(purple);
-         tabbedPane.addTab("All Products", null, scroll1);
-         tabbedPane.addTab("Price (High to Low)", null, scroll2);
-         tabbedPane.addTab("Price (Low to High)", null, scroll3);
-         tabbedPane.addTab("Popular", null, scroll4);
-         tableBox.add(tabbedPane);
-         tableBox.setVisible(true);
-         System.out.println("Added Tables");
+         // a newer submit replaces a store that is still loading
+         GuiLoader.load(tableBox, "products", () -> viewProductsRows(esql, input), tables -> {
+            JTabbedPane tabbedPane = new JTabbedPane();
+            tabbedPane.setBackground(purple);
+            tabbedPane.addTab("All Products", null, makeScroll(makeTable(tables.get(0), PRODUCT_COLUMNS), 200));
+            tabbedPane.addTab("Price (High to Low)", null, makeScroll(makeTable(tables.get(1), PRODUCT_COLUMNS), 200));
+            tabbedPane.addTab("Price (Low to High)", null, makeScroll(makeTable(tables.get(2), PRODUCT_COLUMNS), 200));
+            tabbedPane.addTab("Popular", null, makeScroll(makeTable(tables.get(3), POPULAR_STORE_PRODUCTS_COLUMNS), 200));
+            tableBox.add(tabbedPane);
+            System.out.println("Added Tables");
+         });
       });
       // submitButton.doClick();
       inputBox.add(text); inputBox.add(inputField); inputBox.add(submitButton);
@@ -554,32 +1138,25 @@ public class Retail {
 
       Box tableBox = Box.createVerticalBox();
       tableBox.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
-      try {
-         JScrollPane scroll = new JScrollPane(viewRecentOrdersAndMakeTable(esql));
-         scroll.getViewport().setBackground(darkPink);
-         tableBox.add(scroll);
-      } catch (Exception e) {
-         System.err.println ("Couldn't load recent orders: " + e.getMessage());
-      }
+      loadTable(tableBox, "recent orders", () -> viewRecentOrdersRows(esql), RECENT_ORDERS_COLUMNS, 200);
 
       submitButton.addActionListener(u -> {
          System.out.println("Loading Recent Orders...");
          String storeID = inputField1.getText();
          String productName = inputField2.getText();
-         Integer units = Integer.parseInt(inputField3.getText());
-         placeOrder(esql, storeID, productName, units);
-         try {
-            tableBox.setVisible(false);
-            tableBox.removeAll();
-            JTable table = viewRecentOrdersAndMakeTable(esql);
-            JScrollPane scroll = new JScrollPane(table);
-            scroll.getViewport().setBackground(darkPink);
-            tableBox.add(scroll);
-            tableBox.setVisible(true);
-            System.out.println("Done");
-         } catch (Exception e) {
-            System.err.println ("Couldn't load recent orders: " + e.getMessage());
-         }
+         String units = inputField3.getText();
+         submitButton.setEnabled(false);
+         // writes are never cancelled; only the refresh after them is
+         GuiLoader.submit(() -> {
+            placeOrder(esql, storeID, productName, Integer.parseInt(units.trim()));
+            return Boolean.TRUE;
+         }, placed -> {
+            submitButton.setEnabled(true);
+            loadTable(tableBox, "recent orders", () -> viewRecentOrdersRows(esql), RECENT_ORDERS_COLUMNS, 200);
+         }, e -> {
+            submitButton.setEnabled(true);
+            System.err.println (e.getMessage());
+         });
       });
       panel.add(new JLabel("Recent Orders"));
       panel.add(tableBox);
@@ -622,13 +1199,7 @@ public class Retail {
 
       Box tableBox = Box.createVerticalBox();
       tableBox.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
-      try {
-         JScrollPane scroll = new JScrollPane(viewRecentUpdatesAndMakeTable(esql));
-         scroll.getViewport().setBackground(darkPink);
-         tableBox.add(scroll);
-      } catch (Exception e) {
-         System.err.println ("Couldn't load recent updates: " + e.getMessage());
-      }
+      loadTable(tableBox, "recent updates", () -> viewRecentUpdatesRows(esql), RECENT_UPDATES_COLUMNS, 200);
 
       submitButton.addActionListener(u -> {
          System.out.println("Loading Recent Orders...");
@@ -636,19 +1207,17 @@ public class Retail {
          String productName = inputField2.getText();
          String numUnits = inputField3.getText();
          String pricePerUnit = inputField4.getText();
-         updateProduct(esql, storeID, productName, numUnits, pricePerUnit);
-         try {
-            tableBox.setVisible(false);
-            tableBox.removeAll();
-            JTable table = viewRecentUpdatesAndMakeTable(esql);
-            JScrollPane scroll = new JScrollPane(table);
-            scroll.getViewport().setBackground(darkPink);
-            tableBox.add(scroll);
-            tableBox.setVisible(true);
-            System.out.println("Done");
-         } catch (Exception e) {
-            System.err.println ("Couldn't load recent updates: " + e.getMessage());
-         }
+         submitButton.setEnabled(false);
+         GuiLoader.submit(() -> {
+            updateProduct(esql, storeID, productName, numUnits, pricePerUnit);
+            return Boolean.TRUE;
+         }, updated -> {
+            submitButton.setEnabled(true);
+            loadTable(tableBox, "recent updates", () -> viewRecentUpdatesRows(esql), RECENT_UPDATES_COLUMNS, 200);
+         }, e -> {
+            submitButton.setEnabled(true);
+            System.err.println (e.getMessage());
+         });
       });
 
       panel.add(new JLabel("Recent Updates"));
@@ -692,13 +1261,9 @@ public class Retail {
 
       Box tableBox = Box.createVerticalBox();
       tableBox.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
-      try {
-         JScrollPane scroll = new JScrollPane(viewRecentRequestsAndMakeTable(esql));
-         scroll.getViewport().setBackground(darkPink);
-         tableBox.add(scroll);
-      } catch (Exception e) {
-         System.err.println ("Couldn't load recent requests: " + e.getMessage());
-      }
+      // every request the manager made, read a page at a time as it is scrolled
+      PagedTableModel requests = new PagedTableModel(esql, RECENT_REQUESTS_COLUMNS, PAGED_REQUESTS_QUERY, 0, Integer.MAX_VALUE, esql.getUserId());
+      tableBox.add(makeScroll(makeTable(requests), 200));
 
       submitButton.addActionListener(u -> {
          System.out.println("Loading Recent Supply Requests...");
@@ -706,19 +1271,17 @@ public class Retail {
          String productName = inputField2.getText();
          String numProductsNeeded = inputField3.getText();
          String warehouseID = inputField4.getText();
-         placeProductSupplyRequests(esql, storeID, productName, numProductsNeeded, warehouseID);
-         try {
-            tableBox.setVisible(false);
-            tableBox.removeAll();
-            JTable table = viewRecentRequestsAndMakeTable(esql);
-            JScrollPane scroll = new JScrollPane(table);
-            scroll.getViewport().setBackground(darkPink);
-            tableBox.add(scroll);
-            tableBox.setVisible(true);
-            System.out.println("Done");
-         } catch (Exception e) {
-            System.err.println ("Couldn't load supply requests: " + e.getMessage());
-         }
+         submitButton.setEnabled(false);
+         GuiLoader.submit(() -> {
+            placeProductSupplyRequests(esql, storeID, productName, numProductsNeeded, warehouseID);
+            return Boolean.TRUE;
+         }, requested -> {
+            submitButton.setEnabled(true);
+            requests.refresh();
+         }, e -> {
+            submitButton.setEnabled(true);
+            System.err.println (e.getMessage());
+         });
       });
 
       panel.add(new JLabel("Recent Supply Requests"));
@@ -734,25 +1297,14 @@ public class Retail {
       viewStorePanel.setPreferredSize(new Dimension(600, 500));
       viewStorePanel.setOpaque(false);
       //viewStorePanel.setBackground(myBackground);
-      JLabel viewStoreLabel1 = new JLabel("Stores within 30 miles");
-      JLabel viewStoreLabel2 = new JLabel("Popular Stores in Your Area");
-      JLabel viewStoreLabel3 = new JLabel("Order From These Stores Again");
-      List<JTable> viewTables = viewStoresAndMakeTables(esql);
-      JScrollPane closeStoresScroll = new JScrollPane(viewTables.get(0));
-      JScrollPane popularStoresScroll = new JScrollPane(viewTables.get(1));
-      JScrollPane recentStoresScroll = new JScrollPane(viewTables.get(2));
-      closeStoresScroll.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 100));
-      popularStoresScroll.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 100));
-      recentStoresScroll.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 100));
-      closeStoresScroll.getViewport().setBackground(darkPink);
-      popularStoresScroll.getViewport().setBackground(darkPink);
-      recentStoresScroll.getViewport().setBackground(darkPink);
-      viewStorePanel.add(viewStoreLabel1);
-      viewStorePanel.add(closeStoresScroll);
-      viewStorePanel.add(viewStoreLabel2);
-      viewStorePanel.add(popularStoresScroll);
-      viewStorePanel.add(viewStoreLabel3);
-      viewStorePanel.add(recentStoresScroll);
+      GuiLoader.load(viewStorePanel, "stores", () -> viewStoresRows(esql), tables -> {
+         viewStorePanel.add(new JLabel("Stores within 30 miles"));
+         viewStorePanel.add(makeScroll(makeTable(tables.get(0), NEARBY_STORES_COLUMNS), 100));
+         viewStorePanel.add(new JLabel("Popular Stores in Your Area"));
+         viewStorePanel.add(makeScroll(makeTable(tables.get(1), POPULAR_STORES_COLUMNS), 100));
+         viewStorePanel.add(new JLabel("Order From These Stores Again"));
+         viewStorePanel.add(makeScroll(makeTable(tables.get(2), REPEAT_STORES_COLUMNS), 100));
+      });
       return viewStorePanel;
    }
 
@@ -760,17 +1312,81 @@ public class Retail {
       JPanel panel = new JPanel();
       panel.setPreferredSize(new Dimension(600, 500));
       panel.setOpaque(false);
-      JLabel label = new JLabel("Stores You Manage");
-      try {
-         JTable table1 = viewManagedStoresAndMakeTable(esql);
-         JScrollPane scroll = new JScrollPane(table1);
-         scroll.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
-         scroll.getViewport().setBackground(darkPink);
-         panel.add(label);
-         panel.add(scroll);
-      } catch (Exception e) {
-         System.err.println ("Couldn't load managed stores: " + e.getMessage());
-      }
+      PagedTableModel stores = new PagedTableModel(esql, MANAGED_STORES_COLUMNS, PAGED_MANAGED_STORES_QUERY, 0, Integer.MIN_VALUE, esql.getUserId());
+      panel.add(new JLabel("Stores You Manage"));
+      panel.add(makeScroll(makeTable(stores), 200));
+      return panel;
+   }
+
+   /*
+    * A read-only table in the GUI's colours.
+    **/
+   public static JTable makeTable(String[][] rows, String[] columns) {
+      return makeTable(new DefaultTableModel(rows, columns));
+   }
+
+   public static JTable makeTable(TableModel model) {
+      JTable table = new JTable(model);
+      table.setEnabled(false);
+      table.getTableHeader().setOpaque(false);
+      table.getTableHeader().setBackground(darkPurple);
+      table.setBackground(pink);
+      return table;
+   }
+
+   /*
+    * A table's scroll pane, 60% of the window wide.
+    **/
+   public static JScrollPane makeScroll(JTable table, int height) {
+      JScrollPane scroll = new JScrollPane(table);
+      scroll.setPreferredSize(new Dimension((int)(WIDTH * 0.6), height));
+      scroll.getViewport().setBackground(darkPink);
+      return scroll;
+   }
+
+   /*
+    * Queries rows in the background and shows them as a table in box.
+    **/
+   public static void loadTable(JComponent box, String what, Callable<String[][]> rows, String[] columns, int height) {
+      GuiLoader.load(box, what, rows, result -> box.add(makeScroll(makeTable(result, columns), height)));
+   }
+
+   public static JPanel MetricsPanel(Retail esql) {
+      JPanel panel = new JPanel();
+      panel.setPreferredSize(new Dimension(600, 500));
+      panel.setOpaque(false);
+      JLabel label = new JLabel("Queries by Total Time");
+      JLabel slowLabel = new JLabel("Slow Queries (over " + QueryMetrics.SLOW_QUERY_MS + " ms)");
+      JTable table = new JTable();
+      JTable slowTable = new JTable();
+      table.setEnabled(false);
+      slowTable.setEnabled(false);
+      JScrollPane scroll = new JScrollPane(table);
+      JScrollPane slowScroll = new JScrollPane(slowTable);
+      scroll.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 200));
+      slowScroll.setPreferredSize(new Dimension((int)(WIDTH * 0.6), 150));
+      scroll.getViewport().setBackground(darkPink);
+      slowScroll.getViewport().setBackground(darkPink);
+      JButton refreshButton = new JButton("Refresh");
+      JButton resetButton = new JButton("Reset");
+
+      Runnable refresh = () -> {
+         table.setModel(new DefaultTableModel(esql.getMetrics().rows().toArray(new String[0][]), QueryMetrics.COLUMNS));
+         slowTable.setModel(new DefaultTableModel(esql.getMetrics().slowRows().toArray(new String[0][]), QueryMetrics.SLOW_COLUMNS));
+      };
+      refreshButton.addActionListener(e -> refresh.run());
+      resetButton.addActionListener(e -> {
+         esql.getMetrics().reset();
+         refresh.run();
+      });
+      refresh.run();
+
+      panel.add(label);
+      panel.add(scroll);
+      panel.add(slowLabel);
+      panel.add(slowScroll);
+      panel.add(refreshButton);
+      panel.add(resetButton);
       return panel;
    }
 
@@ -831,12 +1447,12 @@ public class Retail {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3 && args.length != 4) {
+      if (args.length < 3 || args.length > 5) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Retail.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--gui|--server|--load [dir]]");
          return;
       }//end if
 
@@ -851,6 +1467,16 @@ public class Retail {
          String user = args[2];
          esql = new Retail (dbname, dbport, user, "");
 
+         if (args.length == 4 && args[3].equals("--server")) {
+            RetailServer.serve(esql);
+            return;
+         }
+
+         if (args.length >= 4 && args[3].equals("--load")) {
+            BulkLoader.load(esql, args.length == 5 ? args[4] : "data");
+            return;
+         }
+
          esql.updateIsGUI(args.length == 4 && args[3].equals("--gui"));
 
          if (!esql.getIsGUI()) Greeting();
@@ -901,6 +1527,8 @@ public class Retail {
                   System.out.println("13. View All Products");	
                   System.out.println("14. View All Users");	
                   System.out.println("15. Update User");	
+                  System.out.println("16. Rebuild Popularity Counters");
+                  System.out.println("17. View Query Metrics");
                 }
 
                 System.out.println(".........................");
@@ -930,6 +1558,8 @@ public class Retail {
                      case 13: viewAllProducts(esql); break;	
                      case 14: viewUsers(esql); break;	
                      case 15: updateUser(esql); break;
+                     case 16: rebuildPopularity(esql); break;
+                     case 17: viewQueryMetrics(esql); break;
                      case 20: 	
                         usermenu = false;	
                         esql.updateUserId(-1);	
@@ -1007,17 +1637,25 @@ public class Retail {
    }
    public static void CreateUser(Retail esql, String name, String password, String latitude, String longitude){
       try{
-         String type="Customer";
-
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
-
-         esql.executeUpdate(query);
+         createUserAccount(esql, name, password, latitude, longitude);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
    }//end CreateUser
 
+   /*
+    * Inserts a new customer.
+    * @throws Exception when the input is malformed or the insert fails
+    **/
+   public static void createUserAccount(Retail esql, String name, String password, String latitude, String longitude) throws Exception {
+      String type="Customer";
+
+      String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)";
+
+      esql.executeUpdate(query, name, password, Double.parseDouble(latitude), Double.parseDouble(longitude), type);
+   }//end createUserAccount
+
 
    /*
     * Check log in credentials for an existing user
@@ -1037,15 +1675,14 @@ public class Retail {
    }
    public static String LogIn(Retail esql, String name, String password){ // Andrei
       try{
-         String query = String.format("SELECT userId, name, latitude, longitude, type FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         List<List<String>> queryResult = esql.executeQueryAndReturnResult(query);
-	      if (queryResult.size() > 0) {
-            esql.updateUserId(Integer.parseInt(queryResult.get(0).get(0)));
-		      esql.updateUserLatitude(Double.parseDouble(queryResult.get(0).get(2)));
-            esql.updateUserLongitude(Double.parseDouble(queryResult.get(0).get(3)));;
-            esql.updateUserType(queryResult.get(0).get(4).trim());
+         Session session = authenticate(esql, name, password);
+	      if (session != null) {
+            esql.updateUserId(session.getUserId());
+		      esql.updateUserLatitude(session.getLatitude());
+            esql.updateUserLongitude(session.getLongitude());
+            esql.updateUserType(session.getType());
             
-            return queryResult.get(0).get(1);
+            return name;
          }
          // if it doesn't exit, print user login doesn't exist
          System.out.println("User does not exist");
@@ -1056,98 +1693,199 @@ public class Retail {
       }
    }//end
 
+   // a user by name and password; userName_index finds the name
+   public static final String LOGIN_QUERY =
+      "SELECT userId, name, latitude, longitude, type FROM USERS WHERE name = ? AND password = ?";
+
+   /*
+    * Checks a user's credentials without touching the current session,
+    * answering from the credential cache when the same login succeeded
+    * recently.
+    * @return a new session for the user, or null if the credentials are wrong
+    **/
+   public static Session authenticate(Retail esql, String name, String password) throws SQLException {
+      return esql.getCredentials().authenticate(name, password);
+   }//end authenticate
+
 // Rest of the functions definition go in here
 
+   // queries shared by the menu, the GUI tables and the HTTP server
+   // the server-side operations of procedures.sql; each returns NULL or why it refused
+   public static final String UPDATE_PRODUCT_CALL = "{? = call update_product(?, ?, ?, ?, ?, ?)}";
+   public static final String REQUEST_SUPPLY_CALL = "{? = call request_supply(?, ?, ?, ?, ?, ?)}";
+   public static final String PLACE_ORDER_CALL = "{? = call place_order(?, ?, ?, ?)}";
+   // the user's five latest orders, answered from orderCustomerRecent_index
+   // alone; run on every shard and merged by recentOrders()
+   public static final String RECENT_ORDERS_QUERY =
+      "SELECT O.storeID, O.productName, O.unitsOrdered, O.orderTime FROM Orders O WHERE O.customerID = ? ORDER BY O.orderTime DESC LIMIT 5";
+   // the manager's five latest product updates; merged across shards by recentUpdates()
+   public static final String RECENT_UPDATES_QUERY =
+      "SELECT * FROM ProductUpdates PU, Product P WHERE PU.storeID = P.storeID AND PU.productName = P.productName AND PU.managerID = ? ORDER BY PU.updatedOn DESC LIMIT 5";
+   // order counts of every product across the manager's stores on one
+   // shard; popularProducts() adds them up over the shards and keeps the top five
+   public static final String POPULAR_PRODUCTS_QUERY =
+      "SELECT PP.productName, SUM(PP.orderCount) AS count FROM ProductPopularity PP WHERE PP.storeID IN (SELECT S.storeID FROM Store S WHERE S.managerID = ?) GROUP BY PP.productName";
+   // order counts of every customer across the manager's stores on one
+   // shard; popularCustomers() adds them up over the shards and keeps the top five
+   public static final String POPULAR_CUSTOMERS_QUERY =
+      "SELECT CP.customerID, SUM(CP.orderCount) AS count FROM CustomerPopularity CP WHERE CP.storeID IN (SELECT S.storeID FROM Store S WHERE S.managerID = ?) GROUP BY CP.customerID";
+   // rows kept by the recent and popular reports
+   public static final int TOP_ROWS = 5;
+   // a store's products
+   public static final String STORE_PRODUCTS_QUERY =
+      "SELECT * FROM Product P WHERE P.storeID = ?";
+   // the same, most expensive first
+   public static final String STORE_PRODUCTS_BY_PRICE_DESC_QUERY =
+      "SELECT * FROM Product P WHERE P.storeID = ? ORDER BY P.pricePerUnit DESC";
+   // the same, cheapest first
+   public static final String STORE_PRODUCTS_BY_PRICE_QUERY =
+      "SELECT * FROM Product P WHERE P.storeID = ? ORDER BY P.pricePerUnit";
+   // a store's five most ordered products
+   public static final String STORE_POPULAR_PRODUCTS_QUERY =
+      "SELECT P.productName, P.pricePerUnit FROM ProductPopularity PP, Product P WHERE PP.storeID = ? AND P.storeID = PP.storeID AND P.productName = PP.productName ORDER BY PP.orderCount DESC LIMIT 5";
+
    public static void viewStores(Retail esql) { // Andrei
       try{
-         String query = String.format("SELECT s.storeID, s.name, calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) as dist FROM Users u, Store s WHERE u.userID = %d AND calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) <= 30 ORDER BY dist", esql.getUserId());
          System.out.println ("Stores in your area: ");
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         // looked up once for all three tables
+         List<GeoIndex.Hit> nearby = esql.storesNearUser();
+         String[] columns = {"storeid", "name", "dist"};
+         int rowCount = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(columns, nearbyStores(nearby));
          System.out.println ("total stores: " + rowCount);
 
          System.out.println ();
          System.out.println("Popular Stores in your area:");
-         String query2 = String.format("SELECT X.storeID, X.name, Count(*) as TotalOrders FROM (SELECT s.storeID, s.name, calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) as dist FROM Users u, Store s WHERE u.userID = %d AND calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) <= 30) as X ,Orders O WHERE X.storeID = O.storeID GROUP BY X.storeID, X.name ORDER BY COUNT(*) DESC", esql.getUserId());
-         int rowCount2 = esql.executeQueryAndPrintResult(query2);
+         String[] columns2 = {"storeid", "name", "totalorders"};
+         int rowCount2 = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(columns2, popularNearbyStores(esql, nearby));
          System.out.println ("total stores: " + rowCount2);
 
          System.out.println ();
          System.out.println("Order from these stores again:");
-         String query3 = String.format("SELECT s.storeID, s.name FROM Users u, (SELECT * FROM Store S WHERE S.storeID IN (SELECT O.storeID FROM Orders O WHERE O.customerID = %d)) as s WHERE u.userID = %d AND calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) <= 30", esql.getUserId(), esql.getUserId());
-         int rowCount3 = esql.executeQueryAndPrintResult(query3);
+         String[] columns3 = {"storeid", "name"};
+         int rowCount3 = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(columns3, repeatNearbyStores(esql, nearby));
          System.out.println ("total stores: " + rowCount3);
       } catch(Exception e){
          System.err.println (e.getMessage());
       }
    }
-   public static List<JTable> viewStoresAndMakeTables(Retail esql) {
-      try {
-         List<JTable> tableList = new ArrayList<JTable>();
-         String query = String.format("SELECT s.storeID, s.name, calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) as dist FROM Users u, Store s WHERE u.userID = %d AND calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) <= 30 ORDER BY dist", esql.getUserId());
-         String[][] result = esql.executeQueryAndReturnResult(query).stream().map(u -> u.stream().toArray(String[]::new)).toArray(String[][]::new);
-   
-         String[] columns = {"StoreID", "Name", "Dist"};
-         JTable table1 = new JTable(result, columns);
-         table1.setEnabled(false);
-         table1.getTableHeader().setOpaque(false);
-         table1.getTableHeader().setBackground(darkPurple);
-         table1.setBackground(pink);
-         tableList.add(table1);
-         
-   
-         String query2 = String.format("SELECT X.storeID, X.name, Count(*) as TotalOrders FROM (SELECT s.storeID, s.name, calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) as dist FROM Users u, Store s WHERE u.userID = %d AND calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) <= 30) as X ,Orders O WHERE X.storeID = O.storeID GROUP BY X.storeID, X.name ORDER BY COUNT(*) DESC", esql.getUserId());
-         String[][] result2 = esql.executeQueryAndReturnResult(query2).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-         String[] columns2 = {"StoreID", "Name", "Order Count"};
-         JTable table2 = new JTable(result2, columns2);
-         table2.setEnabled(false);
-         table2.getTableHeader().setOpaque(false);
-         table2.getTableHeader().setBackground(darkPurple);
-         table2.setBackground(pink);
-         tableList.add(table2);
-   
-         String query3 = String.format("SELECT s.storeID, s.name FROM Users u, (SELECT * FROM Store S WHERE S.storeID IN (SELECT O.storeID FROM Orders O WHERE O.customerID = %d)) as s WHERE u.userID = %d AND calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) <= 30", esql.getUserId(), esql.getUserId());
-         String[][] result3 = esql.executeQueryAndReturnResult(query3).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-         String[] columns3 = {"StoreID", "Name"};
-         JTable table3 = new JTable(result3, columns3);
-         table3.setEnabled(false);
-         table3.getTableHeader().setOpaque(false);
-         table3.getTableHeader().setBackground(darkPurple);
-         table3.setBackground(pink);
-         tableList.add(table3);
-
-         return tableList;
-      } catch (Exception e) {
-         System.err.println (e.getMessage());
-         return new ArrayList<JTable>();
+   public static final String[] NEARBY_STORES_COLUMNS = {"StoreID", "Name", "Dist"};
+   public static final String[] POPULAR_STORES_COLUMNS = {"StoreID", "Name", "Order Count"};
+   public static final String[] REPEAT_STORES_COLUMNS = {"StoreID", "Name"};
+   public static List<String[][]> viewStoresRows(Retail esql) throws SQLException {
+      List<String[][]> tables = new ArrayList<String[][]>();
+      List<GeoIndex.Hit> nearby = esql.storesNearUser();
+      tables.add(nearbyStores(nearby).toArray(new String[0][]));
+      tables.add(popularNearbyStores(esql, nearby).toArray(new String[0][]));
+      tables.add(repeatNearbyStores(esql, nearby).toArray(new String[0][]));
+      return tables;
+   }
+
+   /*
+    * The stores within NEARBY_RADIUS of the logged in user, from
+    * storesNearUser() (which follows retail.geo.mode), closest first.  The
+    * three views below take them as nearby, so one request looks them up
+    * once.  Rows are {storeID, name, distance}.
+    **/
+   public static List<String[]> nearbyStores(List<GeoIndex.Hit> nearby) {
+      List<String[]> rows = new ArrayList<String[]>();
+      for (GeoIndex.Hit hit : nearby) {
+         rows.add(new String[] {
+            String.valueOf(hit.entry.id), hit.entry.name, String.valueOf(hit.distance)
+         });
       }
-      
+      return rows;
+   }
+
+   /*
+    * Stores within NEARBY_RADIUS of the logged in user that have orders,
+    * most ordered from first.  Rows are {storeID, name, order count}.
+    **/
+   public static List<String[]> popularNearbyStores(Retail esql, List<GeoIndex.Hit> nearby) throws SQLException {
+      List<String[]> rows = new ArrayList<String[]>();
+      if (nearby.isEmpty()) return rows;
+
+      // each shard counts the orders of its own nearby stores
+      final List<List<Object>> ids = new ArrayList<List<Object>>();
+      for (int i = 0; i < esql.getShards().size(); i++) ids.add(new ArrayList<Object>());
+      // the names come with the stores, whichever geo mode found them
+      final Map<Integer, String> names = new HashMap<Integer, String>();
+      for (GeoIndex.Hit hit : nearby) {
+         ids.get(esql.getShards().shardOf(hit.entry.id)).add(hit.entry.id);
+         names.put(hit.entry.id, hit.entry.name);
+      }
+      List<List<List<String>>> parts = esql.onEveryShard(shard -> {
+         if (ids.get(shard).isEmpty()) return new ArrayList<List<String>>();
+         String query = "SELECT PP.storeID, SUM(PP.orderCount) AS count FROM ProductPopularity PP WHERE PP.storeID IN (" + placeholders(ids.get(shard).size()) + ") GROUP BY PP.storeID ORDER BY count DESC";
+         return esql.executeQueryAndReturnResult(query, ids.get(shard).toArray());
+      });
+      for (List<String> r : ShardRouter.merge(parts, ShardRouter.byColumn(1, true, true), 0)) {
+         rows.add(new String[] { r.get(0), names.get(Integer.parseInt(r.get(0).trim())), r.get(1) });
+      }
+      return rows;
+   }
+
+   /*
+    * Stores within NEARBY_RADIUS of the logged in user that the user has
+    * ordered from before, closest first.  Rows are {storeID, name}.
+    **/
+   public static List<String[]> repeatNearbyStores(Retail esql, List<GeoIndex.Hit> nearby) throws SQLException {
+      List<String[]> rows = new ArrayList<String[]>();
+      if (nearby.isEmpty()) return rows;
+
+      String query = "SELECT DISTINCT O.storeID FROM Orders O WHERE O.customerID = ?";
+      Set<Integer> orderedFrom = new HashSet<Integer>();
+      for (List<String> r : esql.executeQueryOnEveryShard(query, null, 0, esql.getUserId())) {
+         orderedFrom.add(Integer.parseInt(r.get(0)));
+      }
+      for (GeoIndex.Hit hit : nearby) {
+         if (orderedFrom.contains(hit.entry.id)) {
+            rows.add(new String[] { String.valueOf(hit.entry.id), hit.entry.name });
+         }
+      }
+      return rows;
+   }
+
+   // the rows of a query result as arrays, for TablePrinter
+   public static List<String[]> toRows(List<List<String>> result) {
+      List<String[]> rows = new ArrayList<String[]>(result.size());
+      for (List<String> r : result) rows.add(r.toArray(new String[0]));
+      return rows;
+   }
+
+   // "?, ?, ..., ?" for building IN lists of n bound parameters
+   public static String placeholders(int n) {
+      StringBuilder sb = new StringBuilder(n * 3);
+      for (int i = 0; i < n; i++) {
+         if (i > 0) sb.append(", ");
+         sb.append('?');
+      }
+      return sb.toString();
    }
    public static void viewProducts(Retail esql) {
       try{
-         String query = "SELECT * FROM Product P WHERE P.storeID = '";
          System.out.print("\tEnter s: $");
          String input = in.readLine();
-         query += (input + "'");
+         int storeID = Integer.parseInt(input.trim());
+         // one cached snapshot serves the three listings below
+         CatalogCache.Snapshot products = esql.getCatalog().get(storeID);
          System.out.println ("Products at store " + input + ":");
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(products.columns, products.all);
          System.out.println ("total products(s): " + rowCount);
          System.out.println();
 
          System.out.println("Products filtered by price (High to Low):");
-         String query2 = String.format("SELECT * FROM Product P WHERE P.storeID = %s ORDER BY P.pricePerUnit DESC", input);
-         int rowCount2 = esql.executeQueryAndPrintResult(query2);
+         int rowCount2 = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(products.columns, products.byPriceDesc);
          System.out.println ("total products(s): " + rowCount2);
          System.out.println();
          
          System.out.println("Products filtered by price (Low to High):");
-         String query3 = String.format("SELECT * FROM Product P WHERE P.storeID = %s ORDER BY P.pricePerUnit", input);
-         int rowCount3 = esql.executeQueryAndPrintResult(query3);
+         int rowCount3 = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(products.columns, products.byPrice);
          System.out.println ("total products(s): " + rowCount3);
          System.out.println();
 
          System.out.println("Frequently Bought Products:");
-         String query4 = String.format("SELECT DISTINCT p.productName, p.pricePerUnit FROM Product p WHERE p.productName IN (SELECT O.productName FROM Orders O WHERE O.storeID = %s GROUP BY O.productName ORDER BY COUNT(*) DESC LIMIT 5)", input);
-         int rowCount4 = esql.executeQueryAndPrintResult(query4);
+         String query4 = STORE_POPULAR_PRODUCTS_QUERY;
+         int rowCount4 = esql.onStore(storeID, shard -> esql.executeQueryAndPrintResult(query4, storeID));
          System.out.println ("total products(s): " + rowCount4);
          System.out.println();
 
@@ -1155,63 +1893,26 @@ public class Retail {
          System.err.println (e.getMessage());
       }
    }
-   public static List<JTable> viewProductsAndMakeTables(Retail esql, String input) {
-      try {
-         List<JTable> tableList = new ArrayList<JTable>();
-
-         String[] columns1 = {"StoreID", "Name", "Units", "Price"};
-         String query = "SELECT * FROM Product P WHERE P.storeID = '";
-         query += (input + "'");
-         String[][] result = esql.executeQueryAndReturnResult(query).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-         JTable table1 = new JTable(result, columns1);
-         table1.setEnabled(false);
-         table1.getTableHeader().setOpaque(false);
-         table1.getTableHeader().setBackground(darkPurple);
-         table1.setBackground(pink);
-         tableList.add(table1);
-
-         String[] columns2 = {"StoreID", "Name", "Units", "Price"};
-         String query2 = String.format("SELECT * FROM Product P WHERE P.storeID = %s ORDER BY P.pricePerUnit DESC", input);
-         String[][] result2 = esql.executeQueryAndReturnResult(query2).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-         JTable table2 = new JTable(result2, columns2);
-         table2.setEnabled(false);
-         table2.getTableHeader().setOpaque(false);
-         table2.getTableHeader().setBackground(darkPurple);
-         table2.setBackground(pink);
-         tableList.add(table2);
-         
-         String[] columns3 = {"StoreID", "Name", "Units", "Price"};
-         String query3 = String.format("SELECT * FROM Product P WHERE P.storeID = %s ORDER BY P.pricePerUnit", input);
-         String[][] result3 = esql.executeQueryAndReturnResult(query3).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-         JTable table3 = new JTable(result3, columns3);
-         table3.setEnabled(false);
-         table3.getTableHeader().setOpaque(false);
-         table3.getTableHeader().setBackground(darkPurple);
-         table3.setBackground(pink);
-         tableList.add(table3);
-
-         String[] columns4 = {"Name", "Price"};
-         String query4 = String.format("SELECT DISTINCT p.productName, p.pricePerUnit FROM Product p WHERE p.productName IN (SELECT O.productName FROM Orders O WHERE O.storeID = %s GROUP BY O.productName ORDER BY COUNT(*) DESC LIMIT 5)", input);
-         String[][] result4 = esql.executeQueryAndReturnResult(query4).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-         JTable table4 = new JTable(result4, columns4);
-         table4.setEnabled(false);
-         table4.getTableHeader().setOpaque(false);
-         table4.getTableHeader().setBackground(darkPurple);
-         table4.setBackground(pink);
-         tableList.add(table4);
-
-         return tableList;
-      } catch (Exception e) {
-         System.err.println (e.getMessage());
-         return new ArrayList<JTable>();
-      }
+   public static final String[] PRODUCT_COLUMNS = {"StoreID", "Name", "Units", "Price"};
+   public static final String[] POPULAR_STORE_PRODUCTS_COLUMNS = {"Name", "Price"};
+   public static List<String[][]> viewProductsRows(Retail esql, String input) throws SQLException {
+      List<String[][]> tables = new ArrayList<String[][]>();
+      int storeID = Integer.parseInt(input.trim());
+      // one cached snapshot serves the first three tables
+      CatalogCache.Snapshot products = esql.getCatalog().get(storeID);
+      tables.add(products.all.toArray(new String[0][]));
+      tables.add(products.byPriceDesc.toArray(new String[0][]));
+      tables.add(products.byPrice.toArray(new String[0][]));
+      String query4 = STORE_POPULAR_PRODUCTS_QUERY;
+      tables.add(esql.onStore(storeID, shard -> esql.executeQueryAndReturnResult(query4, storeID)).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new));
+      return tables;
    }
    public static void viewUserInformation(Retail esql) { // Andrei
       // for admins
       try{
          String query = "SELECT * FROM Users";
          System.out.println ("User Information: ");
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = esql.executeQueryAndStreamResult(query);
          System.out.println ("total users(s): " + rowCount);
       }catch(Exception e){
          System.err.println (e.getMessage());
@@ -1232,68 +1933,70 @@ public class Retail {
    }
    public static void placeOrder(Retail esql, String storeID, String productName, Integer unitsOrdered) { // Christopher
       try{
-         if (unitsOrdered < 0 ) {
-            throw new IOException("Can't order negative amounts");
-         }
+         orderProduct(esql, storeID, productName, unitsOrdered);
+         System.out.println(String.format("Ordered %s from Store: %s.\nQuantity: %s", productName, storeID, unitsOrdered));
+      } catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }
 
-         // check that the store is within 30 miles of the user
-         String query = String.format("SELECT latitude, longitude FROM Store WHERE storeID = %s", storeID);
-         List<List<String>> stores = esql.executeQueryAndReturnResult(query);
-         if (stores.size() == 0) {
-            throw new IOException("StoreID not found");
-         }
-         double storeLatitude = Double.parseDouble(stores.get(0).get(0));
-         double storeLongitude = Double.parseDouble(stores.get(0).get(1));
-         if (30.0 <= esql.calculateDistance(esql.getUserLatitude(), esql.getUserLongitude(), storeLatitude, storeLongitude)) {
-            throw new IOException("Store too far away");
-         }
+   /*
+    * Places an order for the current user.
+    * @throws Exception carrying the reason when the order is refused
+    **/
+   public static void orderProduct(Retail esql, String storeID, String productName, Integer unitsOrdered) throws Exception {
+      if (unitsOrdered < 0 ) {
+         throw new IOException("Can't order negative amounts");
+      }
 
-         query = String.format("SELECT numberOfUnits FROM Product WHERE storeID = %s AND productName = '%s'", storeID, productName);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         if (result.size() == 0) {
-            throw new IOException("Product does not exist at this store");
-         }
-         if (Integer.parseInt(result.get(0).get(0)) < unitsOrdered) {
-            throw new IOException(String.format("Not enough inventory. Store only has %s units available.", result.get(0).get(0)));
-         }
+      int store = Integer.parseInt(storeID.trim());
 
-         query = String.format (
-            "INSERT INTO ORDERS (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (%d, %s, '%s', %d, current_timestamp)",
-            esql.getUserId(),
-            storeID,
-            productName,
-            unitsOrdered
-         );
-         esql.executeUpdate(query);
+      // check that the store is within 30 miles of the user
+      GeoIndex.Entry location = esql.findStore(store);
+      if (location == null) {
+         throw new IOException("StoreID not found");
+      }
+      if (NEARBY_RADIUS <= calculateDistance(esql.getUserLatitude(), esql.getUserLongitude(), location.latitude, location.longitude)) {
+         throw new IOException("Store too far away");
+      }
 
-         System.out.println(String.format("Ordered %s from Store: %s.\nQuantity: %s", productName, storeID, unitsOrdered));
+      if (ORDERS_BY_PROCEDURE) {
+         // one place_order() call takes the stock and inserts the order
+         String refused = esql.onStore(store, shard -> esql.executeCall(PLACE_ORDER_CALL, esql.getUserId(), store, productName, unitsOrdered));
+         if (refused != null) {
+            throw new IOException(refused);
+         }
+         esql.getCatalog().invalidate(store);
+         return;
+      }
 
-         // then update product quantity using a trigger
-      } catch(Exception e){
-         System.err.println (e.getMessage ());
+      // the pipeline checks inventory and inserts the order in a batch with other sessions' orders
+      try {
+         esql.submitOrder(esql.getUserId(), store, productName, unitsOrdered).get();
+      } catch (ExecutionException e) {
+         throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
       }
    }
    public static void viewRecentOrders(Retail esql) {
       try{
-         String query = String.format("SELECT O.storeID, O.productName, O.unitsOrdered, O.orderTime FROM Orders O WHERE O.customerID = %d ORDER BY O.orderTime DESC LIMIT 5", esql.getUserId());
          System.out.println ("Recent Orders: ");
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(RECENT_ORDERS_COLUMNS, Arrays.asList(viewRecentOrdersRows(esql)));
          System.out.println ("total products(s) in order history: " + rowCount);
       }catch(Exception e){
          System.err.println (e.getMessage());
       }
    }
-   public static JTable viewRecentOrdersAndMakeTable(Retail esql) throws Exception {
-      String query = String.format("SELECT O.storeID, O.productName, O.unitsOrdered, O.orderTime FROM Orders O WHERE O.customerID = %d ORDER BY O.orderTime DESC LIMIT 5", esql.getUserId());
-      String[] columns = {"StoreID", "Name", "Units", "Order Time"};
-      String[][] result = esql.executeQueryAndReturnResult(query).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-      JTable table = new JTable(result, columns);
-      table.setEnabled(false);
-      table.getTableHeader().setOpaque(false);
-      table.getTableHeader().setBackground(darkPurple);
-      table.setBackground(pink);
-      
-      return table;      
+   public static final String[] RECENT_ORDERS_COLUMNS = {"StoreID", "Name", "Units", "Order Time"};
+   public static String[][] viewRecentOrdersRows(Retail esql) throws SQLException {
+      return recentOrders(esql, esql.getUserId()).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
+   }
+
+   /*
+    * The customer's latest orders over every shard: each shard's five
+    * latest, merged by orderTime.
+    **/
+   public static List<List<String>> recentOrders(Retail esql, int customerID) throws SQLException {
+      return esql.executeQueryOnEveryShard(RECENT_ORDERS_QUERY, ShardRouter.byColumn(3, false, true), TOP_ROWS, customerID);
    }
 
    // check if they are manager or admin for below:
@@ -1314,140 +2017,158 @@ public class Retail {
    }
    public static void updateProduct(Retail esql, String storeID, String productName, String numUnits, String pricePerUnit) { // Christopher
       try {
-         if (!(esql.getUserType().equals("manager") || esql.getUserType().equals("admin"))) {
-            throw new IOException("You do not have permission to perform this action");
-         }
-
-         // make sure the manager manages this store
-         String query = String.format("SELECT S.managerID FROM Store S WHERE S.storeID = %s AND S.managerID = %d", storeID, esql.getUserId());
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         if (result.size() == 0 && esql.getUserType().equals("manager")) {
-            throw new IOException(String.format("You do not manage the store with ID: %s", storeID));
-         }
-
-         query = String.format("SELECT * FROM Product P WHERE P.productName = '%s'", productName);
-         //make sure the Product exists in the provided store
-         result = esql.executeQueryAndReturnResult(query);
-         if (result.size() == 0) {
-            throw new IOException(String.format("Product '%s' does not exist in this store", productName));
-         }
-
-         query = String.format (
-            "UPDATE Product SET numberOfUnits = %s, pricePerUnit = %s WHERE storeID = %s AND productName = '%s'",
-            numUnits,
-            pricePerUnit,
-            storeID,
-            productName
-         );
-         esql.executeUpdate(query);
-
-         query = String.format (
-            "INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES (%d, %s, '%s', current_timestamp)",
-            esql.getUserId(),
-            storeID,
-            productName
-         );
-         esql.executeUpdate(query);
-
+         applyProductUpdate(esql, storeID, productName, numUnits, pricePerUnit);
          System.out.println("Updated Product " + productName);
-
       } catch (Exception e) {
          System.err.println (e.getMessage());
       }
    }
+   /*
+    * Sets a product's stock and price and records the update.
+    * @throws Exception carrying the reason when the update is refused
+    **/
+   public static void applyProductUpdate(Retail esql, String storeID, String productName, String numUnits, String pricePerUnit) throws Exception {
+      if (!(esql.getUserType().equals("manager") || esql.getUserType().equals("admin"))) {
+         throw new IOException("You do not have permission to perform this action");
+      }
+
+      int store = Integer.parseInt(storeID.trim());
+      int units = Integer.parseInt(numUnits.trim());
+      double price = Double.parseDouble(pricePerUnit.trim());
+
+      // units leased to the in-memory hot-product counters go back first, and no new lease is taken
+      // until the update is done, so no leased units are added on top of the new count
+      InventoryReservations inventory = esql.getInventory(store);
+      inventory.beginUpdate(store, productName);
+      String refused;
+      try {
+         // checks the store is the manager's and the product exists, updates it and records the update, in one call
+         refused = esql.onStore(store, shard -> esql.executeCall(UPDATE_PRODUCT_CALL,
+            esql.getUserId(),
+            esql.getUserType().equals("admin"),
+            store,
+            productName,
+            units,
+            price
+         ));
+      } finally {
+         inventory.endUpdate(store, productName);
+      }
+      if (refused != null) {
+         throw new IOException(refused);
+      }
+      esql.getCatalog().invalidate(store);
+   }//end applyProductUpdate
    public static void viewRecentUpdates(Retail esql) {
       try{
-         String query = String.format("SELECT * FROM ProductUpdates PU, Product P WHERE PU.storeID = P.storeID AND PU.productName = P.productName AND PU.managerID = %d ORDER BY PU.updatedOn DESC LIMIT 5", esql.getUserId());
          System.out.println ("Recent Updates: ");
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(RECENT_UPDATES_COLUMNS, Arrays.asList(viewRecentUpdatesRows(esql)));
          System.out.println ("total product(s) recently updated(5 max shown): " + rowCount);
       }catch(Exception e){
          System.err.println (e.getMessage());
       }
    }
-   public static JTable viewRecentUpdatesAndMakeTable(Retail esql) throws Exception {
-      String query = String.format("SELECT * FROM ProductUpdates PU, Product P WHERE PU.storeID = P.storeID AND PU.productName = P.productName AND PU.managerID = %d ORDER BY PU.updatedOn DESC LIMIT 5", esql.getUserId());
-      String[] columns = {"Update Number", "ManagerID", "StoreID", "Product", "Date"};
-      String[][] result = esql.executeQueryAndReturnResult(query).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-      JTable table = new JTable(result, columns);
-      table.setEnabled(false);
-      table.getTableHeader().setOpaque(false);
-      table.getTableHeader().setBackground(darkPurple);
-      table.setBackground(pink);
-      
-      return table;  
+   public static final String[] RECENT_UPDATES_COLUMNS = {"Update Number", "ManagerID", "StoreID", "Product", "Date"};
+   public static String[][] viewRecentUpdatesRows(Retail esql) throws SQLException {
+      return recentUpdates(esql, esql.getUserId()).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
+   }
+
+   /*
+    * The manager's latest product updates over every shard: each shard's
+    * five latest, merged by updatedOn.
+    **/
+   public static List<List<String>> recentUpdates(Retail esql, int managerID) throws SQLException {
+      return esql.executeQueryOnEveryShard(RECENT_UPDATES_QUERY, ShardRouter.byColumn(4, false, true), TOP_ROWS, managerID);
    }
    public static void viewPopularProducts(Retail esql) {
       try{
-         String query = String.format("SELECT O.productName, COUNT(*) FROM Orders O WHERE O.storeID IN (SELECT S.storeID FROM Store S WHERE S.managerID = %d) GROUP BY O.productName ORDER BY COUNT(*) DESC LIMIT 5", esql.getUserId());
          System.out.println ("Popular Products at stores you manage: ");
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(POPULAR_PRODUCTS_COLUMNS, Arrays.asList(viewPopularProductsRows(esql)));
          System.out.println ("total popular product(s)(5 max shown): " + rowCount);
       }catch(Exception e){
          System.err.println (e.getMessage());
       }
    }
-   public static JTable viewPopularProductsAndMakeTable(Retail esql) throws Exception {
-      String query = String.format("SELECT O.productName, COUNT(*) FROM Orders O WHERE O.storeID IN (SELECT S.storeID FROM Store S WHERE S.managerID = %d) GROUP BY O.productName ORDER BY COUNT(*) DESC LIMIT 5", esql.getUserId());
-      String[] columns = {"Product Name", "Number of Orders"};
-      String[][] result = esql.executeQueryAndReturnResult(query).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-      JTable table = new JTable(result, columns);
-      table.setEnabled(false);
-      table.getTableHeader().setOpaque(false);
-      table.getTableHeader().setBackground(darkPurple);
-      table.setBackground(pink);
+   public static final String[] POPULAR_PRODUCTS_COLUMNS = {"Product Name", "Number of Orders"};
+   public static String[][] viewPopularProductsRows(Retail esql) throws SQLException {
+      return popularProducts(esql, esql.getUserId()).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
+   }
 
-      return table;
+   /*
+    * The five most ordered products across the manager's stores, whichever
+    * shards they are on.  Rows are {productName, count}.
+    **/
+   public static List<List<String>> popularProducts(Retail esql, int managerID) throws SQLException {
+      return ShardRouter.sumBy(esql.onEveryShard(shard -> esql.executeQueryAndReturnResult(POPULAR_PRODUCTS_QUERY, managerID)), 0, 1, TOP_ROWS);
    }
    public static void viewPopularCustomers(Retail esql) {
       try{
-         String query = String.format("SELECT O.customerID, COUNT(*) FROM Orders O WHERE O.storeID IN (SELECT S.storeID FROM Store S WHERE S.managerID = %d) GROUP BY O.customerID ORDER BY COUNT(*) DESC LIMIT 5", esql.getUserId());
          System.out.println ("Popular Customers at stores you manage: ");
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(POPULAR_CUSTOMERS_COLUMNS, Arrays.asList(viewPopularCustomersRows(esql)));
          System.out.println ("total popular customer(s)(5 max shown): " + rowCount);
       }catch(Exception e){
          System.err.println (e.getMessage());
       }
    }
-   public static JTable viewPopularCustomersAndMakeTable(Retail esql) throws Exception {
-      String query = String.format("SELECT O.customerID, COUNT(*) FROM Orders O WHERE O.storeID IN (SELECT S.storeID FROM Store S WHERE S.managerID = %d) GROUP BY O.customerID ORDER BY COUNT(*) DESC LIMIT 5", esql.getUserId());
-      String[] columns = {"CustomerID", "Number of Orders"};
-      String[][] result = esql.executeQueryAndReturnResult(query).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-      JTable table = new JTable(result, columns);
-      table.setEnabled(false);
-      table.getTableHeader().setOpaque(false);
-      table.getTableHeader().setBackground(darkPurple);
-      table.setBackground(pink);
+   public static final String[] POPULAR_CUSTOMERS_COLUMNS = {"CustomerID", "Number of Orders"};
+   public static String[][] viewPopularCustomersRows(Retail esql) throws SQLException {
+      return popularCustomers(esql, esql.getUserId()).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
+   }
 
-      return table;
+   /*
+    * The five customers with the most orders across the manager's stores,
+    * whichever shards they are on.  Rows are {customerID, count}.
+    **/
+   public static List<List<String>> popularCustomers(Retail esql, int managerID) throws SQLException {
+      return ShardRouter.sumBy(esql.onEveryShard(shard -> esql.executeQueryAndReturnResult(POPULAR_CUSTOMERS_QUERY, managerID)), 0, 1, TOP_ROWS);
+   }
+   /*
+    * Recomputes the ProductPopularity and CustomerPopularity counters from
+    * Orders.  The triggers keep them current, so this is only needed after
+    * loading orders with the triggers disabled or to repair drift.
+    **/
+   public static void rebuildPopularity(Retail esql) {
+      try{
+         System.out.println ("Rebuilding popularity counters...");
+         long start = System.currentTimeMillis();
+         long recounted = 0;
+         for (List<List<String>> result : esql.onEveryShard(shard -> esql.executeQueryAndReturnResult("SELECT rebuild_popularity()"))) {
+            recounted += Long.parseLong(result.get(0).get(0).trim());
+         }
+         System.out.println ("recounted " + recounted + " order(s) in " + (System.currentTimeMillis() - start) + " ms");
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+   public static void viewQueryMetrics(Retail esql) {
+      try{
+         esql.getMetrics().print(System.out);
+         System.out.print("\tReset the metrics? (y/n): $");
+         if (in.readLine().trim().equalsIgnoreCase("y")) esql.getMetrics().reset();
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
    }
    public static void viewManagedStores(Retail esql) {
       try{
-         String query = String.format("SELECT * FROM Store S WHERE S.managerID = %d", esql.getUserId());
+         String query = "SELECT * FROM Store S WHERE S.managerID = ? ORDER BY S.storeID";
          System.out.println ("Stores you manage: ");
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         int rowCount = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(MANAGED_STORES_COLUMNS,
+            toRows(esql.executeQueryOnEveryShard(query, ShardRouter.byColumn(0, true, false), 0, esql.getUserId())));
          System.out.println ("total Managed Stores: " + rowCount);
       }catch(Exception e) {
          System.err.println(e.getMessage());
       }
    }
-   public static JTable viewManagedStoresAndMakeTable(Retail esql) throws Exception {
-      String query = String.format("SELECT * FROM Store S WHERE S.managerID = %d", esql.getUserId());
-      String[] columns = {"StoreID", "Name", "Lat", "Long", "ManagerID", "Established"};
-      String[][] result = esql.executeQueryAndReturnResult(query).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-      JTable table = new JTable(result, columns);
-      table.setEnabled(false);
-      table.getTableHeader().setOpaque(false);
-      table.getTableHeader().setBackground(darkPurple);
-      table.setBackground(pink);
-
-      return table;
-   }
+   public static final String[] MANAGED_STORES_COLUMNS = {"StoreID", "Name", "Lat", "Long", "ManagerID", "Established"};
+   // a page of the manager's stores after a storeID, for PagedTableModel
+   public static final String PAGED_MANAGED_STORES_QUERY =
+      "SELECT * FROM Store S WHERE S.managerID = ? AND S.storeID > ? ORDER BY S.storeID LIMIT ?";
    public static void viewCustomerOrders(Retail esql) {	
       try{	
-         String query = String.format("SELECT O.orderNumber, U.name as customer_name, O.storeID, O.productName, O.orderTime FROM Orders O, Users U WHERE O.storeID IN (SELECT s.storeID FROM Store s WHERE s.managerID = %d) AND U.userID = O.customerID", esql.getUserId());	
+         String query = "SELECT O.orderNumber, U.name as customer_name, O.storeID, O.productName, O.orderTime FROM Orders O, Users U WHERE O.storeID IN (SELECT s.storeID FROM Store s WHERE s.managerID = ?) AND U.userID = O.customerID";	
          System.out.println ("Customer Orders from stores you manage: ");	
-         int rowCount = esql.executeQueryAndPrintResult(query);	
+         int rowCount = esql.executeQueryAndStreamResultOnEveryShard(query, esql.getUserId());	
          System.out.println ("total orders: " + rowCount);	
       }catch(Exception e) {	
          System.err.println(e.getMessage());	
@@ -1457,7 +2178,7 @@ public class Retail {
       try{	
          String query = "SELECT * FROM Users U ORDER BY U.userID";	
          System.out.println ("User Information: ");	
-         int rowCount = esql.executeQueryAndPrintResult(query);	
+         int rowCount = esql.executeQueryAndStreamResult(query);	
          System.out.println ("total users: " + rowCount);	
       }catch(Exception e) {	
          System.err.println(e.getMessage());	
@@ -1467,7 +2188,7 @@ public class Retail {
       try{	
          String query = "SELECT * FROM Product P";	
          System.out.println ("User Information: ");	
-         int rowCount = esql.executeQueryAndPrintResult(query);	
+         int rowCount = esql.executeQueryAndStreamResultOnEveryShard(query);	
          System.out.println ("total products: " + rowCount);	
       }catch(Exception e) {	
          System.err.println(e.getMessage());	
@@ -1475,13 +2196,15 @@ public class Retail {
    }
    public static void viewManagedProducts(Retail esql) {	
       try{	
-         String query = String.format("SELECT * FROM Product P WHERE P.storeID IN (SELECT s.storeID FROM Store s WHERE s.managerID = %d)", esql.getUserId());	
+         String query = "SELECT * FROM Product P WHERE P.storeID IN (SELECT s.storeID FROM Store s WHERE s.managerID = ?)";	
          System.out.println ("Product information of stores you manage: ");	
-         int rowCount = esql.executeQueryAndPrintResult(query);	
+         int rowCount = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(PRODUCT_COLUMNS,
+            toRows(esql.executeQueryOnEveryShard(query, null, 0, esql.getUserId())));	
          System.out.println ("total products: " + rowCount);	
-         query = String.format("SELECT * FROM Product P WHERE P.storeID IN (SELECT s.storeID FROM Store s WHERE s.managerID = %d) ORDER BY P.numberOfUnits", esql.getUserId());	
+         query = "SELECT * FROM Product P WHERE P.storeID IN (SELECT s.storeID FROM Store s WHERE s.managerID = ?) ORDER BY P.numberOfUnits";	
          System.out.println ("Filtered by inventory: ");	
-         rowCount = esql.executeQueryAndPrintResult(query);	
+         rowCount = new TablePrinter(System.out, TablePrinter.Mode.TWO_PASS).print(PRODUCT_COLUMNS,
+            toRows(esql.executeQueryOnEveryShard(query, ShardRouter.byColumn(2, true, false), 0, esql.getUserId())));	
          System.out.println ("total products: " + rowCount);	
       }catch(Exception e) {	
          System.err.println(e.getMessage());	
@@ -1491,9 +2214,10 @@ public class Retail {
       try {	
          System.out.print("\tInput User ID: ");	
          String userID = in.readLine();	
-         String query = String.format("SELECT * FROM Users U WHERE U.userID = %s", userID);	
+         int user = Integer.parseInt(userID.trim());	
+         String query = "SELECT * FROM Users U WHERE U.userID = ?";	
          //make sure the Product exists in the provided store	
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);	
+         List<List<String>> result = esql.executeQueryAndReturnResult(query, user);	
          if (result.size() == 0) {	
             System.out.println((String.format("User '%s' does not exist", userID)));	
             return;	
@@ -1508,16 +2232,16 @@ public class Retail {
          String longitude = in.readLine();	
          System.out.print("\tInput new type: ");	
          String type = in.readLine();	
-         query = String.format (	
-            "UPDATE Users SET name = '%s', password = '%s', latitude = %s, longitude = %s, type = '%s' WHERE userID = %s",	
+         query = "UPDATE Users SET name = ?, password = ?, latitude = ?, longitude = ?, type = ? WHERE userID = ?";	
+         esql.executeUpdate(query,	
             name,	
             password,	
-            latitude,	
-            longitude,	
+            Double.parseDouble(latitude.trim()),	
+            Double.parseDouble(longitude.trim()),	
             type,
-            userID
+            user
          );	
-         esql.executeUpdate(query);	
+         esql.getCredentials().invalidateUser(user);
          System.out.println("User information succesfully updated");	
       } catch (Exception e) {	
          System.err.println (e.getMessage());	
@@ -1541,54 +2265,45 @@ public class Retail {
    }
    public static void placeProductSupplyRequests(Retail esql, String storeID, String productName, String numProductsNeeded, String warehouseID) { // Christopher
       try {
-         if (Integer.parseInt(numProductsNeeded) < 0 ) {
-            throw new IOException("Can't order negative amounts");
-         }
-
-         if (!(esql.getUserType().equals("manager") || esql.getUserType().equals("admin"))) {
-            throw new IOException("You do not have permission to perform this action");
-         }
-
-         // make sure the manager manages this store
-         String query = String.format("SELECT S.managerID FROM Store S WHERE S.storeID = %s AND S.managerID = %s", storeID, esql.getUserId());
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         if (result.size() == 0 && esql.getUserType().equals("manager")) {
-            throw new IOException(String.format("You do not manage the store with ID: %s", storeID));
-         }
-         
-         query = String.format("SELECT * FROM Product P WHERE P.productName = '%s'", productName);
-         //make sure the Product exists in the provided store
-         result = esql.executeQueryAndReturnResult(query);
-         if (result.size() == 0) {
-            throw new IOException(String.format("Product '%s' does not exist in this store", productName));
-         }
-
-         query = String.format(
-            "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (%d, %s, %s, '%s', %s)",
-            esql.getUserId(),
-            warehouseID,
-            storeID,
-            productName,
-            numProductsNeeded
-         );
-         esql.executeUpdate(query);
-
-         //this should trigger an event that updates the quantities in the Product table
+         requestSupply(esql, storeID, productName, numProductsNeeded, warehouseID);
       } catch (Exception e) {
          System.err.println (e.getMessage());
       }
    }
-   public static JTable viewRecentRequestsAndMakeTable(Retail esql) throws Exception {
-      String query = String.format("SELECT * FROM ProductSupplyRequests PS, Product P WHERE PS.storeID = P.storeID AND PS.productName = P.productName AND PS.managerID = %d ORDER BY PS.requestNumber DESC", esql.getUserId());
-      String[] columns = {"Request #", "Manager", "Warehouse", "Store", "Name", "Units"};
-      String[][] result = esql.executeQueryAndReturnResult(query).stream().map(u -> u.toArray(new String[0])).toArray(String[][]::new);
-      JTable table = new JTable(result, columns);
-      table.setEnabled(false);
-      table.getTableHeader().setOpaque(false);
-      table.getTableHeader().setBackground(darkPurple);
-      table.setBackground(pink);
-      
-      return table;  
-   }
+   /*
+    * Records a supply request; the trigger adds the units to the store.
+    * @throws Exception carrying the reason when the request is refused
+    **/
+   public static void requestSupply(Retail esql, String storeID, String productName, String numProductsNeeded, String warehouseID) throws Exception {
+      int unitsRequested = Integer.parseInt(numProductsNeeded.trim());
+      if (unitsRequested < 0 ) {
+         throw new IOException("Can't order negative amounts");
+      }
+
+      if (!(esql.getUserType().equals("manager") || esql.getUserType().equals("admin"))) {
+         throw new IOException("You do not have permission to perform this action");
+      }
+
+      int store = Integer.parseInt(storeID.trim());
+
+      // checks the store is the manager's and the product exists, then records the request, in one call;
+      // the insert triggers an event that updates the quantities in the Product table
+      String refused = esql.onStore(store, shard -> esql.executeCall(REQUEST_SUPPLY_CALL,
+         esql.getUserId(),
+         esql.getUserType().equals("admin"),
+         Integer.parseInt(warehouseID.trim()),
+         store,
+         productName,
+         unitsRequested
+      ));
+      if (refused != null) {
+         throw new IOException(refused);
+      }
+      esql.getCatalog().invalidate(store);
+   }//end requestSupply
+   public static final String[] RECENT_REQUESTS_COLUMNS = {"Request #", "Manager", "Warehouse", "Store", "Name", "Units"};
+   // a page of the manager's supply requests before a requestNumber, newest first, for PagedTableModel
+   public static final String PAGED_REQUESTS_QUERY =
+      "SELECT * FROM ProductSupplyRequests PS WHERE PS.managerID = ? AND PS.requestNumber < ? ORDER BY PS.requestNumber DESC LIMIT ?";
 }//end Retail
 
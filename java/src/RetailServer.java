@@ -0,0 +1,493 @@
+/*
+ * HTTP/JSON server for the Retail application
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Serves the Retail operations over HTTP so one process can handle many
+ * shoppers at once.  Started with the --server flag instead of the menu or
+ * the GUI.
+ *
+ * Parameters come from the query string or an
+ * application/x-www-form-urlencoded body, and every response is JSON.
+ * POST /login returns a token; later requests send it as
+ * "Authorization: Bearer <token>".  Each token maps to its own Session,
+ * which is bound to the request's thread while the shared Retail instance
+ * runs the operation.  Requests run on virtual threads when the JVM has
+ * them (Java 21+) and on a fixed pool of retail.server.threads platform
+ * threads otherwise.  Either way they share the connection pool.
+ *
+ *   POST /users            name, password, latitude, longitude
+ *   POST /login            name, password
+ *   POST /logout
+ *   GET  /stores           nearby, popular and previously used stores
+ *   GET  /products         storeID, sort=name|price|price_desc|popular
+ *   POST /orders           storeID, productName, units
+ *   GET  /orders           the user's latest orders
+ *   POST /products         storeID, productName, units, price   (manager)
+ *   GET  /updates          latest product updates               (manager)
+ *   POST /supply-requests  storeID, productName, units, warehouseID (manager)
+ *   GET  /popular          popular products and customers       (manager)
+ *   GET  /stats            pool and replenishment counters      (admin)
+ *   GET  /metrics          query timings and slow queries       (admin)
+ */
+public class RetailServer {
+   public static final String HOST = System.getProperty("retail.server.host", "127.0.0.1");
+   public static final int PORT = Integer.getInteger("retail.server.port", 8080);
+   public static final int THREADS = Integer.getInteger("retail.server.threads", 200);
+   public static final long SESSION_TIMEOUT_MS = Long.getLong("retail.server.sessionTimeoutMs", 30 * 60 * 1000);
+
+   private static final int MAX_BODY_BYTES = 64 * 1024;
+   // field names of the reports merged across shards, the same as the
+   // column names their queries return
+   private static final String[] RECENT_ORDERS_FIELDS = { "storeid", "productname", "unitsordered", "ordertime" };
+   private static final String[] RECENT_UPDATES_FIELDS = { "updatenumber", "managerid", "storeid", "productname",
+      "updatedon", "storeid", "productname", "numberofunits", "priceperunit" };
+
+   // who may call a route
+   private enum Access { PUBLIC, USER, MANAGER, ADMIN }
+
+   private interface Handler {
+      Object handle(Request request) throws Exception;
+   }
+
+   private static class Route {
+      final Access access;
+      final int status;
+      final Handler handler;
+
+      Route(Access access, int status, Handler handler) {
+         this.access = access;
+         this.status = status;
+         this.handler = handler;
+      }
+   }//end Route
+
+   /**
+    * A failure that maps to a specific HTTP status.
+    */
+   private static class HttpError extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+
+      HttpError(int status, String message) {
+         super(message);
+         this.status = status;
+      }
+   }//end HttpError
+
+   private static class Request {
+      final Map<String, String> params;
+      final String token;
+      final Session session;
+
+      Request(Map<String, String> params, String token, Session session) {
+         this.params = params;
+         this.token = token;
+         this.session = session;
+      }
+
+      String param(String name) throws HttpError {
+         String value = params.get(name);
+         if (value == null || value.trim().isEmpty()) {
+            throw new HttpError(400, "Missing parameter '" + name + "'");
+         }
+         return value;
+      }
+   }//end Request
+
+   private final Retail esql;
+   private final HttpServer server;
+   private final ExecutorService executor;
+   private final ScheduledExecutorService sweeper;
+   private final Map<String, Route> routes = new HashMap<String, Route>();
+   private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+   private final SecureRandom random = new SecureRandom();
+   private final CountDownLatch stopped = new CountDownLatch(1);
+
+   public RetailServer(Retail esql, String host, int port) throws IOException {
+      this.esql = esql;
+      this.server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(host), port), 0);
+      this.executor = newExecutor();
+      this.server.setExecutor(this.executor);
+      this.server.createContext("/", this::dispatch);
+      this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "retail-session-sweeper");
+         t.setDaemon(true);
+         return t;
+      });
+      registerRoutes();
+   }
+
+   /**
+    * Runs a server on retail.server.host:retail.server.port until the JVM
+    * is stopped.
+    */
+   public static void serve(final Retail esql) throws IOException, InterruptedException {
+      final RetailServer server = new RetailServer(esql, HOST, PORT);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+         System.out.print("Stopping server...");
+         server.stop();
+         esql.cleanup();
+         System.out.println("Done");
+      }));
+      server.start();
+      System.out.println(String.format("Listening on http://%s:%d/", HOST, PORT));
+      server.awaitStop();
+   }//end serve
+
+   public void start() {
+      long sweepMs = Math.max(1000, SESSION_TIMEOUT_MS / 4);
+      this.sweeper.scheduleWithFixedDelay(this::expireSessions, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+      this.server.start();
+   }
+
+   public void stop() {
+      this.server.stop(1);
+      this.sweeper.shutdownNow();
+      this.executor.shutdown();
+      this.stopped.countDown();
+   }
+
+   public void awaitStop() throws InterruptedException {
+      this.stopped.await();
+   }
+
+   /**
+    * @return the number of live login sessions
+    */
+   public int sessionCount() {
+      return this.sessions.size();
+   }
+
+   /*
+    * Executors.newVirtualThreadPerTaskExecutor() only exists on Java 21+, so
+    * it is looked up reflectively and the code still builds for older JDKs.
+    */
+   private static ExecutorService newExecutor() {
+      try {
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) factory.invoke(null);
+      } catch (Exception e) {
+         final AtomicInteger count = new AtomicInteger();
+         return Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "retail-http-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         });
+      }
+   }//end newExecutor
+
+   private void registerRoutes() {
+      route("POST", "/users", Access.PUBLIC, 201, r -> {
+         Retail.createUserAccount(esql, r.param("name"), r.param("password"), r.param("latitude"), r.param("longitude"));
+         return object("created", true);
+      });
+      route("POST", "/login", Access.PUBLIC, 200, r -> {
+         Session session = Retail.authenticate(esql, r.param("name"), r.param("password"));
+         if (session == null) throw new HttpError(401, "User does not exist");
+         String token = newToken();
+         sessions.put(token, session);
+         return object("token", token, "userID", session.getUserId(), "type", session.getType());
+      });
+      route("POST", "/logout", Access.USER, 200, r -> {
+         sessions.remove(r.token);
+         return object("loggedOut", true);
+      });
+      route("GET", "/stores", Access.USER, 200, r -> {
+         List<GeoIndex.Hit> nearby = esql.storesNearUser();
+         return object(
+            "nearby", rows(new String[] { "storeID", "name", "distance" }, Retail.nearbyStores(nearby)),
+            "popular", rows(new String[] { "storeID", "name", "orders" }, Retail.popularNearbyStores(esql, nearby)),
+            "previouslyOrderedFrom", rows(new String[] { "storeID", "name" }, Retail.repeatNearbyStores(esql, nearby)));
+      });
+      route("GET", "/products", Access.USER, 200, r -> {
+         int storeID = Integer.parseInt(r.param("storeID").trim());
+         String sort = r.params.containsKey("sort") ? r.params.get("sort") : "name";
+         if (sort.equals("popular")) {
+            return object("products", esql.onStore(storeID, shard -> query(Retail.STORE_POPULAR_PRODUCTS_QUERY, storeID)));
+         }
+         CatalogCache.Snapshot products = esql.getCatalog().get(storeID);
+         if (sort.equals("name")) return object("products", rows(products.columns, products.all));
+         if (sort.equals("price")) return object("products", rows(products.columns, products.byPrice));
+         if (sort.equals("price_desc")) return object("products", rows(products.columns, products.byPriceDesc));
+         throw new HttpError(400, "Unknown sort '" + sort + "'");
+      });
+      route("POST", "/orders", Access.USER, 201, r -> {
+         Retail.orderProduct(esql, r.param("storeID"), r.param("productName"), Integer.parseInt(r.param("units").trim()));
+         return object("ordered", true);
+      });
+      route("GET", "/orders", Access.USER, 200, r ->
+         object("orders", rows(RECENT_ORDERS_FIELDS, Retail.toRows(Retail.recentOrders(esql, r.session.getUserId())))));
+      route("POST", "/products", Access.MANAGER, 200, r -> {
+         Retail.applyProductUpdate(esql, r.param("storeID"), r.param("productName"), r.param("units"), r.param("price"));
+         return object("updated", true);
+      });
+      route("GET", "/updates", Access.MANAGER, 200, r ->
+         object("updates", rows(RECENT_UPDATES_FIELDS, Retail.toRows(Retail.recentUpdates(esql, r.session.getUserId())))));
+      route("POST", "/supply-requests", Access.MANAGER, 201, r -> {
+         Retail.requestSupply(esql, r.param("storeID"), r.param("productName"), r.param("units"), r.param("warehouseID"));
+         return object("requested", true);
+      });
+      route("GET", "/popular", Access.MANAGER, 200, r -> object(
+         "products", rows(new String[] { "productname", "count" },
+                          Retail.toRows(Retail.popularProducts(esql, r.session.getUserId()))),
+         "customers", rows(new String[] { "customerid", "count" },
+                           Retail.toRows(Retail.popularCustomers(esql, r.session.getUserId())))));
+      route("GET", "/stats", Access.ADMIN, 200, r ->
+         object("pool", esql.getPoolStats().toString(), "replicas", esql.getRouter().getStats(),
+                "shards", esql.getShards().getStats(), "replenishment", esql.getReplenishmentStats(),
+                "sessions", sessions.size()));
+      route("GET", "/metrics", Access.ADMIN, 200, r -> object(
+         "queries", rows(QueryMetrics.COLUMNS, esql.getMetrics().rows()),
+         "slowQueries", rows(QueryMetrics.SLOW_COLUMNS, esql.getMetrics().slowRows())));
+   }//end registerRoutes
+
+   private void route(String method, String path, Access access, int status, Handler handler) {
+      routes.put(method + " " + path, new Route(access, status, handler));
+   }
+
+   private void dispatch(HttpExchange exchange) throws IOException {
+      int status;
+      Object body;
+      try {
+         String path = exchange.getRequestURI().getPath();
+         Route route = routes.get(exchange.getRequestMethod() + " " + path);
+         if (route == null) {
+            throw new HttpError(404, "No such operation: " + exchange.getRequestMethod() + " " + path);
+         }
+
+         Map<String, String> params = new HashMap<String, String>();
+         parseForm(exchange.getRequestURI().getRawQuery(), params);
+         if ("POST".equals(exchange.getRequestMethod())) {
+            parseForm(readBody(exchange), params);
+         }
+
+         String token = bearerToken(exchange);
+         Session session = token == null ? null : sessions.get(token);
+         if (session != null) session.touch();
+         authorize(route.access, session);
+
+         if (session != null) esql.bindSession(session);
+         try {
+            body = route.handler.handle(new Request(params, token, session));
+         } finally {
+            esql.unbindSession();
+         }
+         status = route.status;
+      } catch (HttpError e) {
+         status = e.status;
+         body = object("error", e.getMessage());
+      } catch (NumberFormatException e) {
+         status = 400;
+         body = object("error", "Malformed number: " + e.getMessage());
+      } catch (IOException e) {
+         // the Retail operations refuse bad requests with IOExceptions
+         status = 400;
+         body = object("error", e.getMessage());
+      } catch (SQLException e) {
+         status = 500;
+         body = object("error", e.getMessage());
+      } catch (Exception e) {
+         status = 500;
+         body = object("error", String.valueOf(e));
+      }
+
+      StringBuilder json = new StringBuilder(256);
+      writeJson(json, body);
+      byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+         out.write(bytes);
+      } finally {
+         out.close();
+      }
+   }//end dispatch
+
+   private static void authorize(Access access, Session session) throws HttpError {
+      if (access == Access.PUBLIC) return;
+      if (session == null) throw new HttpError(401, "Log in first");
+      if (access == Access.MANAGER && !session.isManager()) {
+         throw new HttpError(403, "You do not have permission to perform this action");
+      }
+      if (access == Access.ADMIN && !session.isAdmin()) {
+         throw new HttpError(403, "You do not have permission to perform this action");
+      }
+   }
+
+   private String newToken() {
+      byte[] bytes = new byte[24];
+      random.nextBytes(bytes);
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+   }
+
+   private void expireSessions() {
+      long cutoff = System.currentTimeMillis() - SESSION_TIMEOUT_MS;
+      Iterator<Session> it = sessions.values().iterator();
+      while (it.hasNext()) {
+         if (it.next().getLastUsed() < cutoff) it.remove();
+      }
+   }
+
+   private static String bearerToken(HttpExchange exchange) {
+      String header = exchange.getRequestHeaders().getFirst("Authorization");
+      if (header == null || !header.startsWith("Bearer ")) return null;
+      return header.substring("Bearer ".length()).trim();
+   }
+
+   private static String readBody(HttpExchange exchange) throws IOException, HttpError {
+      InputStream in = exchange.getRequestBody();
+      try {
+         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+         byte[] chunk = new byte[4096];
+         int n;
+         while ((n = in.read(chunk)) > 0) {
+            buffer.write(chunk, 0, n);
+            if (buffer.size() > MAX_BODY_BYTES) throw new HttpError(413, "Request body too large");
+         }
+         return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+      } finally {
+         in.close();
+      }
+   }
+
+   private static void parseForm(String form, Map<String, String> params) throws UnsupportedEncodingException {
+      if (form == null || form.isEmpty()) return;
+      for (String pair : form.split("&")) {
+         if (pair.isEmpty()) continue;
+         int eq = pair.indexOf('=');
+         String name = eq < 0 ? pair : pair.substring(0, eq);
+         String value = eq < 0 ? "" : pair.substring(eq + 1);
+         params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+      }
+   }
+
+   // runs a query and returns its rows as objects keyed by column name; the
+   // whole response is built in memory anyway, so the result is read
+   // buffered in one round trip (fetch size 0) rather than through a cursor
+   private List<Map<String, Object>> query(String sql, Object... params) throws SQLException {
+      final List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+      final String[][] columns = new String[1][];
+      esql.executeQueryAndStream(sql, 0, rs -> {
+         if (columns[0] == null) {
+            ResultSetMetaData rsmd = rs.getMetaData();
+            columns[0] = new String[rsmd.getColumnCount()];
+            for (int i = 0; i < columns[0].length; i++) columns[0][i] = rsmd.getColumnName(i + 1);
+         }
+         Map<String, Object> row = new LinkedHashMap<String, Object>();
+         for (int i = 0; i < columns[0].length; i++) {
+            String value = rs.getString(i + 1);
+            row.put(columns[0][i], value == null ? null : value.trim());
+         }
+         rows.add(row);
+      }, params);
+      return rows;
+   }
+
+   private static List<Map<String, Object>> rows(String[] columns, List<String[]> values) {
+      List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(values.size());
+      for (String[] value : values) {
+         Map<String, Object> row = new LinkedHashMap<String, Object>();
+         for (int i = 0; i < columns.length; i++) {
+            row.put(columns[i], value[i] == null ? null : value[i].trim());
+         }
+         rows.add(row);
+      }
+      return rows;
+   }
+
+   // object("a", 1, "b", 2) -> {"a": 1, "b": 2}
+   private static Map<String, Object> object(Object... keysAndValues) {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+         map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+      }
+      return map;
+   }
+
+   private static void writeJson(StringBuilder out, Object value) {
+      if (value == null) {
+         out.append("null");
+      } else if (value instanceof Number || value instanceof Boolean) {
+         out.append(value);
+      } else if (value instanceof Map) {
+         out.append('{');
+         boolean first = true;
+         for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+            if (!first) out.append(',');
+            first = false;
+            writeString(out, String.valueOf(e.getKey()));
+            out.append(':');
+            writeJson(out, e.getValue());
+         }
+         out.append('}');
+      } else if (value instanceof List) {
+         out.append('[');
+         boolean first = true;
+         for (Object item : (List<?>) value) {
+            if (!first) out.append(',');
+            first = false;
+            writeJson(out, item);
+         }
+         out.append(']');
+      } else {
+         writeString(out, value.toString());
+      }
+   }//end writeJson
+
+   private static void writeString(StringBuilder out, String s) {
+      out.append('"');
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"': out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+               if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+               else out.append(c);
+         }
+      }
+      out.append('"');
+   }
+}//end RetailServer
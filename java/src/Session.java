@@ -0,0 +1,117 @@
+/*
+ * Per-user session state for the Retail application
+ * ==================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * Who is logged in and where they are.  The menu and the GUI keep one
+ * Session for the single person using them; the HTTP server keeps one per
+ * login token and binds it to the request's thread with
+ * Retail.bindSession(), so the Retail getters see that user.
+ */
+public class Session {
+   private volatile int userId = -1;
+   private volatile double latitude = 0.0;
+   private volatile double longitude = 0.0;
+   private volatile String type = "";
+   private volatile long lastUsed = System.currentTimeMillis();
+   // read-your-writes bookkeeping for ReplicaRouter
+   private volatile boolean writePending = false;
+   private long writeLsn = 0;
+
+   public Session() {
+   }
+
+   public Session(int userId, double latitude, double longitude, String type) {
+      this.userId = userId;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.type = type;
+   }
+
+   public int getUserId() {
+      return this.userId;
+   }
+
+   public double getLatitude() {
+      return this.latitude;
+   }
+
+   public double getLongitude() {
+      return this.longitude;
+   }
+
+   public String getType() {
+      return this.type;
+   }
+
+   public void setUserId(int userId) {
+      this.userId = userId;
+   }
+
+   public void setLatitude(double latitude) {
+      this.latitude = latitude;
+   }
+
+   public void setLongitude(double longitude) {
+      this.longitude = longitude;
+   }
+
+   public void setType(String type) {
+      this.type = type;
+   }
+
+   public boolean isManager() {
+      return "manager".equals(this.type) || "admin".equals(this.type);
+   }
+
+   public boolean isAdmin() {
+      return "admin".equals(this.type);
+   }
+
+   /**
+    * @return when the session was last used, in epoch milliseconds
+    */
+   public long getLastUsed() {
+      return this.lastUsed;
+   }
+
+   public void touch() {
+      this.lastUsed = System.currentTimeMillis();
+   }
+
+   /**
+    * Records that a write of this session has committed, so its next read
+    * only goes to a replica that has replayed it.
+    */
+   public void markWritten() {
+      this.writePending = true;
+   }
+
+   /**
+    * @return whether a write was committed since the last call; the flag is
+    *         cleared before the caller reads the primary's WAL position, so
+    *         a write committing meanwhile sets it again
+    */
+   public boolean takeWritePending() {
+      if (!this.writePending) return false;
+      this.writePending = false;
+      return true;
+   }
+
+   /**
+    * @return the primary's WAL position after this session's latest
+    *         write, in bytes
+    */
+   public synchronized long getWriteLsn() {
+      return this.writeLsn;
+   }
+
+   public synchronized void advanceWriteLsn(long lsn) {
+      if (lsn > this.writeLsn) this.writeLsn = lsn;
+   }
+}//end Session
@@ -0,0 +1,260 @@
+/*
+ * Store shard router for the Retail application
+ * ==============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Spreads the store-scoped tables (Store, Product, Orders, ProductUpdates,
+ * ProductSupplyRequests and the popularity counters) over several
+ * databases by storeID: store s lives on shard floorMod(s, N).  Shard 0 is
+ * the database Retail connects to; the others are listed in retail.shards.
+ * Users and Warehouse stay on shard 0 and are copied to the other shards by
+ * logical replication (see shards.sql), so joins and foreign keys against
+ * them keep working on every shard.
+ *
+ * An operation on one store runs on that store's shard.  A report across
+ * stores runs on every shard in parallel through scatter(), and the
+ * per-shard results are combined with the merge helpers below: merge() for
+ * sorted and top-K listings, sumBy() for counts grouped across stores.
+ *
+ * With no retail.shards there is a single shard and every statement goes
+ * to the one database, as before.
+ */
+public class ShardRouter {
+
+   /**
+    * Shard endpoints and the scatter-gather thread count.  The endpoints are
+    * set with -Dretail.shards=host:port/dbname,... in shard order starting
+    * at shard 1, and the threads with -Dretail.shards.threads.
+    */
+   public static class Config {
+      public String endpoints = "";
+      public int threads = 16;
+
+      public static Config fromSystemProperties() {
+         Config config = new Config();
+         config.endpoints = System.getProperty("retail.shards", config.endpoints);
+         config.threads = Integer.getInteger("retail.shards.threads", config.threads);
+         if (config.threads < 1) config.threads = 1;
+         return config;
+      }
+   }//end Config
+
+   /**
+    * Work done on one shard.
+    */
+   public interface ShardTask<T> {
+      T run(int shard) throws SQLException;
+   }//end ShardTask
+
+   private final List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+   private final List<String> names = new ArrayList<String>();
+   private final ExecutorService workers;
+   // set on the worker threads, so a scatter started from inside another
+   // one runs inline instead of waiting for a worker that may never free up
+   private final ThreadLocal<Boolean> onWorker = new ThreadLocal<Boolean>();
+
+   /**
+    * Opens a pool per extra shard, so a shard that is down is reported at
+    * startup like the home database is.
+    *
+    * @param home the pool of shard 0
+    * @throws java.sql.SQLException when a shard cannot be connected to
+    */
+   public ShardRouter(ConnectionPool home, String user, String passwd, Config config) throws SQLException {
+      this.pools.add(home);
+      this.names.add("home");
+      try {
+         for (String endpoint : config.endpoints.split(",")) {
+            endpoint = endpoint.trim();
+            if (endpoint.isEmpty()) continue;
+            this.pools.add(new ConnectionPool("jdbc:postgresql://" + endpoint, user, passwd,
+                                              ConnectionPool.Config.fromSystemProperties()));
+            this.names.add(endpoint);
+         }
+      } catch (SQLException e) {
+         for (int i = 1; i < this.pools.size(); i++) this.pools.get(i).close();
+         throw new SQLException("Unable to connect to shard " + this.pools.size() + ": " + e.getMessage(), e);
+      }
+
+      if (this.pools.size() == 1) {
+         this.workers = null;
+         return;
+      }
+      final AtomicInteger count = new AtomicInteger();
+      this.workers = Executors.newFixedThreadPool(config.threads, r -> {
+         Thread t = new Thread(() -> {
+            onWorker.set(Boolean.TRUE);
+            r.run();
+         }, "retail-shard-" + count.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      });
+   }//end ShardRouter
+
+   /**
+    * @return the number of shards, at least 1
+    */
+   public int size() {
+      return this.pools.size();
+   }
+
+   /**
+    * @return the shard holding storeID's rows
+    */
+   public int shardOf(int storeID) {
+      return Math.floorMod(storeID, this.pools.size());
+   }
+
+   /**
+    * @return the connection pool of shard
+    */
+   public ConnectionPool pool(int shard) {
+      return this.pools.get(shard);
+   }
+
+   /**
+    * Runs task once per shard, in parallel when there is more than one.
+    *
+    * @return the task's results, in shard order
+    * @throws java.sql.SQLException the first failure of any shard, once
+    *         every shard has finished
+    */
+   public <T> List<T> scatter(final ShardTask<T> task) throws SQLException {
+      List<T> results = new ArrayList<T>(this.pools.size());
+      if (this.workers == null || this.onWorker.get() != null) {
+         for (int shard = 0; shard < this.pools.size(); shard++) results.add(task.run(shard));
+         return results;
+      }
+
+      List<Callable<T>> calls = new ArrayList<Callable<T>>();
+      for (int shard = 0; shard < this.pools.size(); shard++) {
+         final int s = shard;
+         calls.add(() -> task.run(s));
+      }
+      List<Future<T>> futures;
+      try {
+         futures = this.workers.invokeAll(calls);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for the shards");
+      }
+      for (int shard = 0; shard < futures.size(); shard++) {
+         try {
+            results.add(futures.get(shard).get());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the shards");
+         } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new SQLException("Shard " + this.names.get(shard) + " failed: " + cause, cause);
+         }
+      }
+      return results;
+   }//end scatter
+
+   /**
+    * @return one line per shard with its connection pool counters
+    */
+   public List<String> getStats() {
+      List<String> stats = new ArrayList<String>();
+      for (int shard = 0; shard < this.pools.size(); shard++) {
+         stats.add(String.format("%d %s %s", shard, this.names.get(shard), this.pools.get(shard).getStats()));
+      }
+      return stats;
+   }//end getStats
+
+   /**
+    * Stops the scatter threads and closes the pools of shards 1 and up; the
+    * home pool belongs to Retail.
+    */
+   public void close() {
+      if (this.workers != null) this.workers.shutdownNow();
+      for (int shard = 1; shard < this.pools.size(); shard++) this.pools.get(shard).close();
+   }//end close
+
+   /**
+    * Merges per-shard results that are each sorted by order into one sorted
+    * list, keeping the first limit rows.  Every shard has to have returned
+    * at least its own first limit rows for the result to be the true top
+    * limit, which a per-shard ORDER BY ... LIMIT gives.
+    *
+    * @param order the order each shard's rows are in, or null to keep the
+    *        rows in shard order
+    * @param limit rows to keep, or 0 for all of them
+    */
+   public static List<List<String>> merge(List<List<List<String>>> parts, Comparator<List<String>> order, int limit) {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (List<List<String>> part : parts) rows.addAll(part);
+      // a stable sort keeps ties in shard order
+      if (order != null) Collections.sort(rows, order);
+      if (limit > 0 && rows.size() > limit) return new ArrayList<List<String>>(rows.subList(0, limit));
+      return rows;
+   }//end merge
+
+   /**
+    * Adds up per-shard counts of the same key, for "GROUP BY key ... SUM"
+    * reports whose groups span stores on different shards, and returns the
+    * keys with the highest totals first.  Shards must return every group,
+    * not just their top few, as a key's total is only known once all its
+    * parts are in.
+    *
+    * @param keyColumn the column identifying a group
+    * @param countColumn the column holding the group's count on the shard
+    * @param limit groups to keep, or 0 for all of them
+    * @return {key, total} rows
+    */
+   public static List<List<String>> sumBy(List<List<List<String>>> parts, int keyColumn, int countColumn, int limit) {
+      Map<String, Long> totals = new LinkedHashMap<String, Long>();
+      for (List<List<String>> part : parts) {
+         for (List<String> row : part) {
+            Long total = totals.get(row.get(keyColumn));
+            totals.put(row.get(keyColumn), (total == null ? 0 : total) + Long.parseLong(row.get(countColumn).trim()));
+         }
+      }
+      List<List<String>> rows = new ArrayList<List<String>>(totals.size());
+      for (Map.Entry<String, Long> e : totals.entrySet()) {
+         List<String> row = new ArrayList<String>(2);
+         row.add(e.getKey());
+         row.add(String.valueOf(e.getValue()));
+         rows.add(row);
+      }
+      return merge(Collections.singletonList(rows), byColumn(1, true, true), limit);
+   }//end sumBy
+
+   /**
+    * @return an order on column, compared as numbers when numeric (e.g. a
+    *         key or a count) and as text otherwise, which sorts timestamps
+    *         correctly too
+    */
+   public static Comparator<List<String>> byColumn(final int column, final boolean numeric, boolean descending) {
+      Comparator<List<String>> order = (a, b) -> {
+         String x = a.get(column), y = b.get(column);
+         if (x == null || y == null) return x == null ? (y == null ? 0 : 1) : -1;
+         return numeric ? Double.compare(Double.parseDouble(x.trim()), Double.parseDouble(y.trim()))
+                        : x.compareTo(y);
+      };
+      return descending ? order.reversed() : order;
+   }//end byColumn
+}//end ShardRouter
@@ -0,0 +1,183 @@
+/*
+ * Prepared statement cache for the Retail application
+ * ===================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.reflect.Method;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A per-connection LRU cache of PreparedStatements keyed by SQL text.
+ *
+ * Statements start out client-side prepared.  Once a statement has been
+ * used prepareThreshold times it is switched to a server-side prepared
+ * statement so PostgreSQL parses and plans it only once for the rest of the
+ * connection's life.  Statements pushed out of the cache are closed, which
+ * also deallocates their server-side plan.
+ *
+ * A cache belongs to exactly one pooled connection and is only touched by
+ * the thread currently holding that connection, so it is not synchronized.
+ */
+public class StatementCache {
+   public static final int DEFAULT_SIZE = Integer.getInteger("retail.statementCache.size", 64);
+   public static final int DEFAULT_PREPARE_THRESHOLD =
+      Integer.getInteger("retail.statementCache.prepareThreshold", 5);
+
+   private static class Entry {
+      final PreparedStatement statement;
+      int uses = 0;
+
+      Entry(PreparedStatement statement) {
+         this.statement = statement;
+      }
+   }//end Entry
+
+   private final Connection connection;
+   private final int maxSize;
+   private final int prepareThreshold;
+   private final LinkedHashMap<String, Entry> statements;
+   private long hits = 0;
+   private long misses = 0;
+
+   public StatementCache(Connection connection) {
+      this(connection, DEFAULT_SIZE, DEFAULT_PREPARE_THRESHOLD);
+   }
+
+   public StatementCache(Connection connection, int maxSize, int prepareThreshold) {
+      this.connection = connection;
+      this.maxSize = Math.max(1, maxSize);
+      this.prepareThreshold = prepareThreshold;
+      // access-ordered, so iteration starts at the least recently used entry
+      this.statements = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+   }
+
+   /**
+    * Returns the cached statement for sql, preparing it on first use.  The
+    * caller binds parameters and executes it but must not close it.
+    *
+    * @param sql the statement text with ? placeholders
+    * @return a reusable prepared statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      return lookup(sql, false);
+   }
+
+   /**
+    * Like prepare(), for a call of a server-side function in JDBC escape
+    * syntax, e.g. "{? = call update_product(?, ?)}".
+    *
+    * @param sql the call with ? placeholders
+    * @return a reusable callable statement
+    * @throws java.sql.SQLException when the call cannot be prepared
+    */
+   public CallableStatement prepareCall(String sql) throws SQLException {
+      return (CallableStatement) lookup(sql, true);
+   }
+
+   private PreparedStatement lookup(String sql, boolean call) throws SQLException {
+      Entry entry = statements.get(sql);
+      if (entry == null) {
+         misses++;
+         entry = new Entry(call ? connection.prepareCall(sql) : connection.prepareStatement(sql));
+         statements.put(sql, entry);
+         evictOverflow();
+      } else {
+         hits++;
+         entry.statement.clearParameters();
+      }
+      entry.uses++;
+      if (prepareThreshold > 0 && entry.uses == prepareThreshold) {
+         useServerPrepare(entry.statement);
+      }
+      return entry.statement;
+   }//end lookup
+
+   /**
+    * Drops and closes a statement, e.g. after it failed in a way that may
+    * have left it unusable.
+    */
+   public void evict(String sql) {
+      Entry entry = statements.remove(sql);
+      if (entry != null) closeQuietly(entry.statement);
+   }
+
+   public int size() {
+      return statements.size();
+   }
+
+   public long getHits() {
+      return hits;
+   }
+
+   public long getMisses() {
+      return misses;
+   }
+
+   /**
+    * Closes every cached statement.
+    */
+   public void close() {
+      for (Entry entry : statements.values()) {
+         closeQuietly(entry.statement);
+      }
+      statements.clear();
+   }
+
+   private void evictOverflow() {
+      Iterator<Map.Entry<String, Entry>> it = statements.entrySet().iterator();
+      while (statements.size() > maxSize && it.hasNext()) {
+         closeQuietly(it.next().getValue().statement);
+         it.remove();
+      }
+   }
+
+   /*
+    * The PostgreSQL driver exposes server-side prepare through
+    * org.postgresql.PGStatement.setUseServerPrepare().  It is looked up
+    * reflectively so the code still compiles and runs against any JDBC
+    * driver; other drivers simply keep using client-side statements.
+    */
+   private static final Class<?> PG_STATEMENT;
+   private static final Method SET_USE_SERVER_PREPARE;
+   static {
+      Class<?> type = null;
+      Method method = null;
+      try {
+         type = Class.forName("org.postgresql.PGStatement");
+         method = type.getMethod("setUseServerPrepare", boolean.class);
+      } catch (Exception e) {
+         // not the PostgreSQL driver.
+      }
+      PG_STATEMENT = type;
+      SET_USE_SERVER_PREPARE = method;
+   }
+
+   private static void useServerPrepare(PreparedStatement stmt) {
+      if (SET_USE_SERVER_PREPARE == null || !PG_STATEMENT.isInstance(stmt)) return;
+      try {
+         SET_USE_SERVER_PREPARE.invoke(stmt, Boolean.TRUE);
+      } catch (Exception e) {
+         // driver refused; stay client-side.
+      }
+   }
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+}//end StatementCache
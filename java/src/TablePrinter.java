@@ -0,0 +1,238 @@
+/*
+ * Text table printer for the Retail application
+ * =============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.PrintStream;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Prints a ResultSet as a left-aligned text table: every cell is padded to
+ * its column's width plus two spaces, NULL cells print as "NULL" and values
+ * are trimmed of the blank padding PostgreSQL adds to char(n) columns.
+ *
+ * Output is assembled in a single StringBuilder and handed to the
+ * PrintStream in large chunks.  Three layouts are supported:
+ *
+ *   TWO_PASS        reads every row first so each column is exactly as wide
+ *                   as its widest value.  Cells are kept in one shared char
+ *                   buffer rather than one String per cell.
+ *   STREAM_SAMPLED  sizes the columns from the first sampleRows rows, then
+ *                   prints those and streams the rest.  Later values wider
+ *                   than their column overflow it instead of re-flowing the
+ *                   table.
+ *   STREAM_FIXED    sizes the columns from the result set metadata and
+ *                   prints every row as soon as it is read.
+ */
+public class TablePrinter {
+   public enum Mode { TWO_PASS, STREAM_SAMPLED, STREAM_FIXED }
+
+   public static final int DEFAULT_SAMPLE_ROWS = Integer.getInteger("retail.print.sampleRows", 200);
+   public static final int MAX_FIXED_WIDTH = Integer.getInteger("retail.print.maxFixedWidth", 30);
+
+   private static final String NULL_TEXT = "NULL";
+   private static final int FLUSH_THRESHOLD = 8192;
+   private static final int GAP = 2;
+
+   private final PrintStream out;
+   private final Mode mode;
+   private final int sampleRows;
+   private final StringBuilder line = new StringBuilder(FLUSH_THRESHOLD * 2);
+
+   // cells buffered by TWO_PASS and by the STREAM_SAMPLED sample, stored
+   // back to back in chars; cellEnds[k] is the end offset of cell k
+   private char[] chars = new char[1024];
+   private int charCount = 0;
+   private int[] cellEnds = new int[256];
+   private int cellCount = 0;
+
+   public TablePrinter(PrintStream out, Mode mode) {
+      this(out, mode, DEFAULT_SAMPLE_ROWS);
+   }
+
+   public TablePrinter(PrintStream out, Mode mode, int sampleRows) {
+      this.out = out;
+      this.mode = mode;
+      this.sampleRows = Math.max(1, sampleRows);
+   }
+
+   /**
+    * Prints the header and every remaining row of rs.
+    *
+    * @param rs the result set to consume
+    * @return the number of data rows printed
+    * @throws java.sql.SQLException when reading the result set fails
+    */
+   public int print(ResultSet rs) throws SQLException {
+      return print(rs, true);
+   }
+
+   /**
+    * Prints every remaining row of rs, with or without the header.  Used to
+    * print the results of the same query on several shards as one table,
+    * in STREAM_FIXED mode so every part gets the same column widths.
+    *
+    * @param rs the result set to consume
+    * @param withHeader whether to print the column names first
+    * @return the number of data rows printed
+    * @throws java.sql.SQLException when reading the result set fails
+    */
+   public int print(ResultSet rs, boolean withHeader) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      String[] header = new String[numCol];
+      int[] widths = new int[numCol];
+      for (int i = 0; i < numCol; i++) {
+         header[i] = rsmd.getColumnName(i + 1);
+         widths[i] = header[i].length();
+      }
+
+      int rowCount = 0;
+      if (mode == Mode.STREAM_FIXED) {
+         for (int i = 0; i < numCol; i++) {
+            int display = rsmd.getColumnDisplaySize(i + 1);
+            if (display > 0) widths[i] = Math.max(widths[i], Math.min(display, MAX_FIXED_WIDTH));
+         }
+      } else {
+         int limit = mode == Mode.TWO_PASS ? Integer.MAX_VALUE : sampleRows;
+         while (rowCount < limit && rs.next()) {
+            for (int i = 0; i < numCol; i++) {
+               widths[i] = Math.max(widths[i], store(rs.getString(i + 1)));
+            }
+            rowCount++;
+         }
+      }
+
+      if (withHeader) {
+         for (int i = 0; i < numCol; i++) {
+            appendCell(header[i], 0, header[i].length(), widths[i]);
+         }
+         endLine();
+      }
+
+      // rows held in the buffer
+      int cell = 0;
+      int start = 0;
+      for (int r = 0; r < rowCount; r++) {
+         for (int i = 0; i < numCol; i++, cell++) {
+            int end = cellEnds[cell];
+            appendCell(chars, start, end, widths[i]);
+            start = end;
+         }
+         endLine();
+      }
+      charCount = 0;
+      cellCount = 0;
+
+      // rows still to be read (never any in TWO_PASS)
+      while (rs.next()) {
+         for (int i = 0; i < numCol; i++) {
+            String value = rs.getString(i + 1);
+            if (value == null) value = NULL_TEXT;
+            int begin = 0;
+            int end = value.length();
+            while (begin < end && value.charAt(begin) <= ' ') begin++;
+            while (end > begin && value.charAt(end - 1) <= ' ') end--;
+            appendCell(value, begin, end, widths[i]);
+         }
+         endLine();
+         rowCount++;
+      }
+
+      flush();
+      return rowCount;
+   }//end print
+
+   /**
+    * Prints rows that were computed in memory rather than read from a
+    * result set, with every column as wide as its widest value.
+    *
+    * @param header the column names
+    * @param rows the rows to print; null cells print as NULL
+    * @return the number of data rows printed
+    */
+   public int print(String[] header, List<String[]> rows) {
+      int numCol = header.length;
+      int[] widths = new int[numCol];
+      for (int i = 0; i < numCol; i++) {
+         widths[i] = header[i].length();
+      }
+      for (String[] row : rows) {
+         for (int i = 0; i < numCol; i++) {
+            String value = row[i] == null ? NULL_TEXT : row[i];
+            widths[i] = Math.max(widths[i], value.trim().length());
+         }
+      }
+      for (int i = 0; i < numCol; i++) {
+         appendCell(header[i], 0, header[i].length(), widths[i]);
+      }
+      endLine();
+      for (String[] row : rows) {
+         for (int i = 0; i < numCol; i++) {
+            String value = row[i] == null ? NULL_TEXT : row[i].trim();
+            appendCell(value, 0, value.length(), widths[i]);
+         }
+         endLine();
+      }
+      flush();
+      return rows.size();
+   }//end print
+
+   // copies the trimmed value into the cell buffer and returns its length
+   private int store(String value) {
+      if (value == null) value = NULL_TEXT;
+      int begin = 0;
+      int end = value.length();
+      while (begin < end && value.charAt(begin) <= ' ') begin++;
+      while (end > begin && value.charAt(end - 1) <= ' ') end--;
+      int len = end - begin;
+      if (charCount + len > chars.length) {
+         chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + len));
+      }
+      value.getChars(begin, end, chars, charCount);
+      charCount += len;
+      if (cellCount == cellEnds.length) {
+         cellEnds = Arrays.copyOf(cellEnds, cellEnds.length * 2);
+      }
+      cellEnds[cellCount++] = charCount;
+      return len;
+   }//end store
+
+   private void appendCell(CharSequence value, int begin, int end, int width) {
+      line.append(value, begin, end);
+      pad(width - (end - begin) + GAP);
+   }
+
+   private void appendCell(char[] value, int begin, int end, int width) {
+      line.append(value, begin, end - begin);
+      pad(width - (end - begin) + GAP);
+   }
+
+   private void pad(int n) {
+      for (int i = Math.max(n, GAP); i > 0; i--) {
+         line.append(' ');
+      }
+   }
+
+   private void endLine() {
+      line.append(System.lineSeparator());
+      if (line.length() >= FLUSH_THRESHOLD) flush();
+   }
+
+   private void flush() {
+      if (line.length() > 0) {
+         out.append(line);
+         out.flush();
+         line.setLength(0);
+      }
+   }
+}//end TablePrinter
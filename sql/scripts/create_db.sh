@@ -2,5 +2,9 @@
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
-psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/triggers.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/partitions.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/procedures.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/shards.sql
+# load_data.sql needs the CSV files on the database host; load them from
+# the client instead with: source java/scripts/compile.sh --load data
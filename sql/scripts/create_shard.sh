@@ -0,0 +1,35 @@
+#!/bin/bash
+# Sets up shard SHARD of SHARDS (see sql/src/shards.sql).  Shard 0 is the
+# database create_db.sh made; run this on it first, then once per other
+# shard with the name of a new, empty database on the same server, e.g.
+#   create_shard.sh $USER"_DB" 0 2
+#   createdb -h localhost -p $PGPORT $USER"_DB_1" && create_shard.sh $USER"_DB_1" 1 2
+# and start the application with -Dretail.shards=localhost:$PGPORT/$USER"_DB_1".
+# Shard 0's server needs wal_level = logical for the other shards to receive
+# Users and Warehouse.
+if [ $# -ne 3 ]; then
+   echo "Usage: create_shard.sh <dbname> <shard> <shards>" >&2
+   exit 1
+fi
+DB=$1
+SHARD=$2
+SHARDS=$3
+HOME_DB=$USER"_DB"
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+if [ "$SHARD" -eq 0 ]; then
+   psql -h localhost -p $PGPORT $DB -c "CREATE PUBLICATION retail_reference FOR TABLE Users, Warehouse"
+else
+   psql -h localhost -p $PGPORT $DB < $DIR/../src/create_tables.sql
+   psql -h localhost -p $PGPORT $DB < $DIR/../src/create_indexes.sql
+   psql -h localhost -p $PGPORT $DB < $DIR/../src/triggers.sql
+   psql -h localhost -p $PGPORT $DB < $DIR/../src/partitions.sql
+   psql -h localhost -p $PGPORT $DB < $DIR/../src/procedures.sql
+   psql -h localhost -p $PGPORT $DB < $DIR/../src/shards.sql
+   # CREATE SUBSCRIPTION cannot make its slot on a server it is itself
+   # connected to, so the slot is made on shard 0 first
+   psql -h localhost -p $PGPORT $HOME_DB -c "SELECT pg_create_logical_replication_slot('retail_reference_$SHARD', 'pgoutput')"
+   psql -h localhost -p $PGPORT $DB -c "CREATE SUBSCRIPTION retail_reference_$SHARD
+      CONNECTION 'host=localhost port=$PGPORT dbname=$HOME_DB user=$USER'
+      PUBLICATION retail_reference WITH (create_slot = false, slot_name = 'retail_reference_$SHARD')"
+fi
+psql -h localhost -p $PGPORT $DB -c "SELECT configure_shard($SHARD, $SHARDS)"
@@ -0,0 +1,10 @@
+#!/bin/bash
+# Creates the Orders partitions for the coming months (MONTHS_AHEAD, 3 by
+# default) and, when KEEP_MONTHS is set, detaches the partitions older than
+# that many months.  Meant to run daily from cron, e.g.
+#   0 3 * * * KEEP_MONTHS=24 /path/to/sql/scripts/maintain_partitions.sh
+MONTHS_AHEAD=${MONTHS_AHEAD:-3}
+psql -h localhost -p $PGPORT $USER"_DB" -c "SELECT partition_orders($MONTHS_AHEAD)"
+if [ -n "$KEEP_MONTHS" ]; then
+   psql -h localhost -p $PGPORT $USER"_DB" -c "SELECT detach_order_partitions($KEEP_MONTHS)"
+fi
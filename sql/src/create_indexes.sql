@@ -3,7 +3,10 @@
 -- So fast login, slower user creation time
 -- Better experience for returning customers
 CREATE INDEX userID_index ON Users USING HASH (userID);
-CREATE INDEX userPassword_index ON Users USING HASH (password);
+-- Logins find the user by name and then check the password, so the name
+-- is what needs indexing; an index on the password alone lands on every
+-- user who happens to share it.
+CREATE INDEX userName_index ON Users (name);
 
 -- The following were created because there are equality based
 -- queries in our program using these columns. There are no
@@ -11,4 +14,34 @@ CREATE INDEX userPassword_index ON Users USING HASH (password);
 CREATE INDEX storeID_index ON Store USING HASH (storeID);
 CREATE INDEX managerID_index ON Store USING HASH (managerID);
 
-CREATE INDEX warehouseID_index ON Warehouse USING HASH (WarehouseID);
\ No newline at end of file
+CREATE INDEX warehouseID_index ON Warehouse USING HASH (WarehouseID);
+
+-- Radius searches ("stores within 30 miles") filter on a bounding box first:
+--   point(latitude, longitude) <@ box(point(lat - r, long - r), point(lat + r, long + r))
+-- These GiST indexes answer that box test, and only the rows inside the box
+-- have calculate_distance evaluated on them.
+CREATE INDEX storeLocation_index ON Store USING GIST (point(latitude, longitude));
+CREATE INDEX userLocation_index ON Users USING GIST (point(latitude, longitude));
+CREATE INDEX warehouseLocation_index ON Warehouse USING GIST (point(latitude, longitude));
+
+-- Top-K per store walks these in order and stops after K rows.
+CREATE INDEX productPopularity_index ON ProductPopularity (storeID, orderCount DESC);
+CREATE INDEX customerPopularity_index ON CustomerPopularity (storeID, orderCount DESC);
+
+-- The GUI pages through a manager's supply requests newest first, seeking
+-- past the last requestNumber shown.
+CREATE INDEX supplyRequestManager_index ON ProductSupplyRequests (managerID, requestNumber DESC);
+
+-- Orders is partitioned by month of orderTime (partitions.sql) and these are
+-- built on every partition.  As Orders_default stays attached and holds any
+-- month, the partitions are not in orderTime order, so RECENT_ORDERS_QUERY
+-- is a MergeAppend over every partition's index: each partition reads just
+-- the customer's newest rows until the LIMIT is met, and the INCLUDE
+-- columns answer it from the index alone.  The cost grows with the number
+-- of partitions, not with the customer's order history.
+CREATE INDEX orderCustomerRecent_index ON Orders (customerID, orderTime DESC) INCLUDE (storeID, productName, unitsOrdered);
+-- A store's orders in time order, for the manager's order reports.
+CREATE INDEX orderStoreTime_index ON Orders (storeID, orderTime);
+-- The last windowMs of sales of every product, for ReplenishmentScheduler,
+-- read from the index alone.
+CREATE INDEX orderRecentSales_index ON Orders (orderTime) INCLUDE (storeID, productName, unitsOrdered);
\ No newline at end of file
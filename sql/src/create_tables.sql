@@ -5,6 +5,8 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS ProductPopularity CASCADE;
+DROP TABLE IF EXISTS CustomerPopularity CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -48,10 +50,14 @@ CREATE TABLE Orders (
                      productName char(30) NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
+                     PRIMARY KEY(orderNumber, orderTime),  -- a partitioned table's keys include the partition key
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
                      FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
-);
+) PARTITION BY RANGE (orderTime);
+
+-- One partition per month is added by partition_orders() in partitions.sql;
+-- until then, and for orders outside every month, rows land here.
+CREATE TABLE Orders_default PARTITION OF Orders DEFAULT;
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
@@ -77,8 +83,37 @@ CREATE TABLE ProductUpdates (
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
 
+-- Running order counts per store, kept current by the Orders triggers in
+-- triggers.sql so "most popular" lookups read a handful of counter rows
+-- instead of grouping all of Orders.  rebuild_popularity() recomputes them.
+CREATE TABLE ProductPopularity (
+                            storeID integer NOT NULL,
+                            productName char(30) NOT NULL,
+                            orderCount integer NOT NULL,
+                            PRIMARY KEY(storeID, productName),
+                            FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+);
+
+CREATE TABLE CustomerPopularity (
+                            storeID integer NOT NULL,
+                            customerID integer NOT NULL,
+                            orderCount integer NOT NULL,
+                            PRIMARY KEY(storeID, customerID),
+                            FOREIGN KEY(storeID) REFERENCES Store(storeID),
+                            FOREIGN KEY(customerID) REFERENCES Users(userID)
+);
+
+-- Plain SQL functions marked IMMUTABLE are inlined into the calling query by
+-- the planner, unlike plpgsql, so a radius predicate costs a little arithmetic
+-- per row instead of a function call.
 CREATE OR REPLACE FUNCTION calculate_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal)
 RETURNS decimal AS $dist$
-BEGIN RETURN sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));
-END;
-$dist$ LANGUAGE plpgsql;
\ No newline at end of file
+SELECT sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));
+$dist$ LANGUAGE sql IMMUTABLE;
+
+-- Same distance for callers binding double precision coordinates (JDBC
+-- setDouble), which would not otherwise resolve to the decimal version.
+CREATE OR REPLACE FUNCTION calculate_distance(lat1 float8, long1 float8, lat2 float8, long2 float8)
+RETURNS float8 AS $dist$
+SELECT sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));
+$dist$ LANGUAGE sql IMMUTABLE;
@@ -0,0 +1,82 @@
+-- Orders is range-partitioned by orderTime, one partition per month named
+-- orders_yyyy_mm, with orders_default catching any order outside them (see
+-- create_tables.sql).  The indexes declared on Orders in create_indexes.sql
+-- are created on every partition, and a query with an orderTime range or
+-- ORDER BY orderTime ... LIMIT only reads the partitions it needs.
+--
+-- sql/scripts/maintain_partitions.sh runs these from cron.
+
+-----------------------------------------------------------------------------
+
+-- Creates the partitions for this month and the next months_ahead months,
+-- plus one for every month that has orders sitting in orders_default (e.g.
+-- history loaded before its partitions existed), and moves those orders
+-- into it.  Returns how many partitions were created.
+CREATE OR REPLACE FUNCTION partition_orders(months_ahead integer DEFAULT 3) RETURNS integer AS
+$$
+DECLARE
+    first_day date;
+    part_name text;
+    created integer := 0;
+BEGIN
+    FOR first_day IN
+        SELECT DISTINCT date_trunc('month', orderTime)::date FROM orders_default
+        UNION
+        SELECT generate_series(date_trunc('month', localtimestamp),
+                               date_trunc('month', localtimestamp) + make_interval(months => months_ahead),
+                               interval '1 month')::date
+        ORDER BY 1
+    LOOP
+        part_name := 'orders_' || to_char(first_day, 'YYYY_MM');
+        CONTINUE WHEN to_regclass(part_name) IS NOT NULL;
+
+        -- the orders are moving, not going away: keep the popularity
+        -- counters out of it.  This also locks orders_default until the
+        -- end of the transaction, so no order can arrive mid-move.
+        ALTER TABLE orders_default DISABLE TRIGGER USER;
+        -- fill the month while it is still a plain table, then attach it;
+        -- the rows are deleted and copied by one statement, so every
+        -- deleted order is copied
+        EXECUTE format('CREATE TABLE %I (LIKE Orders INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part_name);
+        EXECUTE format('WITH moved AS (DELETE FROM orders_default WHERE orderTime >= %L AND orderTime < %L RETURNING *) '
+                       'INSERT INTO %I SELECT * FROM moved',
+                       first_day, first_day + interval '1 month', part_name);
+        ALTER TABLE orders_default ENABLE TRIGGER USER;
+        EXECUTE format('ALTER TABLE Orders ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                       part_name, first_day, (first_day + interval '1 month')::date);
+        created := created + 1;
+    END LOOP;
+    RETURN created;
+END;
+$$
+LANGUAGE plpgsql;
+
+-- Detaches the monthly partitions older than this month and the
+-- keep_months months before it.  They stay behind as ordinary tables under
+-- the same name, to be archived (pg_dump -t) and dropped.  The popularity
+-- counters keep counting their orders; SELECT rebuild_popularity() recounts
+-- from what is still attached.  Returns how many partitions were detached.
+CREATE OR REPLACE FUNCTION detach_order_partitions(keep_months integer) RETURNS integer AS
+$$
+DECLARE
+    part record;
+    detached integer := 0;
+BEGIN
+    FOR part IN
+        SELECT c.relname
+        FROM pg_inherits i, pg_class c
+        WHERE i.inhparent = 'orders'::regclass AND c.oid = i.inhrelid
+          AND c.relname ~ '^orders_[0-9]{4}_[0-9]{2}$'
+          AND to_date(substr(c.relname, 8), 'YYYY_MM')
+              < date_trunc('month', localtimestamp) - make_interval(months => keep_months)
+        ORDER BY c.relname
+    LOOP
+        EXECUTE format('ALTER TABLE Orders DETACH PARTITION %I', part.relname);
+        detached := detached + 1;
+    END LOOP;
+    RETURN detached;
+END;
+$$
+LANGUAGE plpgsql;
+
+SELECT partition_orders();
@@ -0,0 +1,91 @@
+-- Each business operation as one server-side function, so the application
+-- makes a single round trip and the checks and writes of an operation run
+-- in one transaction: either all of it happens or none of it does.
+--
+-- Every function returns NULL when the operation was carried out, or the
+-- reason it was refused as text; Retail turns that text into the same
+-- error message the operation gave when it was a series of statements.
+-- Errors such as a foreign key violation are still raised as errors.
+
+-----------------------------------------------------------------------------
+
+-- Sets a product's stock and price and records the update.  Admins may
+-- update any store, managers only the stores they manage.
+CREATE OR REPLACE FUNCTION update_product(p_manager integer, p_admin boolean, p_store integer,
+                                          p_product text, p_units integer, p_price float)
+RETURNS text AS
+$$
+BEGIN
+    IF NOT p_admin AND NOT EXISTS (SELECT 1 FROM Store WHERE storeID = p_store AND managerID = p_manager) THEN
+        RETURN format('You do not manage the store with ID: %s', p_store);
+    END IF;
+
+    UPDATE Product
+    SET numberOfUnits = p_units, pricePerUnit = p_price
+    WHERE storeID = p_store AND productName = p_product;
+    IF NOT FOUND THEN
+        RETURN format('Product ''%s'' does not exist in this store', p_product);
+    END IF;
+
+    INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn)
+    VALUES (p_manager, p_store, p_product, current_timestamp);
+    RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql;
+
+-- Records a supply request; SupplyRequestTrigger adds the units to the
+-- store.
+CREATE OR REPLACE FUNCTION request_supply(p_manager integer, p_admin boolean, p_warehouse integer,
+                                          p_store integer, p_product text, p_units integer)
+RETURNS text AS
+$$
+BEGIN
+    IF p_units < 0 THEN
+        RETURN 'Can''t order negative amounts';
+    END IF;
+    IF NOT p_admin AND NOT EXISTS (SELECT 1 FROM Store WHERE storeID = p_store AND managerID = p_manager) THEN
+        RETURN format('You do not manage the store with ID: %s', p_store);
+    END IF;
+    IF NOT EXISTS (SELECT 1 FROM Product WHERE storeID = p_store AND productName = p_product) THEN
+        RETURN format('Product ''%s'' does not exist in this store', p_product);
+    END IF;
+
+    INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested)
+    VALUES (p_manager, p_warehouse, p_store, p_product, p_units);
+    RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql;
+
+-- Takes the units out of stock with the same guarded UPDATE as
+-- InventoryReservations, so concurrent orders cannot oversell, and inserts
+-- the order.  Used with retail.orders.mode=procedure; by default orders go
+-- through the application's batching OrderPipeline instead.
+CREATE OR REPLACE FUNCTION place_order(p_customer integer, p_store integer, p_product text, p_units integer)
+RETURNS text AS
+$$
+DECLARE
+    available integer;
+BEGIN
+    IF p_units < 0 THEN
+        RETURN 'Can''t order negative amounts';
+    END IF;
+
+    UPDATE Product
+    SET numberOfUnits = numberOfUnits - p_units
+    WHERE storeID = p_store AND productName = p_product AND numberOfUnits >= p_units;
+    IF NOT FOUND THEN
+        SELECT numberOfUnits INTO available FROM Product WHERE storeID = p_store AND productName = p_product;
+        IF NOT FOUND THEN
+            RETURN 'Product does not exist at this store';
+        END IF;
+        RETURN format('Not enough inventory. Store only has %s units available.', available);
+    END IF;
+
+    INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)
+    VALUES (p_customer, p_store, p_product, p_units, current_timestamp);
+    RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql;
@@ -0,0 +1,39 @@
+-- Store sharding (see ShardRouter.java): store s lives in shard
+-- s mod shards, shard 0 being the database the application connects to.
+-- Every shard has the full schema; Store, Product, Orders, ProductUpdates,
+-- ProductSupplyRequests and the popularity counters hold that shard's
+-- stores only, while Users and Warehouse are kept on shard 0 and copied to
+-- the other shards by logical replication.
+--
+-- sql/scripts/create_shard.sh sets a shard up with these.
+
+-----------------------------------------------------------------------------
+
+-- Interleaves the order, supply request and update numbers of the shards,
+-- so they stay unique across all of them: shard k hands out the numbers
+-- congruent to k + 1 modulo shards, continuing after the largest one it
+-- already has.  With a single shard this is the plain 1, 2, 3, ...
+CREATE OR REPLACE FUNCTION configure_shard(shard integer, shards integer) RETURNS void AS
+$$
+DECLARE
+    seq record;
+    next_value bigint;
+BEGIN
+    IF shard < 0 OR shard >= shards THEN
+        RAISE EXCEPTION 'shard % is not one of 0 .. %', shard, shards - 1;
+    END IF;
+
+    FOR seq IN
+        SELECT * FROM (VALUES ('orders', 'ordernumber'),
+                              ('productsupplyrequests', 'requestnumber'),
+                              ('productupdates', 'updatenumber')) AS s(tab, col)
+    LOOP
+        EXECUTE format('SELECT COALESCE(MAX(%I), 0) + 1 FROM %I', seq.col, seq.tab) INTO next_value;
+        next_value := next_value + ((shard + 1 - next_value) % shards + shards) % shards;
+        EXECUTE format('ALTER SEQUENCE %s INCREMENT BY %s',
+                       pg_get_serial_sequence(seq.tab, seq.col), shards);
+        PERFORM setval(pg_get_serial_sequence(seq.tab, seq.col), next_value, false);
+    END LOOP;
+END;
+$$
+LANGUAGE plpgsql;
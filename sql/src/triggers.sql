@@ -1,8 +1,18 @@
-CREATE OR REPLACE FUNCTION ProductOrderUpdate() RETURNS TRIGGER AS
+-- Ordered units are taken out of Product by the application's conditional
+-- reservation (UPDATE ... WHERE numberOfUnits >= n) in the same transaction
+-- as the order insert.  The old OrderTrigger decremented Product without
+-- checking the stock, which let concurrent orders oversell, so it is
+-- dropped here on existing databases.
+DROP TRIGGER IF EXISTS OrderTrigger ON Orders;
+DROP FUNCTION IF EXISTS ProductOrderUpdate();
+
+-----------------------------------------------------------------------------
+
+CREATE OR REPLACE FUNCTION UpdateProductSupply() RETURNS TRIGGER AS
 $$
 BEGIN    
     UPDATE Product
-    SET numberOfUnits = numberOfUnits - new.unitsOrdered
+    SET numberOfUnits = numberOfUnits + new.unitsRequested
     WHERE storeID = new.storeID AND productName = new.productName;
 
     RETURN new;
@@ -10,26 +20,75 @@ END;
 $$
 LANGUAGE plpgsql;
 
-CREATE TRIGGER OrderTrigger
-    AFTER INSERT ON Orders
+CREATE TRIGGER SupplyRequestTrigger
+    AFTER INSERT ON ProductSupplyRequests
     FOR EACH ROW
-    EXECUTE PROCEDURE ProductOrderUpdate();
+    EXECUTE PROCEDURE UpdateProductSupply();
 
 -----------------------------------------------------------------------------
 
-CREATE OR REPLACE FUNCTION UpdateProductSupply() RETURNS TRIGGER AS
+-- Keeps ProductPopularity and CustomerPopularity in step with Orders: every
+-- order adds one to its (store, product) and (store, customer) counters and
+-- removing an order takes it away again.
+CREATE OR REPLACE FUNCTION OrderPopularityUpdate() RETURNS TRIGGER AS
 $$
-BEGIN    
-    UPDATE Product
-    SET numberOfUnits = numberOfUnits + new.unitsRequested
-    WHERE storeID = new.storeID AND productName = new.productName;
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO ProductPopularity (storeID, productName, orderCount)
+        VALUES (new.storeID, new.productName, 1)
+        ON CONFLICT (storeID, productName)
+        DO UPDATE SET orderCount = ProductPopularity.orderCount + 1;
 
-    RETURN new;
+        INSERT INTO CustomerPopularity (storeID, customerID, orderCount)
+        VALUES (new.storeID, new.customerID, 1)
+        ON CONFLICT (storeID, customerID)
+        DO UPDATE SET orderCount = CustomerPopularity.orderCount + 1;
+
+        RETURN new;
+    END IF;
+
+    UPDATE ProductPopularity
+    SET orderCount = orderCount - 1
+    WHERE storeID = old.storeID AND productName = old.productName;
+    DELETE FROM ProductPopularity
+    WHERE storeID = old.storeID AND productName = old.productName AND orderCount <= 0;
+
+    UPDATE CustomerPopularity
+    SET orderCount = orderCount - 1
+    WHERE storeID = old.storeID AND customerID = old.customerID;
+    DELETE FROM CustomerPopularity
+    WHERE storeID = old.storeID AND customerID = old.customerID AND orderCount <= 0;
+
+    RETURN old;
 END;
 $$
 LANGUAGE plpgsql;
 
-CREATE TRIGGER SupplyRequestTrigger
-    AFTER INSERT ON ProductSupplyRequests
+CREATE TRIGGER OrderPopularityTrigger
+    AFTER INSERT OR DELETE ON Orders
     FOR EACH ROW
-    EXECUTE PROCEDURE UpdateProductSupply();
\ No newline at end of file
+    EXECUTE PROCEDURE OrderPopularityUpdate();
+
+-- Recomputes both counter tables from Orders, e.g. after a bulk load that
+-- bypassed the trigger or to repair drift.  Orders is locked against writes
+-- for the duration so no order is counted twice or missed.
+CREATE OR REPLACE FUNCTION rebuild_popularity() RETURNS integer AS
+$$
+DECLARE
+    orderTotal integer;
+BEGIN
+    LOCK TABLE Orders IN SHARE MODE;
+
+    DELETE FROM ProductPopularity;
+    INSERT INTO ProductPopularity (storeID, productName, orderCount)
+    SELECT storeID, productName, COUNT(*) FROM Orders GROUP BY storeID, productName;
+
+    DELETE FROM CustomerPopularity;
+    INSERT INTO CustomerPopularity (storeID, customerID, orderCount)
+    SELECT storeID, customerID, COUNT(*) FROM Orders GROUP BY storeID, customerID;
+
+    SELECT COUNT(*) INTO orderTotal FROM Orders;
+    RETURN orderTotal;
+END;
+$$
+LANGUAGE plpgsql;
\ No newline at end of file